@@ -2,72 +2,319 @@ package ca.concordia;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.LockSupport;
 
+/*
+ * Load generator for the text protocol of a running FileServer.
+ *
+ *   --host localhost --port 12345  server to load
+ *   --connections 3                client connections, one request in flight on each
+ *   --rate 0                       requests/s over all connections; 0 is closed loop, every connection
+ *                                  sends its next request as soon as the last reply arrived
+ *   --duration 10 --warmup 2       seconds measured, after seconds of unrecorded warmup
+ *   --mix read=70,write=20,create=5,delete=5
+ *   --size 128 | 64-4096 | exp:512 WRITE payload bytes: fixed, uniform in a range, or exponential with that mean
+ *   --files 2                      shared files read and written (the server's maxFiles must allow them,
+ *                                  plus one file per connection for creates)
+ *   --seed 1 --histogram           random seed, print the full percentile distribution
+ *
+ * With --rate every connection follows a fixed schedule and latency is taken from the time a request
+ * was due, not from when it was sent, so a stalled server is charged for the requests it held up
+ * (coordinated omission correction).
+ */
 public class MultiClientLauncher {
 
+    private enum Op { READ, WRITE, CREATE, DELETE }
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final double[] DISTRIBUTION = {0, 25, 50, 75, 90, 95, 99, 99.9, 99.99, 100};
+
+    private static final class Options {
+        String host = "localhost";
+        int port = 12345;
+        int connections = 3;
+        double rate = 0;
+        double duration = 10;
+        double warmup = 2;
+        int[] mix = {70, 20, 5, 5};
+        String size = "128";
+        int files = 2;
+        long seed = 1;
+        boolean histogram = false;
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String flag = args[i];
+                if (flag.equals("--histogram")) {
+                    o.histogram = true;
+                    continue;
+                }
+                if (i + 1 == args.length) throw new IllegalArgumentException("Missing value for " + flag);
+                String value = args[++i];
+                switch (flag) {
+                    case "--host" -> o.host = value;
+                    case "--port" -> o.port = Integer.parseInt(value);
+                    case "--connections" -> o.connections = Integer.parseInt(value);
+                    case "--rate" -> o.rate = Double.parseDouble(value);
+                    case "--duration" -> o.duration = Double.parseDouble(value);
+                    case "--warmup" -> o.warmup = Double.parseDouble(value);
+                    case "--mix" -> o.mix = parseMix(value);
+                    case "--size" -> o.size = value;
+                    case "--files" -> o.files = Integer.parseInt(value);
+                    case "--seed" -> o.seed = Long.parseLong(value);
+                    default -> throw new IllegalArgumentException("Unknown option " + flag);
+                }
+            }
+            if (o.connections < 1 || o.files < 1 || o.duration <= 0 || o.rate < 0)
+                throw new IllegalArgumentException("connections, files and duration must be positive, rate not negative");
+            PayloadSize.parse(o.size);
+            return o;
+        }
+
+        private static int[] parseMix(String value) {
+            int[] mix = new int[Op.values().length];
+            for (String part : value.split(",")) {
+                String[] kv = part.split("=");
+                if (kv.length != 2) throw new IllegalArgumentException("Mix entries look like read=70");
+                mix[Op.valueOf(kv[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(kv[1].trim());
+            }
+            if (Arrays.stream(mix).sum() <= 0) throw new IllegalArgumentException("The mix needs at least one positive weight");
+            return mix;
+        }
+    }
+
+    //WRITE payload lengths
+    private record PayloadSize(String kind, int a, int b) {
+        static PayloadSize parse(String spec) {
+            if (spec.startsWith("exp:")) return new PayloadSize("exp", Integer.parseInt(spec.substring(4)), 0);
+            int dash = spec.indexOf('-');
+            if (dash > 0) {
+                int lo = Integer.parseInt(spec.substring(0, dash));
+                int hi = Integer.parseInt(spec.substring(dash + 1));
+                if (lo < 1 || hi < lo) throw new IllegalArgumentException("Size range must be 1 <= low <= high");
+                return new PayloadSize("uniform", lo, hi);
+            }
+            return new PayloadSize("fixed", Integer.parseInt(spec), 0);
+        }
+
+        int next(SplittableRandom random) {
+            return switch (kind) {
+                case "uniform" -> random.nextInt(a, b + 1);
+                case "exp" -> (int) Math.min(16 << 20, 1 + Math.round(-a * Math.log(1 - random.nextDouble())));
+                default -> a;
+            };
+        }
+    }
+
+    //one connection and what it measured
     private static class TestClient implements Runnable {
-        private final String clientName;
-        private final String[] commands;
+        private final int id;
+        private final Options options;
+        private final long start;
+        private final long measureFrom;
+        private final long end;
+        private final SplittableRandom random;
+        private final PayloadSize sizes;
+        private final int mixTotal;
+        //files this connection created and has not deleted yet
+        private final ArrayDeque<String> created = new ArrayDeque<>();
+        private int nextCreate;
+        private char fill = 'a';
 
-        public TestClient(String clientName, String[] commands) {
-            this.clientName = clientName;
-            this.commands = commands;
+        final LatencyHistogram[] latency = new LatencyHistogram[Op.values().length];
+        final long[] errors = new long[Op.values().length];
+        Exception failure;
+
+        TestClient(int id, Options options, long start) {
+            this.id = id;
+            this.options = options;
+            this.start = start;
+            this.measureFrom = start + (long) (options.warmup * 1e9);
+            this.end = measureFrom + (long) (options.duration * 1e9);
+            this.random = new SplittableRandom(options.seed + id);
+            this.sizes = PayloadSize.parse(options.size);
+            this.mixTotal = Arrays.stream(options.mix).sum();
+            for (int i = 0; i < latency.length; i++) latency[i] = new LatencyHistogram();
         }
 
         @Override
         public void run() {
-            try (Socket socket = new Socket("localhost", 12345);
+            try (Socket socket = new Socket(options.host, options.port);
                  BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
-
-                System.out.println(clientName + " connected to server");
-
-                // Read initial server message
-                System.out.println(reader.readLine());
+                 PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())))) {
+                socket.setTcpNoDelay(true);
+                reader.readLine(); // greeting
 
-                for (String cmd : commands) {
-                    writer.println(cmd);
-                    System.out.println("[" + clientName + "] Sent: " + cmd);
+                // open loop: this connection's share of the rate, phase shifted so connections interleave
+                long interval = options.rate > 0 ? (long) (1e9 * options.connections / options.rate) : 0;
+                long due = start + (interval > 0 ? interval * id / options.connections : 0);
+                while (true) {
+                    if (interval > 0) {
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) LockSupport.parkNanos(wait);
+                    } else {
+                        due = System.nanoTime();
+                    }
+                    if (due >= end) break;
 
-                    // Read server response
-                    String response = reader.readLine();
-                    System.out.println("[" + clientName + "] Response: " + response);
-
-                    // Optional: small delay to simulate real interaction
-                    Thread.sleep(500);
+                    Op op = pickOp();
+                    writer.println(command(op));
+                    writer.flush();
+                    String reply = reader.readLine();
+                    if (reply == null) throw new EOFException("Server closed the connection");
+                    long done = System.nanoTime();
+                    if (due >= measureFrom) {
+                        latency[op.ordinal()].record(done - due);
+                        if (reply.startsWith("ERROR")) errors[op.ordinal()]++;
+                    }
+                    due += interval;
+                }
+                for (String name : created) {
+                    writer.println("DELETE " + name);
+                    writer.flush();
+                    reader.readLine();
                 }
-
                 writer.println("QUIT");
-                System.out.println(clientName + " finished and disconnected.");
-
+                writer.flush();
+                reader.readLine();
             } catch (Exception e) {
-                e.printStackTrace();
+                failure = e;
+            }
+        }
+
+        private Op pickOp() {
+            int r = random.nextInt(mixTotal);
+            for (Op op : Op.values()) {
+                r -= options.mix[op.ordinal()];
+                if (r < 0) return op;
+            }
+            return Op.READ;
+        }
+
+        private String command(Op op) {
+            switch (op) {
+                case READ:
+                    return "READ " + sharedFile(random.nextInt(options.files));
+                case WRITE:
+                    char[] content = new char[sizes.next(random)];
+                    Arrays.fill(content, fill);
+                    fill = fill == 'z' ? 'a' : (char) (fill + 1);
+                    return "WRITE " + sharedFile(random.nextInt(options.files)) + " " + new String(content);
+                case CREATE:
+                    String name = "c" + id + "_" + (nextCreate++ % 1000);
+                    created.add(name);
+                    return "CREATE " + name;
+                default:
+                    // deleting with nothing left of our own still costs a lookup and counts as an error
+                    String victim = created.poll();
+                    return "DELETE " + (victim != null ? victim : "c" + id + "_none");
             }
         }
     }
 
-    public static void main(String[] args) {
-        // Create a thread pool for clients
-        ExecutorService executor = Executors.newFixedThreadPool(3);
+    static String sharedFile(int i) {
+        return "load" + i;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: MultiClientLauncher [--connections N] [--rate R] [--duration S] [--warmup S]"
+                    + " [--mix read=70,write=20,create=5,delete=5] [--size 128|64-4096|exp:512] [--files N]"
+                    + " [--host H] [--port P] [--seed N] [--histogram]");
+            return;
+        }
 
-        // Define commands for each client
-        String[] clientACommands = {"CREATE testA.txt", "WRITE testA.txt Hello from ClientA", "READ testA.txt"};
-        String[] clientBCommands = {"READ testA.txt", "WRITE testA.txt Added text from ClientB", "READ testA.txt"};
-        String[] clientCCommands = {"READ testA.txt", "READ testA.txt", "READ testA.txt"};
+        prepare(options);
 
-        // Submit clients to the executor
-        executor.submit(new TestClient("ClientA", clientACommands));
-        executor.submit(new TestClient("ClientB", clientBCommands));
-        executor.submit(new TestClient("ClientC", clientCCommands));
+        long start = System.nanoTime();
+        List<TestClient> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.connections; i++) {
+            TestClient client = new TestClient(i, options, start);
+            clients.add(client);
+            threads.add(Thread.ofPlatform().name("LoadClient-" + i).start(client));
+        }
+        for (Thread t : threads) t.join();
 
+        report(options, clients);
+    }
 
+    //creates the shared files and gives them contents to read
+    private static void prepare(Options options) throws IOException {
+        try (Socket socket = new Socket(options.host, options.port);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
+            reader.readLine();
+            SplittableRandom random = new SplittableRandom(options.seed);
+            PayloadSize sizes = PayloadSize.parse(options.size);
+            for (int i = 0; i < options.files; i++) {
+                writer.println("CREATE " + sharedFile(i));
+                reader.readLine(); // already there from an earlier run is fine
+                char[] content = new char[sizes.next(random)];
+                Arrays.fill(content, 'x');
+                writer.println("WRITE " + sharedFile(i) + " " + new String(content));
+                String reply = reader.readLine();
+                if (reply == null || !reply.startsWith("SUCCESS"))
+                    throw new IOException("Could not prepare " + sharedFile(i) + ": " + reply);
+            }
+            writer.println("QUIT");
+            reader.readLine();
+        }
+    }
 
+    private static void report(Options options, List<TestClient> clients) {
+        Map<Op, LatencyHistogram> byOp = new HashMap<>();
+        LatencyHistogram all = new LatencyHistogram();
+        long[] errors = new long[Op.values().length];
+        for (Op op : Op.values()) byOp.put(op, new LatencyHistogram());
+        int failed = 0;
+        for (TestClient c : clients) {
+            if (c.failure != null) {
+                failed++;
+                System.err.println("Connection " + c.id + " failed: " + c.failure);
+            }
+            for (Op op : Op.values()) {
+                byOp.get(op).add(c.latency[op.ordinal()]);
+                all.add(c.latency[op.ordinal()]);
+                errors[op.ordinal()] += c.errors[op.ordinal()];
+            }
+        }
 
+        System.out.printf(Locale.ROOT, "%d connection(s), %s, %.1f s measured after %.1f s warmup%s%n",
+                options.connections,
+                options.rate > 0 ? String.format(Locale.ROOT, "open loop at %.0f req/s", options.rate) : "closed loop",
+                options.duration, options.warmup, failed > 0 ? ", " + failed + " connection(s) failed" : "");
+        System.out.printf(Locale.ROOT, "%-7s %10s %10s %8s %10s %10s %10s %10s %10s%n",
+                "op", "count", "req/s", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Op op : Op.values()) {
+            if (byOp.get(op).count() > 0) printRow(op.name(), byOp.get(op), errors[op.ordinal()], options.duration);
+        }
+        printRow("ALL", all, Arrays.stream(errors).sum(), options.duration);
 
+        if (options.histogram && all.count() > 0) {
+            System.out.println();
+            System.out.printf(Locale.ROOT, "%10s %12s%n", "percentile", "latency ms");
+            for (double p : DISTRIBUTION) System.out.printf(Locale.ROOT, "%10s %12.3f%n", p, all.percentile(p) / 1e6);
+            System.out.printf(Locale.ROOT, "%10s %12.3f%n", "mean", all.mean() / 1e6);
+        }
+    }
 
-        // Shutdown executor after all clients finish
-        executor.shutdown();
+    private static void printRow(String name, LatencyHistogram h, long errors, double seconds) {
+        System.out.printf(Locale.ROOT, "%-7s %10d %10.1f %8d", name, h.count(), h.count() / seconds, errors);
+        for (double p : PERCENTILES) System.out.printf(Locale.ROOT, " %10.3f", h.percentile(p) / 1e6);
+        System.out.printf(Locale.ROOT, " %10.3f%n", h.max() / 1e6);
     }
-}
\ No newline at end of file
+}
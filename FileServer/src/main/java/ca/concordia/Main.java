@@ -1,13 +1,100 @@
 package ca.concordia;
 
+import ca.concordia.filesystem.FileStore;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileStore;
+import ca.concordia.filesystem.datastructures.Superblock;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
+import ca.concordia.replication.PrimaryStore;
+import ca.concordia.replication.ReplicaStore;
 import ca.concordia.server.FileServer;
 
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
 public class Main {
     public static void main(String[] args) {
         System.out.printf("Hello and welcome!");
 
-        FileServer server = new FileServer(12345, "filesystem.dat", 10 * 128);
+        // -Dfileserver.engine=pool|virtual|nio picks how connections are served
+        FileServer.Engine engine = FileServer.Engine.valueOf(
+                System.getProperty("fileserver.engine", "virtual").toUpperCase());
+
+        // volume geometry, only used when filesystem.dat is formatted
+        int blockSize = Integer.getInteger("fileserver.blockSize", FileSystemManager.DEFAULT_BLOCK_SIZE);
+        int blocks = Integer.getInteger("fileserver.blocks", 10);
+        int maxFiles = Integer.getInteger("fileserver.maxFiles", FileSystemManager.DEFAULT_MAX_FILES);
+        // -Dfileserver.dedup=true lets files with the same contents share blocks, which also turns it
+        // on for an existing volume (for good)
+        int features = Boolean.getBoolean("fileserver.dedup") ? Superblock.FEATURE_DEDUP : 0;
+        // -Dfileserver.compress=*.txt,*.log stores the files with matching names deflated, each volume
+        // reads it (and -Dfileserver.compress.level) itself
+
+        // -Dfileserver.volumes=dir1,dir2,... spreads the files over a volume in each directory
+        // (each with that geometry and its own block cache), otherwise filesystem.dat is the only one
+        String volumes = System.getProperty("fileserver.volumes");
+        FileStore fsManager;
+        try {
+            Superblock geometry = Superblock.format(blockSize, blocks, maxFiles, features);
+            if (volumes == null) {
+                FileSystemManager volume = new FileSystemManager("filesystem.dat", geometry);
+                Metrics.register(volume);
+                fsManager = volume;
+            } else {
+                List<String> dirs = Arrays.stream(volumes.split(",")).map(String::trim).filter(d -> !d.isEmpty()).toList();
+                ShardedFileStore sharded = ShardedFileStore.open(dirs, geometry);
+                // -Dfileserver.rebalance=true moves files to the volumes they hash to now, then exits
+                if (Boolean.getBoolean("fileserver.rebalance")) {
+                    int moved = sharded.rebalance();
+                    sharded.close();
+                    Log.info("Rebalanced " + dirs.size() + " volume(s), moved " + moved + " file(s).");
+                    return;
+                }
+                fsManager = sharded;
+            }
+        } catch (Exception e) {
+            Log.error("Could not open " + (volumes == null ? "filesystem.dat" : "the volumes " + volumes), e);
+            return;
+        }
+
+        // -Dfileserver.replication.port=N streams every mutation to replicas connecting on N,
+        // -Dfileserver.replication.primary=host:N makes this server a read-only replica of that one
+        String replicationPort = System.getProperty("fileserver.replication.port");
+        String primary = System.getProperty("fileserver.replication.primary");
+        try {
+            if (replicationPort != null && primary != null) {
+                throw new IllegalArgumentException("A server is either a primary or a replica, not both.");
+            } else if (replicationPort != null) {
+                // what a replica that reconnects can still catch up from without a snapshot
+                long retainBytes = Long.getLong("fileserver.replication.retainBytes", 64L * 1024 * 1024);
+                PrimaryStore primaryStore = new PrimaryStore(fsManager, retainBytes);
+                primaryStore.listen(Integer.parseInt(replicationPort));
+                fsManager = primaryStore;
+            } else if (primary != null) {
+                int colon = primary.lastIndexOf(':');
+                if (colon < 1) throw new IllegalArgumentException("Expected host:port, got " + primary);
+                // reads are refused when the replica is further behind the primary than this
+                long maxStaleness = Long.getLong("fileserver.replication.maxStalenessMs", 5000);
+                // what the store holds is kept next to filesystem.dat, a restart resumes from there
+                ReplicaStore replica = new ReplicaStore(fsManager, Path.of("replica.position"), primary.substring(0, colon),
+                        Integer.parseInt(primary.substring(colon + 1)), maxStaleness);
+                replica.start();
+                fsManager = replica;
+            }
+        } catch (Exception e) {
+            Log.error("Could not set up replication", e);
+            try {
+                fsManager.close();
+            } catch (Exception ignored) {
+                // already failing
+            }
+            return;
+        }
+
+        FileServer server = new FileServer(Integer.getInteger("fileserver.port", 12345), fsManager, engine);
         // Start the file server
         server.start();
     }
-}
\ No newline at end of file
+}
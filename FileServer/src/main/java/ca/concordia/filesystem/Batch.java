@@ -0,0 +1,78 @@
+package ca.concordia.filesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//operations run together by FileSystemManager.execute, in order, with one journal record and one
+//flush for all of them; an atomic batch applies every operation or none
+public final class Batch {
+
+    public enum Kind { CREATE, WRITE, APPEND, READ, DELETE, LIST }
+
+    public record Op(Kind kind, String name, byte[] data) {}
+
+    //error is null when the operation succeeded; READ fills data, APPEND size, LIST names
+    public record Result(String error, byte[] data, long size, String[] names) {
+        static final Result DONE = new Result(null, null, 0, null);
+
+        static Result failed(String error) {
+            return new Result(error, null, 0, null);
+        }
+
+        public boolean ok() {
+            return error == null;
+        }
+    }
+
+    private final boolean atomic;
+    private final List<Op> ops = new ArrayList<>();
+
+    public Batch(boolean atomic) {
+        this.atomic = atomic;
+    }
+
+    public Batch create(String name) {
+        return add(Kind.CREATE, name, null);
+    }
+
+    public Batch write(String name, byte[] data) {
+        return add(Kind.WRITE, name, data);
+    }
+
+    public Batch append(String name, byte[] data) {
+        return add(Kind.APPEND, name, data);
+    }
+
+    public Batch read(String name) {
+        return add(Kind.READ, name, null);
+    }
+
+    public Batch delete(String name) {
+        return add(Kind.DELETE, name, null);
+    }
+
+    public Batch list() {
+        return add(Kind.LIST, null, null);
+    }
+
+    private Batch add(Kind kind, String name, byte[] data) {
+        return add(new Op(kind, name, data));
+    }
+
+    Batch add(Op op) {
+        ops.add(op);
+        return this;
+    }
+
+    public boolean isAtomic() {
+        return atomic;
+    }
+
+    public List<Op> ops() {
+        return ops;
+    }
+
+    public int size() {
+        return ops.size();
+    }
+}
@@ -0,0 +1,191 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.Superblock;
+import ca.concordia.filesystem.device.BlockDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Fixed-size cache of data blocks between FileSystemManager and the volume, keyed by block index.
+ *
+ * Slots are split into segments (block index modulo segment count), each with its own lock and
+ * CLOCK hand, so readers of different blocks rarely wait for each other. A block is invalidated
+ * when it leaves a file; an invalidation bumps the segment epoch so a miss that read the disk
+ * before it cannot put the old contents back.
+ *
+ * -Dfileserver.cacheBytes=<bytes> is the memory budget (0 turns the cache off),
+ * -Dfileserver.cacheOffHeap=true keeps the slots in a direct buffer outside the Java heap.
+ */
+public final class BlockCache {
+
+    static final String SIZE_PROPERTY = "fileserver.cacheBytes";
+    static final String OFF_HEAP_PROPERTY = "fileserver.cacheOffHeap";
+    static final long DEFAULT_SIZE = 8L << 20;
+
+    private static final int MAX_SEGMENTS = 16;
+    //a segment smaller than this would evict its hot blocks too soon
+    private static final int MIN_SEGMENT_SLOTS = 8;
+
+    private final BlockDevice disk;
+    private final Superblock superblock;
+    private final int blockSize;
+    private final int slotCount;
+    private final ByteBuffer storage;
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    //block index -> slot, -1 when the block is not cached
+    private final int[] blockSlot;
+    //slot -> block index, -1 when the slot is empty
+    private final int[] slotBlock;
+    private final boolean[] referenced;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final int firstSlot;
+        final int slots;
+        int hand;
+        long epoch;
+
+        Segment(int firstSlot, int slots) {
+            this.firstSlot = firstSlot;
+            this.slots = slots;
+        }
+    }
+
+    BlockCache(BlockDevice disk, Superblock superblock) {
+        this(disk, superblock, Long.getLong(SIZE_PROPERTY, DEFAULT_SIZE), Boolean.getBoolean(OFF_HEAP_PROPERTY));
+    }
+
+    BlockCache(BlockDevice disk, Superblock superblock, long budgetBytes, boolean offHeap) {
+        this.disk = disk;
+        this.superblock = superblock;
+        this.blockSize = superblock.getBlockSize();
+        //never more slots than blocks, and one buffer can hold at most 2 GB
+        long slots = Math.min(Math.max(0, budgetBytes) / blockSize, superblock.getBlockCount());
+        this.slotCount = (int) Math.min(slots, Integer.MAX_VALUE / blockSize);
+
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS && slotCount / (segmentCount * 2) >= MIN_SEGMENT_SLOTS) segmentCount *= 2;
+        this.segments = new Segment[segmentCount];
+        this.segmentMask = segmentCount - 1;
+        for (int i = 0, first = 0; i < segmentCount; i++) {
+            int n = slotCount / segmentCount + (i < slotCount % segmentCount ? 1 : 0);
+            segments[i] = new Segment(first, n);
+            first += n;
+        }
+
+        int capacity = slotCount * blockSize;
+        this.storage = offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        this.blockSlot = new int[slotCount > 0 ? superblock.getBlockCount() : 0];
+        this.slotBlock = new int[slotCount];
+        this.referenced = new boolean[slotCount];
+        java.util.Arrays.fill(blockSlot, -1);
+        java.util.Arrays.fill(slotBlock, -1);
+    }
+
+    //copies len bytes starting blockOff bytes into a block into dst, from the cache or from the volume
+    void read(int block, int blockOff, byte[] dst, int off, int len) throws IOException {
+        if (slotCount == 0) {
+            disk.read(superblock.blockOffset(block) + blockOff, dst, off, len);
+            return;
+        }
+        Segment seg = segments[block & segmentMask];
+        long epoch;
+        seg.lock.lock();
+        try {
+            int slot = blockSlot[block];
+            if (slot >= 0) {
+                referenced[slot] = true;
+                storage.get(slot * blockSize + blockOff, dst, off, len);
+                hits.increment();
+                return;
+            }
+            epoch = seg.epoch;
+        } finally {
+            seg.lock.unlock();
+        }
+        misses.increment();
+
+        // the whole block is cached even when the caller wants only part of it
+        byte[] buf = len == blockSize ? dst : new byte[blockSize];
+        int bufOff = len == blockSize ? off : 0;
+        disk.read(superblock.blockOffset(block), buf, bufOff, blockSize);
+        if (buf != dst) System.arraycopy(buf, blockOff, dst, off, len);
+
+        seg.lock.lock();
+        try {
+            if (seg.epoch != epoch || blockSlot[block] >= 0) return;
+            int slot = victim(seg);
+            storage.put(slot * blockSize, buf, bufOff, blockSize);
+            slotBlock[slot] = block;
+            blockSlot[block] = slot;
+            referenced[slot] = false;
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    //CLOCK: an empty slot, or the first one not referenced since the hand last passed it
+    private int victim(Segment seg) {
+        while (true) {
+            int slot = seg.firstSlot + seg.hand;
+            seg.hand = seg.hand + 1 == seg.slots ? 0 : seg.hand + 1;
+            int old = slotBlock[slot];
+            if (old == -1) return slot;
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            blockSlot[old] = -1;
+            slotBlock[slot] = -1;
+            evictions.increment();
+            return slot;
+        }
+    }
+
+    //drops a block that no longer belongs to the file it was read for
+    void invalidate(int block) {
+        if (slotCount == 0) return;
+        Segment seg = segments[block & segmentMask];
+        seg.lock.lock();
+        try {
+            seg.epoch++;
+            int slot = blockSlot[block];
+            if (slot >= 0) {
+                blockSlot[block] = -1;
+                slotBlock[slot] = -1;
+                referenced[slot] = false;
+            }
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    public int getCapacityBlocks() {
+        return slotCount;
+    }
+
+    public boolean isOffHeap() {
+        return storage.isDirect();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,47 @@
+package ca.concordia.filesystem;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Named points on the durable write path where the process can be killed on purpose.
+ *
+ * -Dfileserver.crashPoint=<name>[:n] halts the JVM (no shutdown hooks, no flushing) the n-th time
+ * the point is reached, so a recovery run can check what a real crash there leaves on disk.
+ * Without the property every hit() is a no-op.
+ */
+final class CrashPoint {
+
+    static final String PROPERTY = "fileserver.crashPoint";
+
+    static final String DATA_WRITTEN = "data-written";         // file data written, metadata not committed
+    static final String JOURNAL_WRITTEN = "journal-written";   // batch appended to the journal, not yet forced
+    static final String JOURNAL_FORCED = "journal-forced";     // batch durable in the journal, volume not updated
+    static final String APPLY_PARTIAL = "apply-partial";       // first record of a batch copied to the volume
+    static final String CHECKPOINT = "checkpoint";             // volume forced, journal not yet reset
+
+    private static final String target;
+    private static final int targetHit;
+    private static final AtomicInteger hits = new AtomicInteger();
+
+    static {
+        String spec = System.getProperty(PROPERTY);
+        if (spec == null || spec.isEmpty()) {
+            target = null;
+            targetHit = 0;
+        } else {
+            int colon = spec.indexOf(':');
+            target = colon < 0 ? spec : spec.substring(0, colon);
+            targetHit = colon < 0 ? 1 : Integer.parseInt(spec.substring(colon + 1));
+        }
+    }
+
+    private CrashPoint() {}
+
+    static void hit(String name) {
+        if (target == null || !target.equals(name)) return;
+        if (hits.incrementAndGet() == targetHit) {
+            System.err.println("Crash point " + name + " reached, halting.");
+            Runtime.getRuntime().halt(137);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.FEntry;
+import ca.concordia.filesystem.datastructures.FNodeTable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Block sharing for volumes formatted with Superblock.FEATURE_DEDUP.
+ *
+ * A block has one link, to the block after it, so files can only share the end of a chain. The
+ * index is keyed by a block's content hash and the block it links to, which makes a key stand for
+ * everything from that block to the end of its file. A write hashes its blocks and looks them up
+ * from the last one back. It links its new blocks to the longest stored suffix it finds, which is
+ * verified byte for byte and costs one reference on the suffix's first block. A whole duplicate
+ * file is one suffix, and no block of it is written again.
+ *
+ * refs[b] counts what points at b: an inode, or the block before it in some chain. A write never
+ * changes a block other files can reach. Writes use new blocks. A ranged write relinks one block
+ * in place, so it starts at the file's first shared block when that comes before its range, and
+ * copies the blocks in between. FEntry.sharedFrom tracks where each file's shared part starts.
+ * References are dropped only after the record that unlinked them is appended, and blocks left with
+ * none go back through the freed list. So a reclaimed block is never one a crash could bring back.
+ *
+ * State is guarded by this object's lock. Lookups read the concurrent index without it and are
+ * checked again when their reference is taken.
+ */
+final class DedupIndex {
+
+    record Key(long hash, int next) {}
+
+    //the stored chain matching a write's blocks from index on; stamp is from before it was looked up
+    record Suffix(int block, int index, Key key, long stamp) {}
+
+    //blocks that lost their last reference, and the versions whose readers may still walk them
+    record Released(int[] blocks, FEntry.Version[] readBy) {}
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final FEntry.Version[] NO_VERSIONS = new FEntry.Version[0];
+
+    private final FNodeTable fnodes;
+    private final int[] refs;
+    //content hash of each block in use, valid once it is indexed
+    private final long[] hashes;
+    //the file that alone reaches a block and where in it, null once the block was shared
+    private final FEntry[] owner;
+    private final int[] pos;
+    private final ConcurrentHashMap<Key, Integer> index = new ConcurrentHashMap<>();
+    //versions that stopped referencing a shared block while they were still being read
+    private final HashMap<Integer, List<FEntry.Version>> lingering = new HashMap<>();
+    //counts relinked chains and freed blocks, a lookup from before a change may have seen old links
+    //or a block since reused
+    private volatile long changes;
+    //blocks a write did not have to store
+    private final LongAdder saved = new LongAdder();
+
+    DedupIndex(int blockCount, FNodeTable fnodes) {
+        this.fnodes = fnodes;
+        this.refs = new int[blockCount];
+        this.hashes = new long[blockCount];
+        this.owner = new FEntry[blockCount];
+        this.pos = new int[blockCount];
+    }
+
+    //64-bit hash of len bytes (a multiple of 8), murmur3 style; matches are compared byte for byte anyway
+    static long hash(byte[] buf, int off, int len) {
+        long h = len;
+        for (int i = 0; i < len; i += 8) {
+            long k = (long) LONGS.get(buf, off + i);
+            k *= 0x87C37B91114253D5L;
+            k = Long.rotateLeft(k, 31);
+            k *= 0x4CF5AD432745937FL;
+            h ^= k;
+            h = Long.rotateLeft(h, 27) * 5 + 0x52DCE729;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    long stamp() {
+        return changes;
+    }
+
+    //a stored block with this content hash that links to next, -1 if none
+    int lookup(long hash, int next) {
+        Integer b = index.get(new Key(hash, next));
+        return b == null ? -1 : b;
+    }
+
+    //one more reference to the suffix, for a chain about to link to it; false if it may have changed
+    //since the lookup (freed, relinked, or part of a ranged write), the write then stores it itself
+    synchronized boolean take(Suffix suffix, int blocksCovered) {
+        int b = suffix.block();
+        Integer at = index.get(suffix.key());
+        if (changes != suffix.stamp() || at == null || at != b || refs[b] == 0) return false;
+        FEntry o = owner[b];
+        if (o != null && pos[b] < o.getFrozenBelow()) return false;
+        refs[b]++;
+        if (o != null) {
+            o.setSharedFrom(Math.min(o.getSharedFrom(), pos[b]));
+            owner[b] = null;
+        }
+        saved.add(blocksCovered);
+        return true;
+    }
+
+    //count new blocks along the chain from first, each referenced by what comes before it
+    synchronized void allocated(int first, int count) {
+        int b = first;
+        for (int i = 0; i < count; i++, b = fnodes.next(b)) refs[b] = 1;
+    }
+
+    //a new block that is given back before anything links to it
+    synchronized void discarded(int block) {
+        refs[block] = 0;
+        owner[block] = null;
+    }
+
+    //lets other writes share count new blocks of f, its blocks from firstIndex on, once they are durable
+    synchronized void published(FEntry f, int first, long firstIndex, long[] blockHashes, int count) {
+        int b = first;
+        for (int i = 0; i < count; i++, b = fnodes.next(b)) {
+            owner[b] = f;
+            pos[b] = (int) (firstIndex + i);
+            hashes[b] = blockHashes[i];
+            index.putIfAbsent(new Key(blockHashes[i], fnodes.next(b)), b);
+        }
+    }
+
+    //f was given a new chain from first whose count new blocks come before the suffix it shares from
+    //index sharedFrom (Long.MAX_VALUE: none)
+    synchronized void replaced(FEntry f, int first, long[] blockHashes, int count, long sharedFrom) {
+        published(f, first, 0, blockHashes, count);
+        f.setSharedFrom(sharedFrom);
+    }
+
+    //drops a reference to first; what has none left is unindexed and returned, along with the versions
+    //that may still read it. readBy is the version that referenced first, its readers hold back what
+    //stays shared too, until that is released in turn
+    synchronized Released release(int first, FEntry.Version readBy) {
+        ArrayList<FEntry.Version> readers = new ArrayList<>();
+        if (readBy != null && readBy.isPinned()) readers.add(readBy);
+        int[] freed = new int[8];
+        int count = 0;
+        for (int b = first; b != FNodeTable.END; b = fnodes.next(b)) {
+            if (refs[b] <= 0) throw new IllegalStateException("Block " + b + " has no reference left to drop.");
+            if (--refs[b] > 0) {
+                linger(b, readers);
+                break;
+            }
+            if (count == freed.length) freed = Arrays.copyOf(freed, count * 2);
+            freed[count++] = b;
+            changes++;
+            index.remove(new Key(hashes[b], fnodes.next(b)), b);
+            owner[b] = null;
+            List<FEntry.Version> l = lingering.remove(b);
+            if (l != null) readers.addAll(l);
+        }
+        return new Released(Arrays.copyOf(freed, count), readers.isEmpty() ? NO_VERSIONS : readers.toArray(NO_VERSIONS));
+    }
+
+    private void linger(int block, List<FEntry.Version> readers) {
+        if (readers.isEmpty()) return;
+        List<FEntry.Version> l = lingering.computeIfAbsent(block, k -> new ArrayList<>());
+        // a replaced version is never pinned again
+        l.removeIf(v -> !v.isPinned());
+        for (FEntry.Version v : readers) {
+            if (v.isPinned()) l.add(v);
+        }
+        if (l.isEmpty()) lingering.remove(block);
+    }
+
+    //where a ranged write of f that starts at block index must begin: there, or at f's first block
+    //other files may reach if that comes earlier, since the block before it is relinked in place.
+    //Nothing before the returned index can become shared until thaw
+    synchronized long freeze(FEntry f, long index) {
+        long start = Math.min(index, f.getSharedFrom());
+        f.setFrozenBelow(start);
+        return start;
+    }
+
+    //the ranged write of f is over, relinked or failed
+    synchronized void thaw(FEntry f) {
+        f.setFrozenBelow(0);
+    }
+
+    //a ranged write of f made prev (END: the inode) link to its new blocks first.., indices start..last,
+    //the last of which links to after, in place of the chain from oldFirst whose blocks start..oldLast
+    //came before after; old is the version that referenced oldFirst. Returns what that chain no longer holds
+    synchronized Released relinked(FEntry f, FEntry.Version old, int prev, int oldFirst, int first, long start, long last,
+                                   long oldLast, long[] blockHashes, int after) {
+        changes++;
+        if (after != FNodeTable.END) refs[after]++;
+        if (prev != FNodeTable.END && index.remove(new Key(hashes[prev], oldFirst), prev)) {
+            index.putIfAbsent(new Key(hashes[prev], first), prev);
+        }
+        published(f, first, start, blockHashes, (int) (last - start + 1));
+        Released released = release(oldFirst, old);
+        // a compressed frame may take more or fewer blocks than the one it replaced
+        long shift = last - oldLast;
+        if (shift != 0) {
+            for (int b = after; b != FNodeTable.END && owner[b] == f; b = fnodes.next(b)) pos[b] += (int) shift;
+        }
+        // the blocks after the range were shared if any block from the range on was
+        long shared = f.getSharedFrom();
+        if (shared <= oldLast || after == FNodeTable.END) f.setSharedFrom(after == FNodeTable.END ? Long.MAX_VALUE : last + 1);
+        else if (shared != Long.MAX_VALUE) f.setSharedFrom(shared + shift);
+        return released;
+    }
+
+    //rebuilding after a restart: b is block number at of f's chain. True if another file reached it
+    //first, the rest of the chain is shared and counted already
+    synchronized boolean loadReference(FEntry f, int b, long at) {
+        if (refs[b]++ == 0) {
+            owner[b] = f;
+            pos[b] = (int) at;
+            return false;
+        }
+        f.setSharedFrom(Math.min(f.getSharedFrom(), at));
+        FEntry o = owner[b];
+        if (o != null) {
+            o.setSharedFrom(Math.min(o.getSharedFrom(), pos[b]));
+            owner[b] = null;
+        }
+        return true;
+    }
+
+    //rebuilding after a restart: block b, in use, holds content with this hash
+    synchronized void loadHash(int b, long hash) {
+        hashes[b] = hash;
+        index.putIfAbsent(new Key(hash, fnodes.next(b)), b);
+    }
+
+    synchronized void clear() {
+        Arrays.fill(refs, 0);
+        Arrays.fill(owner, null);
+        index.clear();
+        lingering.clear();
+    }
+
+    int indexedBlocks() {
+        return index.size();
+    }
+
+    long savedBlocks() {
+        return saved.sum();
+    }
+}
@@ -0,0 +1,62 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+
+//what the server needs from storage: one volume (FileSystemManager) or several (ShardedFileStore)
+public interface FileStore {
+
+    //receives a ranged read in file order, one chunk at a time
+    interface ChunkSink {
+        //called once with the number of bytes that will follow, before any chunk
+        default void begin(long length) throws IOException {}
+
+        void accept(byte[] buf, int off, int len) throws IOException;
+    }
+
+    //supplies the bytes of a ranged write, each call must fill buf[off, off + len) completely
+    interface ChunkSource {
+        void read(byte[] buf, int off, int len) throws IOException;
+    }
+
+    void createFile(String fileName) throws Exception;
+
+    void writeFile(String fileName, String content) throws Exception;
+
+    void writeFile(String fileName, byte[] data) throws Exception;
+
+    //overwrites length bytes at offset (at most the current size), growing the file if needed; returns the new size
+    long writeFile(String fileName, long offset, long length, ChunkSource source) throws Exception;
+
+    //adds length bytes at the end of the file, returns the new size
+    long appendFile(String fileName, long length, ChunkSource source) throws Exception;
+
+    String readFile(String fileName) throws Exception;
+
+    byte[] readFileBytes(String fileName) throws Exception;
+
+    //streams up to length bytes starting at offset to sink, returns how many were sent
+    long readFile(String fileName, long offset, long length, ChunkSink sink) throws Exception;
+
+    //up to length bytes from offset as a FileTransfer, null if fewer than minLength would be sent
+    FileTransfer openTransfer(String fileName, long offset, long length, long minLength) throws Exception;
+
+    void deleteFile(String fileName) throws Exception;
+
+    String[] listFiles();
+
+    Batch.Result[] execute(Batch batch) throws Exception;
+
+    //a replication position that includes every mutation completed so far, for a client to pass to a
+    //replica's awaitPosition and read its own writes there; null when the store is not replicated
+    default String position() {
+        return null;
+    }
+
+    //returns once this store reflects everything up to position, throws if that takes over timeoutMillis;
+    //a store that takes the writes itself always does
+    default void awaitPosition(String position, long timeoutMillis) throws Exception {
+    }
+
+    //makes everything durable and releases the volumes
+    void close() throws Exception;
+}
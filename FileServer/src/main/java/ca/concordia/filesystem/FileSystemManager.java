@@ -1,123 +1,517 @@
 package ca.concordia.filesystem;
 
+import ca.concordia.filesystem.datastructures.BlockBitmap;
 import ca.concordia.filesystem.datastructures.FEntry;
+import ca.concordia.filesystem.datastructures.FNodeTable;
+import ca.concordia.filesystem.datastructures.Superblock;
+import ca.concordia.filesystem.device.BlockDevice;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
 
-import java.io.RandomAccessFile;
-import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjLongConsumer;
 
-public class FileSystemManager {
+/*
+ * There is no lock over the whole filesystem. A file's own read/write lock orders the operations
+ * on it; inode slots are claimed by compare-and-set, blocks by compare-and-set on their bitmap
+ * word, and each operation journals exactly the inode and chain entries it changed. Slots, names
+ * and blocks an operation gives up are handed back only after its journal record is queued (blocks:
+ * once it is durable), so whoever reuses them is always journaled after it.
+ *
+ * Writes are copy-on-write: new contents go to fresh blocks and, once their record is durable,
+ * the file's size and first block are published together as a new version. Readers pin the version
+ * they start on and never wait for a writer; the blocks a write replaced keep their chain until no
+ * reader pins the old version. A ranged write relinks the chain in place, so reads that may run
+ * across it validate the file's stamp afterwards and retry, and streamed reads hold it off instead.
+ * Blocks are invalidated in the cache after new data is written to them, so an unlocked reader can
+ * never cache bytes from before a block's reuse.
+ *
+ * On a volume formatted with Superblock.FEATURE_DEDUP, files with the same contents share blocks
+ * (see DedupIndex). Blocks are then freed by reference count, not by the operation that unlinked them.
+ *
+ * Files whose names match -Dfileserver.compress are stored as deflated frames (see FrameCodec). A whole
+ * write picks the format from the name, a ranged write keeps the file's and stores again only the frames
+ * it touches. Reads of a compressed file take its read lock and inflate the frames their range covers.
+ */
+public class FileSystemManager implements FileStore, Metrics.GaugeSource {
 
-    private final int MAXFILES = 5;
-    private final int MAXBLOCKS = 10;
-    private static FileSystemManager instance;
-    private final RandomAccessFile disk;
+    //geometry used when a new volume is formatted through the (filename, totalSize) constructor
+    public static final int DEFAULT_BLOCK_SIZE = 128;
+    public static final int DEFAULT_MAX_FILES = 5;
+    //largest piece of a file a ranged read or write holds in memory
+    public static final int CHUNK_SIZE = 64 * 1024;
+    //lock-free copies tried before a read falls back to the file's read lock
+    private static final int OPTIMISTIC_TRIES = 3;
+    //how long a write short of space waits for readers of replaced versions to let go of their blocks
+    private static final long READER_WAIT_NANOS = 1_000_000_000L;
 
-    private static final int BLOCK_SIZE = 128;
-    private final FEntry[] inodeTable;
-    private final boolean[] freeBlockList;
+    private final int MAXFILES;
+    private final int MAXBLOCKS;
+    private final BlockDevice disk;
+    //metadata updates are made durable here before they are copied to the volume
+    private final Journal journal;
+    //hot data blocks, filled by reads and invalidated when a block leaves its file or is rewritten
+    private final BlockCache blockCache;
 
-    private final ReentrantLock globalLock = new ReentrantLock(true);
+    private final int BLOCK_SIZE;
+    private final Superblock superblock;
+    private final AtomicReferenceArray<FEntry> inodeTable;
+    //createFile starts looking for a free slot here
+    private volatile int nextFreeSlot;
+    //filename -> inode slot, RESERVED while a create of that name is in progress
+    private final ConcurrentHashMap<String, Integer> nameIndex = new ConcurrentHashMap<>();
+    private static final Integer RESERVED = -1;
+    //in memory only: the bitmap on disk is written at format and close and rebuilt from the chains after a crash
+    private final BlockBitmap freeBlocks;
+    private final FNodeTable fnodes;
+    //reference counts and content index of shared blocks, null unless the volume has FEATURE_DEDUP
+    private final DedupIndex dedup;
+    //which files are stored compressed, and their frames
+    private final FrameCodec codec;
+    //freed chains waiting for the record that freed them to be durable and for the readers of the
+    //version they belonged to; reusing them earlier could overwrite a file that a crash would bring
+    //back, or one that is still being read
+    private final ConcurrentLinkedQueue<FreedBlocks> freedBlocks = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock reclaimLock = new ReentrantLock();
+    //LIST answer, rebuilt when a create or delete moved listVersion past it
+    private final AtomicLong listVersion = new AtomicLong();
+    private volatile Listing listing;
 
+    //readBy are the versions whose readers may still reach the blocks: the replaced one, and with
+    //shared blocks the earlier versions of other files
+    private record FreedBlocks(int[] blocks, long seq, FEntry.Version[] readBy) {}
+
+    private record Listing(long version, String[] names) {}
+
+    private static final int[] NO_BLOCKS = new int[0];
+    private static final FEntry.Version[] NO_READERS = new FEntry.Version[0];
+
+    //totalSize is the data capacity in bytes, used only if the volume has to be formatted
     public FileSystemManager(String filename, int totalSize) throws Exception {
-        if (instance != null) {
-            throw new IllegalStateException("FileSystemManager is already initialized.");
-        }
-        this.inodeTable = new FEntry[MAXFILES];
-        this.freeBlockList = new boolean[MAXBLOCKS];
-        this.disk = new RandomAccessFile(filename, "rw");
-        long minSize = MAXBLOCKS + MAXFILES * 32L;
-        if (disk.length() < minSize) {
-            System.out.println("Disk missing or too small, initializing new filesystem...");
-            disk.setLength(totalSize);
-            for (int i = 0; i < MAXBLOCKS; i++) freeBlockList[i] = true;
-            for (int i = 0; i < MAXFILES; i++) inodeTable[i] = null;
-            saveMetadata();
+        this(filename, DEFAULT_BLOCK_SIZE, totalSize / DEFAULT_BLOCK_SIZE, DEFAULT_MAX_FILES);
+    }
+
+    public FileSystemManager(String filename, int blockSize, int blockCount, int maxFiles) throws Exception {
+        this(filename, Superblock.format(blockSize, blockCount, maxFiles));
+    }
+
+    public FileSystemManager(String filename, Superblock geometry) throws Exception {
+        this(openVolume(filename), BlockDevice.open(filename + ".journal"), geometry);
+    }
+
+    //opens the volume on device, formatting it with the given geometry if it is empty,
+    //journalDevice holds the metadata write-ahead log. Features of geometry missing from an existing
+    //volume are turned on for it where that is possible (FEATURE_DEDUP is, and cannot be turned off).
+    //FEATURE_COMPRESSION is turned on the same way when -Dfileserver.compress names files
+    public FileSystemManager(BlockDevice device, BlockDevice journalDevice, Superblock geometry) throws Exception {
+        this.disk = device;
+        this.journal = new Journal(journalDevice, device);
+        Superblock existing = null;
+        if (disk.size() >= Superblock.SIZE) {
+            Log.info("Disk exists, loading filesystem metadata...");
+            existing = readSuperblock();
+        }
+        this.codec = FrameCodec.configured(existing != null ? existing.getBlockSize() : geometry.getBlockSize());
+        // servers that cannot read compressed files refuse a volume that may hold some
+        if (codec.isEnabled()) geometry = geometry.withFeatures(Superblock.FEATURE_COMPRESSION);
+        boolean startSharing = existing != null && geometry.hasFeature(Superblock.FEATURE_DEDUP)
+                && !existing.hasFeature(Superblock.FEATURE_DEDUP);
+        boolean startCompressing = existing != null && geometry.hasFeature(Superblock.FEATURE_COMPRESSION)
+                && !existing.hasFeature(Superblock.FEATURE_COMPRESSION);
+        // a volume without an id takes the one it is opened with and keeps it from then on
+        boolean startNaming = existing != null && existing.getVolumeId() == null && geometry.getVolumeId() != null;
+        if (startSharing) existing = existing.withFeatures(Superblock.FEATURE_DEDUP);
+        if (startCompressing) existing = existing.withFeatures(Superblock.FEATURE_COMPRESSION);
+        if (startNaming) existing = existing.withVolumeId(geometry.getVolumeId());
+        this.superblock = existing != null ? existing : geometry;
+        this.MAXFILES = superblock.getInodeCount();
+        this.MAXBLOCKS = superblock.getBlockCount();
+        this.BLOCK_SIZE = superblock.getBlockSize();
+        this.inodeTable = new AtomicReferenceArray<>(MAXFILES);
+        this.freeBlocks = new BlockBitmap(MAXBLOCKS);
+        this.fnodes = new FNodeTable(MAXBLOCKS);
+        this.dedup = superblock.hasFeature(Superblock.FEATURE_DEDUP) ? new DedupIndex(MAXBLOCKS, fnodes) : null;
+        this.blockCache = new BlockCache(disk, superblock);
+
+        if (existing == null) {
+            Log.info("Disk missing or too small, initializing new filesystem...");
+            format();
         } else {
+            if (disk.size() < superblock.volumeSize()) disk.setSize(superblock.volumeSize());
+            int replayed = journal.recover();
+            if (replayed > 0) Log.info("Replayed " + replayed + " journal record(s).");
             try {
-                System.out.println("Disk exists, loading filesystem metadata...");
                 loadMetadata();
             } catch (Exception e) {
-                System.out.println("Corrupted or incomplete disk, reinitializing...");
-                for (int i = 0; i < MAXBLOCKS; i++) freeBlockList[i] = true;
-                for (int i = 0; i < MAXFILES; i++) inodeTable[i] = null;
-                saveMetadata();
+                // never format over a volume that may still hold files
+                throw new IOException("Filesystem metadata is corrupted, not reinitializing the volume: " + e.getMessage(), e);
             }
+            if (startSharing || startCompressing || startNaming) writeSuperblock();
+            if (startSharing) Log.info("Block sharing turned on for this volume.");
+            if (startCompressing) Log.info("Compression turned on for this volume.");
         }
-        instance = this;
     }
 
-    //makes sure the system saves new files
-    private void saveMetadata() throws Exception {
-        disk.seek(0);
-        // free block list
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            disk.writeBoolean(freeBlockList[i]);
+    //old headerless volumes are converted before the device is opened
+    private static BlockDevice openVolume(String filename) throws Exception {
+        if (V1Migration.isV1Volume(filename)) {
+            Log.info("Found a v1 volume, migrating " + filename + " to format v" + Superblock.VERSION + "...");
+            V1Migration.migrate(filename);
         }
-        // inode table
-        for (int i = 0; i < MAXFILES; i++) {
-            FEntry e = inodeTable[i];
-            if (e == null) {
-                disk.writeBoolean(false);
-                disk.seek(disk.getFilePointer() + 12 + 2 + 2);
-            } else {
-                disk.writeBoolean(true);
-                byte[] nameBytes = new byte[12]; // zero-filled
-                byte[] actualName = e.getFilename().getBytes();
-                int len = Math.min(actualName.length, 11);
-                System.arraycopy(actualName, 0, nameBytes, 0, len);
-                disk.write(nameBytes);
-                disk.writeShort(e.getFilesize());
-                disk.writeShort(e.getFirstBlock());
+        return BlockDevice.open(filename);
+    }
+
+    private Superblock readSuperblock() throws Exception {
+        byte[] raw = new byte[Superblock.SIZE];
+        disk.read(0, raw, 0, raw.length);
+        ByteBuffer in = ByteBuffer.wrap(raw);
+        //an all-zero header is a volume that was never formatted
+        if (!Superblock.hasMagic(in)) {
+            for (byte b : raw) if (b != 0) throw new Exception("Not a filesystem volume (unknown header).");
+            return null;
+        }
+        return Superblock.readFrom(in);
+    }
+
+    //metadata first and the superblock last, a crash while formatting leaves a volume that is formatted again
+    private void format() throws Exception {
+        disk.setSize(superblock.volumeSize());
+        freeBlocks.clear();
+        fnodes.clear();
+        for (int i = 0; i < MAXFILES; i++) inodeTable.set(i, null);
+        nameIndex.clear();
+        ByteBuffer meta = ByteBuffer.allocate(metadataSize());
+        freeBlocks.writeTo(meta);
+        meta.position((int) (superblock.getFnodeOffset() - superblock.getBitmapOffset()));
+        fnodes.writeTo(meta);
+        disk.write(superblock.getBitmapOffset(), meta.array(), 0, meta.capacity());
+        disk.force();
+        if (dedup != null) dedup.clear();
+        writeSuperblock();
+        journal.reset();
+    }
+
+    private void writeSuperblock() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Superblock.SIZE);
+        superblock.writeTo(header);
+        disk.write(0, header.array(), 0, header.capacity());
+        disk.force();
+    }
+
+    //makes sure the system saves new files: queues an operation's inode and chain entries in the
+    //journal, so the cost follows the change, not the volume. Returns the sequence number to pass
+    //to journal.awaitDurable(); dataSync forces file data written since the last batch first.
+    private long saveMetadata(MetadataUpdate update, boolean dataSync) {
+        return journal.append(update, dataSync);
+    }
+
+    //blocks unlinked by record seq become allocatable once it is durable and readBy is not pinned;
+    //queued only after readBy stopped being the file's current version
+    private void releaseBlocks(int[] freed, long seq, FEntry.Version readBy) {
+        if (freed.length > 0) freedBlocks.add(new FreedBlocks(freed, seq, readBy == null ? NO_READERS : new FEntry.Version[] { readBy }));
+    }
+
+    private void releaseBlocks(DedupIndex.Released released, long seq) {
+        if (released.blocks().length > 0) freedBlocks.add(new FreedBlocks(released.blocks(), seq, released.readBy()));
+    }
+
+    //with shared blocks: drops the reference old (null: nobody published) had to the chain from first,
+    //called once record seq no longer links to it
+    private void releaseChain(int first, long seq, FEntry.Version old) {
+        if (first != FNodeTable.END) releaseBlocks(dedup.release(first, old), seq);
+    }
+
+    private static boolean anyPinned(FEntry.Version[] versions) {
+        for (FEntry.Version v : versions) {
+            if (v.isPinned()) return true;
+        }
+        return false;
+    }
+
+    private void logInode(MetadataUpdate update, int slot, FEntry e) {
+        writeInode(update.region(superblock.getInodeOffset() + (long) slot * Superblock.INODE_SIZE, Superblock.INODE_SIZE), e);
+    }
+
+    //the record of e once it holds size bytes from firstBlock, stored in storedSize bytes of frames if
+    //compressed, journaled before that is published
+    private void logInode(MetadataUpdate update, int slot, FEntry e, long size, int firstBlock, boolean compressed, long storedSize) {
+        writeInode(update.region(superblock.getInodeOffset() + (long) slot * Superblock.INODE_SIZE, Superblock.INODE_SIZE),
+                e.getFilename(), size, firstBlock, compressed, storedSize);
+    }
+
+    private void logNext(MetadataUpdate update, int block) {
+        logNext(update, block, fnodes.next(block));
+    }
+
+    private void logNext(MetadataUpdate update, int block, int next) {
+        update.region(superblock.getFnodeOffset() + (long) block * Integer.BYTES, Integer.BYTES).putInt(next);
+    }
+
+    //returns freed chains whose delete or overwrite is durable and no longer read to the bitmap
+    private void reclaimFreedBlocks() {
+        if (freedBlocks.isEmpty()) return;
+        reclaimLock.lock();
+        try {
+            long durable = journal.durableSeq();
+            // records are queued roughly, not strictly, in sequence order
+            for (Iterator<FreedBlocks> it = freedBlocks.iterator(); it.hasNext(); ) {
+                FreedBlocks freed = it.next();
+                if (freed.seq() > durable || anyPinned(freed.readBy())) continue;
+                it.remove();
+                for (int b : freed.blocks()) {
+                    fnodes.setNext(b, FNodeTable.END);
+                    blockCache.invalidate(b);
+                    freeBlocks.free(b, 1);
+                }
             }
+        } finally {
+            reclaimLock.unlock();
+        }
+    }
+
+    //true if n blocks are free, waits for pending frees to become durable if that is what it takes,
+    //then for a while for readers of replaced versions (writers wait for readers, never the reverse)
+    private boolean ensureFree(int n) throws IOException {
+        reclaimFreedBlocks();
+        if (freeBlocks.getFreeCount() >= n || freedBlocks.isEmpty()) return freeBlocks.getFreeCount() >= n;
+        journal.awaitDurable(journal.lastSeq());
+        reclaimFreedBlocks();
+        long deadline = System.nanoTime() + READER_WAIT_NANOS;
+        while (freeBlocks.getFreeCount() < n && !freedBlocks.isEmpty() && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(100_000);
+            reclaimFreedBlocks();
         }
+        return freeBlocks.getFreeCount() >= n;
     }
 
     //makes sure the system remembers files
     private void loadMetadata() throws Exception {
-        disk.seek(0);
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            freeBlockList[i] = disk.readBoolean();
+        byte[] raw = new byte[metadataSize()];
+        disk.read(superblock.getBitmapOffset(), raw, 0, raw.length);
+        ByteBuffer meta = ByteBuffer.wrap(raw);
+        freeBlocks.readFrom(meta);
+        for (int i = 0; i < MAXFILES; i++) {
+            inodeTable.set(i, readInode(meta));
         }
+        nameIndex.clear();
         for (int i = 0; i < MAXFILES; i++) {
-            boolean exists = false;
-            try {
-                exists = disk.readBoolean();
-            } catch (EOFException ignored) { }
-            if (!exists) {
-                inodeTable[i] = null;
-                disk.seek(disk.getFilePointer() + 12 + 2 + 2);
-            } else {
-                byte[] nameBytes = new byte[12];
-                disk.readFully(nameBytes);
+            FEntry e = inodeTable.get(i);
+            if (e != null) nameIndex.put(e.getFilename(), i);
+        }
+        fnodes.readFrom(meta);
+        // a chain that loops or leaves the volume means the metadata is not usable
+        for (int i = 0; i < MAXFILES; i++) {
+            FEntry e = inodeTable.get(i);
+            if (e != null && e.getFirstBlock() >= 0) fnodes.chainLength(e.getFirstBlock());
+        }
+        rebuildBitmap();
+    }
 
-                int nameLen = 0;
-                for (; nameLen < nameBytes.length; nameLen++) {
-                    if (nameBytes[nameLen] == 0) break;
-                }
-                String name = new String(nameBytes, 0, nameLen);
-                short size = disk.readShort();
-                short firstBlock = disk.readShort();
-                // Safety: enforce max length 11
-                if (name.length() > 11) name = name.substring(0, 11);
-                inodeTable[i] = new FEntry(name, size, firstBlock);
+    //the chains are the truth: after a crash the bitmap on disk is the one of the last clean close
+    private void rebuildBitmap() throws IOException {
+        long[] recorded = new long[freeBlocks.getWordCount()];
+        for (int w = 0; w < recorded.length; w++) recorded[w] = freeBlocks.getWord(w);
+        freeBlocks.clear();
+        for (int i = 0; i < MAXFILES; i++) {
+            FEntry e = inodeTable.get(i);
+            if (e == null) continue;
+            long index = 0;
+            for (int b = e.getFirstBlock(); b >= 0; b = fnodes.next(b), index++) {
+                // the rest of a shared chain was counted with the file that reached it first
+                if (dedup != null && dedup.loadReference(e, b, index)) break;
+                if (!freeBlocks.isFree(b)) throw new IOException("Block " + b + " belongs to more than one file.");
+                freeBlocks.markUsed(b, 1);
+            }
+        }
+        int changed = 0;
+        for (int w = 0; w < recorded.length; w++) changed += Long.bitCount(recorded[w] ^ freeBlocks.getWord(w));
+        if (changed > 0) {
+            Log.warn("Free block bitmap was out of date for " + changed + " block(s), rebuilt from the file chains.");
+        }
+        if (dedup != null) indexBlocks();
+    }
+
+    //hashes every block in use into the dedup index, reading the data region a large piece at a time
+    private void indexBlocks() throws IOException {
+        int perRead = Math.max(1, CHUNK_SIZE / BLOCK_SIZE);
+        byte[] buf = new byte[perRead * BLOCK_SIZE];
+        int indexed = 0;
+        for (int first = 0; first < MAXBLOCKS; first += perRead) {
+            int n = Math.min(perRead, MAXBLOCKS - first);
+            boolean used = false;
+            for (int b = first; b < first + n && !used; b++) used = !freeBlocks.isFree(b);
+            if (!used) continue;
+            disk.read(blockToOffset(first), buf, 0, n * BLOCK_SIZE);
+            for (int b = first; b < first + n; b++) {
+                if (freeBlocks.isFree(b)) continue;
+                dedup.loadHash(b, DedupIndex.hash(buf, (b - first) * BLOCK_SIZE, BLOCK_SIZE));
+                indexed++;
             }
         }
+        Log.info("Indexed " + indexed + " block(s) for sharing.");
+    }
+
+    private void writeBitmap() throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(BlockBitmap.byteSize(MAXBLOCKS));
+        freeBlocks.writeTo(out);
+        disk.write(superblock.getBitmapOffset(), out.array(), 0, out.capacity());
+    }
+
+    //one Superblock.INODE_SIZE record, a free slot is all zeros
+    static void writeInode(ByteBuffer out, FEntry e) {
+        if (e == null) {
+            out.position(out.position() + Superblock.INODE_SIZE);
+            return;
+        }
+        FEntry.Version v = e.getVersion();
+        writeInode(out, e.getFilename(), v.size(), v.firstBlock(), v.isCompressed(), v.storedSize());
+    }
+
+    //flags: 1 in use, 2 stored as FrameCodec frames
+    static void writeInode(ByteBuffer out, String name, long size, int firstBlock, boolean compressed, long storedSize) {
+        int start = out.position();
+        out.put((byte) (compressed ? 3 : 1));
+        byte[] nameBytes = new byte[12]; // zero-filled
+        byte[] actualName = name.getBytes();
+        int len = Math.min(actualName.length, 11);
+        System.arraycopy(actualName, 0, nameBytes, 0, len);
+        out.put(nameBytes);
+        out.position(start + 16);
+        out.putLong(size);
+        out.putInt(firstBlock);
+        if (compressed) out.putLong(storedSize);
+        out.position(start + Superblock.INODE_SIZE);
+    }
+
+    static FEntry readInode(ByteBuffer in) {
+        int start = in.position();
+        FEntry e = null;
+        byte flags = in.get();
+        if ((flags & 1) != 0) {
+            byte[] nameBytes = new byte[12];
+            in.get(nameBytes);
+
+            int nameLen = 0;
+            for (; nameLen < nameBytes.length; nameLen++) {
+                if (nameBytes[nameLen] == 0) break;
+            }
+            String name = new String(nameBytes, 0, nameLen);
+            in.position(start + 16);
+            long size = in.getLong();
+            int firstBlock = in.getInt();
+            boolean compressed = (flags & 2) != 0;
+            long storedSize = compressed ? in.getLong() : size;
+            // Safety: enforce max length 11
+            if (name.length() > 11) name = name.substring(0, 11);
+            e = new FEntry(name, size, firstBlock, compressed, storedSize);
+        }
+        in.position(start + Superblock.INODE_SIZE);
+        return e;
+    }
+
+    private int metadataSize() {
+        return (int) (superblock.getFnodeOffset() + FNodeTable.byteSize(MAXBLOCKS) - superblock.getBitmapOffset());
     }
 
     private long blockToOffset(int blockIndex) {
-        int inodeTableSize = 32 * MAXFILES;
-        return inodeTableSize + (long) blockIndex * BLOCK_SIZE;
+        return superblock.blockOffset(blockIndex);
+    }
+
+    //allocates, links and journals n blocks, one extent when possible so the data stays sequential
+    //on disk; -1 if other allocations took the free blocks first
+    private int allocateChain(int n, MetadataUpdate update) {
+        int first = freeBlocks.allocateExtent(n);
+        if (first != -1) {
+            for (int b = first; b < first + n - 1; b++) fnodes.setNext(b, b + 1);
+            fnodes.setNext(first + n - 1, FNodeTable.END);
+            ByteBuffer entries = update.region(superblock.getFnodeOffset() + (long) first * Integer.BYTES, n * Integer.BYTES);
+            for (int b = first; b < first + n; b++) entries.putInt(fnodes.next(b));
+            return first;
+        }
+        // fragmented free space: take single blocks wherever they are
+        int prev = FNodeTable.END;
+        for (int i = 0; i < n; i++) {
+            int b = freeBlocks.allocate();
+            if (b == -1) {
+                if (prev != FNodeTable.END) discardChain(first);
+                return -1;
+            }
+            fnodes.setNext(b, FNodeTable.END);
+            if (prev == FNodeTable.END) first = b;
+            else fnodes.setNext(prev, b);
+            prev = b;
+        }
+        for (int b = first; b != FNodeTable.END; b = fnodes.next(b)) logNext(update, b);
+        return first;
+    }
+
+    //journals the chain from first to last (END: to its end) as unlinked and returns its blocks for
+    //releaseBlocks; the links stay in memory until the blocks are reclaimed, readers may still walk them
+    private int[] unlinkChain(int first, int last, MetadataUpdate update) {
+        int[] blocks = NO_BLOCKS;
+        int count = 0;
+        int b = first;
+        while (b != FNodeTable.END) {
+            logNext(update, b, FNodeTable.END);
+            if (count == blocks.length) blocks = Arrays.copyOf(blocks, Math.max(16, count * 2));
+            blocks[count++] = b;
+            if (b == last) break;
+            b = fnodes.next(b);
+        }
+        return count == blocks.length ? blocks : Arrays.copyOf(blocks, count);
     }
 
-    private int findInodeIndex(String fileName) {
-        for (int i = 0; i < inodeTable.length; i++) {
-            FEntry entry = inodeTable[i];
-            if (entry != null && entry.getFilename().equals(fileName)) return i;
+    //frees a chain no journaled metadata points at, its blocks are reusable right away
+    private void discardChain(int first) {
+        int b = first;
+        while (b != FNodeTable.END) {
+            int next = fnodes.next(b);
+            if (dedup != null) dedup.discarded(b);
+            fnodes.setNext(b, FNodeTable.END);
+            blockCache.invalidate(b);
+            freeBlocks.free(b, 1);
+            b = next;
+        }
+    }
+
+    //a slot nobody holds, claimed for e; -1 if the table is full
+    private int claimSlot(FEntry e) {
+        int start = nextFreeSlot;
+        for (int k = 0; k < MAXFILES; k++) {
+            int i = (start + k) % MAXFILES;
+            if (inodeTable.get(i) == null && inodeTable.compareAndSet(i, null, e)) {
+                nextFreeSlot = i + 1 == MAXFILES ? 0 : i + 1;
+                return i;
+            }
         }
         return -1;
     }
 
+    //package-private so the benchmarks can time the lookup on its own
+    int findInodeIndex(String fileName) {
+        Integer slot = nameIndex.get(fileName);
+        return slot == null ? -1 : slot;
+    }
+
+    //the slot is looked up without a lock, so the file may have been deleted before the caller locked it
+    private boolean stillExists(int inodeIndex, FEntry f) {
+        return inodeTable.get(inodeIndex) == f;
+    }
+
     //file creation
     public void createFile(String fileName) throws Exception {
         if (fileName == null || fileName.isEmpty())
@@ -125,157 +519,1388 @@ public class FileSystemManager {
         if (fileName.length() > 11)
             throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
 
-        globalLock.lock();
+        // the name is held while the slot and block are claimed, a second create of it fails here
+        if (nameIndex.putIfAbsent(fileName, RESERVED) != null)
+            throw new IllegalArgumentException("File with the name " + fileName + " already exists.");
+        FEntry entry = new FEntry(fileName, 0, FNodeTable.END, codec.compresses(fileName), 0);
+        int slot = -1;
+        int firstFreeBlock = -1;
+        long seq;
         try {
-            if (findInodeIndex(fileName) != -1)
-                throw new IllegalArgumentException("File with the name " + fileName + " already exists.");
-
-            int freeInodeIndex = -1;
-            for (int i = 0; i < inodeTable.length; i++) {
-                if (inodeTable[i] == null) {
-                    freeInodeIndex = i;
-                    break;
-                }
-            }
-
-            if (freeInodeIndex == -1) throw new Exception("Maximum number of files reached.");
+            slot = claimSlot(entry);
+            if (slot == -1) throw new Exception("Maximum number of files reached.");
 
-            short firstFreeBlock = -1;
-            for (short i = 0; i < freeBlockList.length; i++) {
-                if (freeBlockList[i]) {
-                    firstFreeBlock = i;
-                    freeBlockList[i] = false;
-                    break;
-                }
-            }
+            if (ensureFree(1)) firstFreeBlock = freeBlocks.allocate();
             if (firstFreeBlock == -1) throw new Exception("No free blocks available.");
 
-            inodeTable[freeInodeIndex] = new FEntry(fileName, (short) 0, firstFreeBlock);
-            saveMetadata();
-
-            System.out.println("File " + fileName + " created successfully (block " + firstFreeBlock + ").");
-        } finally {
-            globalLock.unlock();
+            fnodes.setNext(firstFreeBlock, FNodeTable.END);
+            if (dedup != null) dedup.allocated(firstFreeBlock, 1);
+            entry.setFirstBlock(firstFreeBlock);
+            MetadataUpdate update = new MetadataUpdate();
+            logInode(update, slot, entry);
+            logNext(update, firstFreeBlock);
+            seq = saveMetadata(update, false);
+        } catch (Exception e) {
+            if (firstFreeBlock != -1) discardChain(firstFreeBlock);
+            if (slot != -1) inodeTable.set(slot, null);
+            nameIndex.remove(fileName, RESERVED);
+            throw e;
         }
+        // the name stays reserved, so the file cannot be found or listed, until a crash can no longer undo it
+        journal.awaitDurable(seq);
+        nameIndex.put(fileName, slot);
+        listVersion.incrementAndGet();
+
+        Log.Line line = Log.line(Log.Level.DEBUG);
+        if (line != null) line.append("File ").append(fileName).append(" created (block ").append(firstFreeBlock).append(").").commit();
     }
     //writes content into file
     public void writeFile(String fileName, String content) throws Exception {
+        writeFile(fileName, content.getBytes());
+    }
+
+    public void writeFile(String fileName, byte[] data) throws Exception {
         int inodeIndex = findInodeIndex(fileName);
         if (inodeIndex == -1) throw new Exception("File does not exist.");
 
-        FEntry f = inodeTable[inodeIndex];
+        FEntry f = inodeTable.get(inodeIndex);
+        if (f == null) throw new Exception("File does not exist.");
+        // deflated before the lock is taken, the blocks then hold the frames instead of data
+        FrameCodec.Encoded encoded = codec.compresses(fileName) ? codec.encodeAll(data) : null;
+        byte[] stored = encoded == null ? data : encoded.blocks();
         f.acquireWrite();
         try {
-            byte[] data = content.getBytes();
-            int blocksNeeded = (int) Math.ceil((double) data.length / BLOCK_SIZE);
-
-            globalLock.lock();
-            short allocatedFirst = -1;
+            if (!stillExists(inodeIndex, f)) throw new Exception("File does not exist.");
+            int blocksNeeded = (int) ((stored.length + (long) BLOCK_SIZE - 1) / BLOCK_SIZE);
+            long[] hashes = null;
+            DedupIndex.Suffix suffix = null;
+            if (dedup != null) {
+                hashes = hashBlocks(stored, blocksNeeded);
+                suffix = takeStoredSuffix(stored, hashes, blocksNeeded);
+            }
+            // blocks to store, the ones after them are already stored as the suffix
+            int fresh = suffix == null ? blocksNeeded : suffix.index();
+            int oldFirst;
+            int newFirst = suffix == null ? FNodeTable.END : suffix.block();
+            MetadataUpdate update = new MetadataUpdate();
             try {
-                // free old blocks
-                short prev = f.getFirstBlock();
-                if (prev >= 0) {
-                    for (int i = prev; i < freeBlockList.length; i++) {
-                        if (!freeBlockList[i]) freeBlockList[i] = true;
-                    }
-                }
-
-                int alloc = 0;
-                for (short i = 0; i < freeBlockList.length && alloc < blocksNeeded; i++) {
-                    if (freeBlockList[i]) {
-                        if (allocatedFirst == -1) allocatedFirst = i;
-                        freeBlockList[i] = false;
-                        alloc++;
+                // the new contents go to fresh blocks and the old chain stays intact until the metadata
+                // switching to them is committed, so a crash leaves either the old or the new file
+                // without room for both copies the write fails and the old version stays as it is
+                if (!ensureFree(fresh)) throw new Exception("Not enough free blocks.");
+                oldFirst = f.getFirstBlock();
+                if (fresh > 0) {
+                    int chain = allocateChain(fresh, update);
+                    if (chain == -1) throw new Exception("Not enough free blocks.");
+                    if (dedup != null) dedup.allocated(chain, fresh);
+                    try {
+                        writeChain(stored, chain);
+                        CrashPoint.hit(CrashPoint.DATA_WRITTEN);
+                    } catch (Exception e) {
+                        discardChain(chain);
+                        throw e;
                     }
+                    if (suffix != null) linkSuffix(chain, fresh, suffix.block(), update);
+                    newFirst = chain;
                 }
-                if (alloc < blocksNeeded) throw new Exception("Not enough free blocks.");
-
-                f.setFilesize((short) data.length);
-                f.setFirstBlock(allocatedFirst);
-                saveMetadata();
-            } finally {
-                globalLock.unlock();
+            } catch (Exception e) {
+                if (suffix != null) releaseChain(suffix.block(), journal.lastSeq(), null);
+                throw e;
             }
 
-            // write file data
-            int dataOffset = 0;
-            short block = f.getFirstBlock();
-            while (dataOffset < data.length && block >= 0 && block < freeBlockList.length) {
-                disk.seek(blockToOffset(block));
-                int chunkSize = Math.min(BLOCK_SIZE, data.length - dataOffset);
-                disk.write(data, dataOffset, chunkSize);
-                dataOffset += chunkSize;
-                block++;
+            boolean compressed = encoded != null;
+            long storedSize = compressed ? encoded.storedSize() : data.length;
+            int[] freed = dedup == null ? unlinkChain(oldFirst, FNodeTable.END, update) : NO_BLOCKS;
+            logInode(update, inodeIndex, f, data.length, newFirst, compressed, storedSize);
+            // the batch forces the data before its journal record
+            long seq = saveMetadata(update, fresh > 0);
+            journal.awaitDurable(seq);
+            // readers see the new contents only once they are durable, the ones on the old keep them
+            FEntry.Version old = f.publish(data.length, newFirst, compressed, storedSize);
+            if (dedup == null) {
+                releaseBlocks(freed, seq, old);
+            } else {
+                dedup.replaced(f, newFirst, hashes, fresh, suffix == null ? Long.MAX_VALUE : suffix.index());
+                releaseChain(oldFirst, seq, old);
             }
-            //save into disk
-            saveMetadata();
         } finally {
             f.releaseWrite();
         }
     }
+
+    //content hash of each of the n blocks data is stored in
+    private long[] hashBlocks(byte[] data, int n) {
+        long[] hashes = new long[n];
+        for (int i = 0; i < n; i++) {
+            int off = i * BLOCK_SIZE;
+            if (data.length - off >= BLOCK_SIZE) hashes[i] = DedupIndex.hash(data, off, BLOCK_SIZE);
+            else hashes[i] = DedupIndex.hash(Arrays.copyOfRange(data, off, off + BLOCK_SIZE), 0, BLOCK_SIZE);
+        }
+        return hashes;
+    }
+
+    //the longest stored chain holding data's blocks from some index to its end, with a reference taken
+    //on it for the caller's chain; null if there is none or it changed before it could be taken
+    private DedupIndex.Suffix takeStoredSuffix(byte[] data, long[] hashes, int n) throws IOException {
+        long stamp = dedup.stamp();
+        DedupIndex.Suffix found = null;
+        byte[] stored = new byte[BLOCK_SIZE];
+        int next = FNodeTable.END;
+        for (int i = n - 1; i >= 0; i--) {
+            int b = dedup.lookup(hashes[i], next);
+            if (b == -1) break;
+            blockCache.read(b, 0, stored, 0, BLOCK_SIZE);
+            if (!sameBlock(stored, data, i)) break;
+            found = new DedupIndex.Suffix(b, i, new DedupIndex.Key(hashes[i], next), stamp);
+            next = b;
+        }
+        if (found == null || !dedup.take(found, n - found.index())) return null;
+        return found;
+    }
+
+    //true if stored holds the index-th block of data as it is stored, zero padded
+    private boolean sameBlock(byte[] stored, byte[] data, int index) {
+        int off = index * BLOCK_SIZE;
+        int len = Math.min(BLOCK_SIZE, data.length - off);
+        if (!Arrays.equals(stored, 0, len, data, off, off + len)) return false;
+        for (int i = len; i < BLOCK_SIZE; i++) {
+            if (stored[i] != 0) return false;
+        }
+        return true;
+    }
+
+    //links the last of count new blocks from first to a stored suffix
+    private void linkSuffix(int first, int count, int suffix, MetadataUpdate update) {
+        int last = first;
+        for (int i = 1; i < count; i++) last = fnodes.next(last);
+        fnodes.setNext(last, suffix);
+        // journaled as allocated already, the later image of the link wins on replay
+        logNext(update, last);
+    }
     //reads content from file
     public String readFile(String fileName) throws Exception {
+        byte[] data = readFileBytes(fileName);
+        if (data.length == 0) return "(empty file)";
+        return new String(data);
+    }
+
+    public byte[] readFileBytes(String fileName) throws Exception {
         int inodeIndex = findInodeIndex(fileName);
         if (inodeIndex == -1) throw new Exception("File does not exist.");
 
-        FEntry f = inodeTable[inodeIndex];
+        FEntry f = inodeTable.get(inodeIndex);
+        if (f == null) throw new Exception("File does not exist.");
+        byte[] copy = readOptimistic(inodeIndex, f, 0, Integer.MAX_VALUE - 8);
+        if (copy != null) return copy;
+
         f.acquireRead();
+        FEntry.Version v = f.pin();
         try {
-            int size = f.getFilesize();
-            if (size == 0) return "(empty file)";
+            if (!stillExists(inodeIndex, f)) throw new Exception("File does not exist.");
+            if (v.size() > Integer.MAX_VALUE - 8) throw new Exception("File is too large to read in one piece.");
+            int size = (int) v.size();
 
             byte[] data = new byte[size];
+            if (v.isCompressed()) {
+                readFrames(v.firstBlock(), size, v, 0, size, ByteBuffer.wrap(data)::put);
+                return data;
+            }
             int bytesRead = 0;
-            short currentBlock = f.getFirstBlock();
+            int currentBlock = v.firstBlock();
 
-            while (bytesRead < size && currentBlock >= 0 && currentBlock < freeBlockList.length) {
-                disk.seek(blockToOffset(currentBlock));
+            while (bytesRead < size && currentBlock != FNodeTable.END) {
                 int toRead = Math.min(BLOCK_SIZE, size - bytesRead);
-                disk.readFully(data, bytesRead, toRead);
+                blockCache.read(currentBlock, 0, data, bytesRead, toRead);
                 bytesRead += toRead;
-                currentBlock++;
+                currentBlock = fnodes.next(currentBlock);
             }
 
-            return new String(data);
+            return data;
         } finally {
+            f.unpin(v);
             f.releaseRead();
         }
     }
-    //deletes the whole file
-    public void deleteFile(String fileName) throws Exception {
+    //streams up to length bytes starting at offset to sink, returns how many were sent
+    public long readFile(String fileName, long offset, long length, ChunkSink sink) throws Exception {
+        if (offset < 0 || length < 0) throw new IllegalArgumentException("Offset and length cannot be negative.");
         int inodeIndex = findInodeIndex(fileName);
         if (inodeIndex == -1) throw new Exception("File does not exist.");
 
-        FEntry f = inodeTable[inodeIndex];
+        FEntry f = inodeTable.get(inodeIndex);
+        if (f == null) throw new Exception("File does not exist.");
+        // a range that fits in one chunk is copied without the lock and handed over whole, so is all of
+        // a file that small however long the range asked for
+        if (Math.min(length, f.getFilesize() - offset) <= CHUNK_SIZE) {
+            byte[] copy = readOptimistic(inodeIndex, f, offset, length);
+            if (copy != null) {
+                sink.begin(copy.length);
+                if (copy.length > 0) sink.accept(copy, 0, copy.length);
+                return copy.length;
+            }
+        }
+
+        // a longer range is streamed, it cannot be retried once sent so ranged writes wait for it
+        f.acquireRead();
+        FEntry.Version v = f.pin();
+        try {
+            if (!stillExists(inodeIndex, f)) throw new Exception("File does not exist.");
+            long size = v.size();
+            if (offset > size) throw new Exception("Offset is past the end of the file.");
+            long total = Math.min(length, size - offset);
+            sink.begin(total);
+            if (total == 0) return 0;
+            if (v.isCompressed()) {
+                readFrames(v.firstBlock(), size, v, offset, total, sink);
+                return total;
+            }
+
+            byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, total)];
+            long index = offset / BLOCK_SIZE;
+            int block = seek(v, index);
+            int inBlock = (int) (offset % BLOCK_SIZE);
+            long done = 0;
+            int filled = 0;
+            while (true) {
+                int n = (int) Math.min(Math.min(BLOCK_SIZE - inBlock, chunk.length - filled), total - done - filled);
+                blockCache.read(block, inBlock, chunk, filled, n);
+                filled += n;
+                inBlock += n;
+                if (filled == chunk.length || done + filled == total) {
+                    sink.accept(chunk, 0, filled);
+                    done += filled;
+                    filled = 0;
+                    if (done == total) break;
+                }
+                if (inBlock == BLOCK_SIZE) {
+                    block = fnodes.next(block);
+                    index++;
+                    inBlock = 0;
+                }
+            }
+            v.setChainHint(new FEntry.ChainHint(index, block));
+            return total;
+        } finally {
+            f.unpin(v);
+            f.releaseRead();
+        }
+    }
+
+    //the read of up to length bytes at offset as a FileTransfer, which the caller must close; null when
+    //it would be shorter than minLength, short reads are cheaper through the block cache, or when the
+    //file is compressed and has to be inflated. The blocks are looked up like an optimistic read, under
+    //the lock only when ranged writes kept relinking the chain; after that the transfer holds no lock,
+    //only its pinned version, which keeps the blocks it sends from being reused until it is closed
+    public FileTransfer openTransfer(String fileName, long offset, long length, long minLength) throws Exception {
+        if (offset < 0 || length < 0) throw new IllegalArgumentException("Offset and length cannot be negative.");
+        int inodeIndex = findInodeIndex(fileName);
+        if (inodeIndex == -1) throw new Exception("File does not exist.");
+
+        FEntry f = inodeTable.get(inodeIndex);
+        if (f == null) throw new Exception("File does not exist.");
+        // a read that is clearly too short is left to readFile, which copies it without the lock
+        if (Math.min(length, f.getFilesize() - offset) < minLength) return null;
+        for (int attempt = 0; ; attempt++) {
+            boolean locked = attempt == OPTIMISTIC_TRIES;
+            long stamp = 0;
+            if (locked) {
+                f.acquireRead();
+            } else {
+                if (attempt > 0) Metrics.OPTIMISTIC_RETRIES.increment();
+                stamp = f.tryOptimisticRead();
+                if (stamp == 0) continue;
+            }
+            FEntry.Version v = f.pin();
+            boolean handedOver = false;
+            try {
+                if (!stillExists(inodeIndex, f)) throw new Exception("File does not exist.");
+                long size = v.size();
+                if (offset > size) throw new Exception("Offset is past the end of the file.");
+                long total = Math.min(length, size - offset);
+                if (total < minLength || v.isCompressed()) return null;
+                FileTransfer transfer = resolveTransfer(f, v, offset, total, locked ? 0 : stamp);
+                if (transfer == null) continue;
+                handedOver = true;
+                return transfer;
+            } catch (IOException | RuntimeException e) {
+                // torn walk seen mid-relink, the locked attempt reports real errors
+                if (locked) throw e;
+            } finally {
+                if (!handedOver) f.unpin(v);
+                if (locked) f.releaseRead();
+            }
+        }
+    }
+
+    //the blocks of total bytes at offset of v as runs of contiguous bytes; with a stamp instead of the
+    //lock (0) a relink can leave a torn walk behind, so every block is range checked and the stamp
+    //validated, null means try again
+    private FileTransfer resolveTransfer(FEntry f, FEntry.Version v, long offset, long total, long stamp) {
+        boolean locked = stamp == 0;
+        // contiguous blocks become one run
+        long[] offsets = new long[8];
+        int[] lengths = new int[8];
+        int runs = 0;
+        long index = offset / BLOCK_SIZE;
+        int block = total == 0 ? FNodeTable.END : seek(v, index);
+        int inBlock = (int) (offset % BLOCK_SIZE);
+        long done = 0;
+        int prev = -1;
+        while (done < total) {
+            if (!locked && (block < 0 || block >= MAXBLOCKS)) return null;
+            int n = (int) Math.min(BLOCK_SIZE - inBlock, total - done);
+            if (runs > 0 && block == prev + 1 && inBlock == 0 && lengths[runs - 1] <= Integer.MAX_VALUE - n) {
+                lengths[runs - 1] += n;
+            } else {
+                if (runs == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, runs * 2);
+                    lengths = Arrays.copyOf(lengths, runs * 2);
+                }
+                offsets[runs] = blockToOffset(block) + inBlock;
+                lengths[runs] = n;
+                runs++;
+            }
+            done += n;
+            inBlock = 0;
+            prev = block;
+            if (done < total) {
+                block = fnodes.next(block);
+                index++;
+            }
+        }
+        if (!locked && !f.validate(stamp)) return null;
+        if (total > 0) v.setChainHint(new FEntry.ChainHint(index, block));
+        return new FileTransfer(disk, f, v, offsets, lengths, runs, total);
+    }
+
+    //overwrites length bytes at offset (at most the current size), growing the file if needed; returns the new size
+    public long writeFile(String fileName, long offset, long length, ChunkSource source) throws Exception {
+        if (offset < 0) throw new IllegalArgumentException("Offset cannot be negative.");
+        return writeRange(fileName, offset, length, source);
+    }
+
+    //adds length bytes at the end of the file, returns the new size
+    public long appendFile(String fileName, long length, ChunkSource source) throws Exception {
+        return writeRange(fileName, -1, length, source);
+    }
+
+    //the blocks the range touches are rewritten into new blocks and swapped into the chain in one
+    //metadata update, so a crash leaves the old or the new range and untouched blocks are never copied
+    private long writeRange(String fileName, long offset, long length, ChunkSource source) throws Exception {
+        if (length < 0) throw new IllegalArgumentException("Length cannot be negative.");
+        int inodeIndex = findInodeIndex(fileName);
+        if (inodeIndex == -1) throw new Exception("File does not exist.");
+
+        FEntry f = inodeTable.get(inodeIndex);
+        if (f == null) throw new Exception("File does not exist.");
         f.acquireWrite();
         try {
-            globalLock.lock();
+            if (!stillExists(inodeIndex, f)) throw new Exception("File does not exist.");
+            long size = f.getFilesize();
+            long start = offset < 0 ? size : offset;
+            if (start > size) throw new Exception("Offset is past the end of the file.");
+            if (length == 0) return size;
+            if (f.getVersion().isCompressed()) return writeFrames(inodeIndex, f, start, length, source);
+            long end = start + length;
+            long firstIndex = start / BLOCK_SIZE;
+            long lastIndex = (end - 1) / BLOCK_SIZE;
+            // with shared blocks the write starts at the first one, if that comes before the range
+            long startIndex = dedup == null ? firstIndex : dedup.freeze(f, firstIndex);
+            if (lastIndex - startIndex >= MAXBLOCKS) throw new Exception("Not enough free blocks.");
+            int count = (int) (lastIndex - startIndex + 1);
+
+            if (!ensureFree(count)) throw new Exception("Not enough free blocks.");
+            MetadataUpdate update = new MetadataUpdate();
+            int newFirst = allocateChain(count, update);
+            if (newFirst == -1) throw new Exception("Not enough free blocks.");
+            if (dedup != null) dedup.allocated(newFirst, count);
+            long[] hashes = dedup == null ? null : new long[count];
+
+            // the block before the range, the first old block it replaces, and the block after it
+            FEntry.Version current = f.getVersion();
+            int prev = startIndex == 0 ? FNodeTable.END : seek(current, startIndex - 1);
+            int oldFirst = prev == FNodeTable.END ? f.getFirstBlock() : fnodes.next(prev);
+            int old = oldFirst;
+            int lastReplaced = FNodeTable.END;
+            int replaced = 0;
+            int newLast = FNodeTable.END;
+
             try {
-                short current = f.getFirstBlock();
-                while (current >= 0 && current < freeBlockList.length) {
-                    freeBlockList[current] = true;
-                    current++;
+                int perChunk = Math.max(1, Math.min(count, CHUNK_SIZE / BLOCK_SIZE));
+                byte[] chunk = new byte[perChunk * BLOCK_SIZE];
+                int[] chunkBlocks = new int[perChunk];
+                int filled = 0;
+                int nb = newFirst;
+                for (long i = startIndex; i <= lastIndex; i++) {
+                    int pos = filled * BLOCK_SIZE;
+                    // blocks before the range are copied whole
+                    int from = i < firstIndex ? BLOCK_SIZE : i == firstIndex ? (int) (start % BLOCK_SIZE) : 0;
+                    int to = i == lastIndex ? (int) ((end - 1) % BLOCK_SIZE) + 1 : BLOCK_SIZE;
+                    // bytes of the old block on either side of the range are carried over
+                    long oldEnd = Math.min(BLOCK_SIZE, size - i * BLOCK_SIZE);
+                    if (from > 0) blockCache.read(old, 0, chunk, pos, from);
+                    if (to > from) source.read(chunk, pos + from, to - from);
+                    if (to < oldEnd) blockCache.read(old, to, chunk, pos + to, (int) (oldEnd - to));
+                    if (dedup != null) {
+                        // stored zero padded, like whole writes store their last block
+                        Arrays.fill(chunk, pos + (int) Math.max(to, oldEnd), pos + BLOCK_SIZE, (byte) 0);
+                        hashes[(int) (i - startIndex)] = DedupIndex.hash(chunk, pos, BLOCK_SIZE);
+                    }
+
+                    chunkBlocks[filled++] = nb;
+                    newLast = nb;
+                    nb = fnodes.next(nb);
+                    if (old != FNodeTable.END) {
+                        lastReplaced = old;
+                        old = fnodes.next(old);
+                        replaced++;
+                    }
+                    if (filled == perChunk || i == lastIndex) {
+                        writeBlocks(chunk, chunkBlocks, filled);
+                        filled = 0;
+                    }
                 }
-                inodeTable[inodeIndex] = null;
-                saveMetadata();
+                CrashPoint.hit(CrashPoint.DATA_WRITTEN);
+            } catch (Exception e) {
+                discardChain(newFirst);
+                throw e;
+            }
+
+            long newSize = Math.max(size, end);
+            relink(inodeIndex, f, update, new Splice(prev, oldFirst, lastReplaced, old, newFirst, newLast,
+                    startIndex, lastIndex, startIndex + replaced - 1, hashes), newSize, false, newSize);
+            return newSize;
+        } finally {
+            if (dedup != null) dedup.thaw(f);
+            f.releaseWrite();
+        }
+    }
+
+    //writeRange of a compressed file, under its write lock: the frames the range touches are inflated
+    //where it covers them in part, deflated again into new blocks and swapped into the chain. The frames
+    //after the range are kept, so a write at the end of a file stores only its last frames again
+    private long writeFrames(int inodeIndex, FEntry f, long start, long length, ChunkSource source) throws Exception {
+        FEntry.Version current = f.getVersion();
+        long size = current.size();
+        long end = start + length;
+        long newSize = Math.max(size, end);
+        int frameSize = codec.frameSize();
+        long firstFrame = start / frameSize;
+        long lastFrame = (end - 1) / frameSize;
+        long oldFrames = (size + frameSize - 1) / frameSize;
+        int perFrame = codec.maxBlocks(frameSize);
+        byte[] stored = new byte[perFrame * BLOCK_SIZE];
+        byte[] plain = new byte[frameSize];
+        int[] blocks = new int[perFrame];
+
+        // where the first frame the range touches starts, and the block before it
+        int prev = FNodeTable.END;
+        int old = current.firstBlock();
+        long firstIndex = 0;
+        for (long k = 0; k < firstFrame; k++) {
+            int n = frameBlocks(old, stored);
+            for (int i = 0; i < n; i++, firstIndex++) {
+                if (old == FNodeTable.END) throw new IOException("File chain ends inside a frame.");
+                prev = old;
+                old = fnodes.next(old);
+            }
+        }
+        // with shared blocks the write starts at the first one, the blocks up to the frame are copied
+        long startIndex = dedup == null ? firstIndex : dedup.freeze(f, firstIndex);
+        if (startIndex < firstIndex) {
+            prev = FNodeTable.END;
+            old = current.firstBlock();
+            for (long i = 0; i < startIndex; i++) {
+                prev = old;
+                old = fnodes.next(old);
+            }
+        }
+        int oldFirst = old;
+        int lastReplaced = FNodeTable.END;
+        long replaced = 0;
+        long replacedStored = 0;
+
+        MetadataUpdate update = new MetadataUpdate();
+        int newFirst = FNodeTable.END;
+        int newLast = FNodeTable.END;
+        int newCount = 0;
+        long newStored = 0;
+        long[] hashes = dedup == null ? null : new long[perFrame];
+        try {
+            for (long i = startIndex; i < firstIndex; ) {
+                int n = (int) Math.min(perFrame, firstIndex - i);
+                for (int k = 0; k < n; k++) {
+                    blockCache.read(old, 0, stored, k * BLOCK_SIZE, BLOCK_SIZE);
+                    lastReplaced = old;
+                    old = fnodes.next(old);
+                }
+                newLast = storeBlocks(stored, n, newLast, blocks, update);
+                if (newFirst == FNodeTable.END) newFirst = blocks[0];
+                hashes = hashStored(hashes, newCount, stored, n);
+                newCount += n;
+                replaced += n;
+                i += n;
+            }
+            for (long k = firstFrame; k <= lastFrame; k++) {
+                long frameStart = k * frameSize;
+                int len = (int) Math.min(frameSize, newSize - frameStart);
+                if (k < oldFrames) {
+                    // the old frame is inflated only if some of it is kept
+                    int oldLen = (int) Math.min(frameSize, size - frameStart);
+                    boolean covered = start <= frameStart && end >= frameStart + oldLen;
+                    int n = frameBlocks(old, stored);
+                    replacedStored += FrameCodec.storedSize(FrameCodec.header(stored, 0));
+                    for (int b = 0; b < n; b++) {
+                        if (old == FNodeTable.END) throw new IOException("File chain ends inside a frame.");
+                        if (!covered) blockCache.read(old, 0, stored, b * BLOCK_SIZE, BLOCK_SIZE);
+                        lastReplaced = old;
+                        old = fnodes.next(old);
+                    }
+                    replaced += n;
+                    if (!covered) codec.decode(stored, 0, plain, 0, oldLen);
+                }
+                int from = (int) Math.max(0, start - frameStart);
+                int to = (int) Math.min(len, end - frameStart);
+                source.read(plain, from, to - from);
+                int n = codec.encode(plain, 0, len, stored, 0);
+                newStored += FrameCodec.storedSize(FrameCodec.header(stored, 0));
+                newLast = storeBlocks(stored, n, newLast, blocks, update);
+                if (newFirst == FNodeTable.END) newFirst = blocks[0];
+                hashes = hashStored(hashes, newCount, stored, n);
+                newCount += n;
+            }
+            // a range to the end also replaces what follows the last frame, the block createFile reserved
+            if (end >= size) {
+                for (; old != FNodeTable.END; old = fnodes.next(old)) {
+                    lastReplaced = old;
+                    replaced++;
+                }
+            }
+            CrashPoint.hit(CrashPoint.DATA_WRITTEN);
+        } catch (Exception e) {
+            if (newFirst != FNodeTable.END) discardChain(newFirst);
+            throw e;
+        }
+
+        long storedSize = current.storedSize() - replacedStored + newStored;
+        relink(inodeIndex, f, update, new Splice(prev, oldFirst, lastReplaced, old, newFirst, newLast,
+                startIndex, startIndex + newCount - 1, startIndex + replaced - 1, hashes), newSize, true, storedSize);
+        return newSize;
+    }
+
+    //allocates and journals n blocks for the first n of buf, links them after last (END: they start a
+    //new chain) and writes them; their numbers go to blocks, the last is returned
+    private int storeBlocks(byte[] buf, int n, int last, int[] blocks, MetadataUpdate update) throws Exception {
+        if (!ensureFree(n)) throw new Exception("Not enough free blocks.");
+        int first = allocateChain(n, update);
+        if (first == -1) throw new Exception("Not enough free blocks.");
+        if (dedup != null) dedup.allocated(first, n);
+        if (last != FNodeTable.END) {
+            fnodes.setNext(last, first);
+            logNext(update, last);
+        }
+        for (int i = 0, b = first; i < n; i++, b = fnodes.next(b)) blocks[i] = b;
+        try {
+            writeBlocks(buf, blocks, n);
+        } catch (Exception e) {
+            // linked blocks are discarded with the chain they were linked to
+            if (last == FNodeTable.END) discardChain(first);
+            throw e;
+        }
+        return blocks[n - 1];
+    }
+
+    //with shared blocks: hashes grown to hold the content hashes of the n blocks in buf from index at
+    private long[] hashStored(long[] hashes, int at, byte[] buf, int n) {
+        if (hashes == null) return null;
+        if (at + n > hashes.length) hashes = Arrays.copyOf(hashes, Math.max(at + n, hashes.length * 2));
+        for (int i = 0; i < n; i++) hashes[at + i] = DedupIndex.hash(buf, i * BLOCK_SIZE, BLOCK_SIZE);
+        return hashes;
+    }
+
+    //new blocks newFirst..newLast, indices start..last, that take the place of oldFirst..lastReplaced
+    //(END: nothing), indices start..oldLast, between prev and after (END: the inode, the end of the chain)
+    private record Splice(int prev, int oldFirst, int lastReplaced, int after, int newFirst, int newLast,
+                          long start, long last, long oldLast, long[] hashes) {}
+
+    //commits a ranged write of f once its new blocks are written: they go into the published chain in
+    //place, in one metadata update, and reads running across the relink retry
+    private void relink(int inodeIndex, FEntry f, MetadataUpdate update, Splice s, long newSize, boolean compressed,
+                        long storedSize) throws IOException {
+        int first = s.prev() == FNodeTable.END ? s.newFirst() : f.getFirstBlock();
+        logNext(update, s.newLast(), s.after());
+        if (s.prev() != FNodeTable.END) logNext(update, s.prev(), s.newFirst());
+        int[] freed = s.lastReplaced() == FNodeTable.END || dedup != null ? NO_BLOCKS : unlinkChain(s.oldFirst(), s.lastReplaced(), update);
+        logInode(update, inodeIndex, f, newSize, first, compressed, storedSize);
+        long seq = saveMetadata(update, true);
+        journal.awaitDurable(seq);
+
+        f.acquireRelink();
+        try {
+            fnodes.setNext(s.newLast(), s.after());
+            if (s.prev() != FNodeTable.END) fnodes.setNext(s.prev(), s.newFirst());
+            FEntry.Version replaced = f.publish(newSize, first, compressed, storedSize);
+            if (dedup == null) {
+                releaseBlocks(freed, seq, replaced);
+            } else {
+                releaseBlocks(dedup.relinked(f, replaced, s.prev(), s.oldFirst(), s.newFirst(), s.start(), s.last(),
+                        s.oldLast(), s.hashes(), s.after()), seq);
+            }
+        } finally {
+            f.releaseRelink();
+        }
+    }
+
+    //writes count whole blocks from buf, one device write per run of consecutive blocks
+    private void writeBlocks(byte[] buf, int[] blocks, int count) throws IOException {
+        int run = 0;
+        for (int i = 1; i <= count; i++) {
+            if (i == count || blocks[i] != blocks[i - 1] + 1) {
+                disk.write(blockToOffset(blocks[run]), buf, run * BLOCK_SIZE, (i - run) * BLOCK_SIZE);
+                for (int k = run; k < i; k++) blockCache.invalidate(blocks[k]);
+                run = i;
+            }
+        }
+    }
+
+    //copies up to length bytes at offset of the current version without taking the file's lock,
+    //null when ranged writes kept relinking the chain during the copy (OPTIMISTIC_TRIES attempts),
+    //when the request would fail or the file is compressed, the caller then reads under the lock; a
+    //relink can leave a torn walk behind so every block is range checked
+    private byte[] readOptimistic(int inodeIndex, FEntry f, long offset, long length) {
+        for (int attempt = 0; attempt < OPTIMISTIC_TRIES; attempt++) {
+            if (attempt > 0) Metrics.OPTIMISTIC_RETRIES.increment();
+            long stamp = f.tryOptimisticRead();
+            if (stamp == 0) return null;
+            FEntry.Version v = f.pin();
+            try {
+                if (!stillExists(inodeIndex, f) || v.isCompressed()) return null;
+                long size = v.size();
+                int first = v.firstBlock();
+                FEntry.ChainHint hint = v.getChainHint();
+                if (offset > size) return null;
+                long total = Math.min(length, size - offset);
+                if (total > Integer.MAX_VALUE - 8) return null;
+
+                byte[] data = new byte[(int) total];
+                long index = offset / BLOCK_SIZE;
+                long i = 0;
+                int block = first;
+                if (hint != null && hint.index() <= index) {
+                    i = hint.index();
+                    block = hint.block();
+                }
+                for (; i < index && block >= 0 && block < MAXBLOCKS; i++) block = fnodes.next(block);
+                int inBlock = (int) (offset % BLOCK_SIZE);
+                int done = 0;
+                while (done < total && block >= 0 && block < MAXBLOCKS) {
+                    int n = (int) Math.min(BLOCK_SIZE - inBlock, total - done);
+                    blockCache.read(block, inBlock, data, done, n);
+                    done += n;
+                    inBlock = 0;
+                    if (done == total) break;
+                    block = fnodes.next(block);
+                    index++;
+                }
+                if (f.validate(stamp) && done == total) {
+                    // the hint belongs to v, a relink publishes a new version without one
+                    if (total > 0) v.setChainHint(new FEntry.ChainHint(index, block));
+                    return data;
+                }
+            } catch (IOException | RuntimeException e) {
+                // torn walk seen mid-relink, the locked read reports real errors
             } finally {
-                globalLock.unlock();
+                f.unpin(v);
             }
+        }
+        return null;
+    }
+
+    //sends total bytes from offset of the compressed contents (size bytes) stored from first to sink,
+    //inflating only the frames the range falls in; v (null: contents not published) keeps the frame
+    //after the range as its hint
+    private void readFrames(int first, long size, FEntry.Version v, long offset, long total, ChunkSink sink) throws IOException {
+        int frameSize = codec.frameSize();
+        long frame = offset / frameSize;
+        long k = 0;
+        int block = first;
+        FEntry.ChainHint hint = v == null ? null : v.getChainHint();
+        if (hint != null && hint.index() <= frame) {
+            k = hint.index();
+            block = hint.block();
+        }
+        byte[] stored = new byte[codec.maxBlocks(frameSize) * BLOCK_SIZE];
+        for (; k < frame; k++) block = skipFrame(block, stored);
+        byte[] plain = new byte[(int) Math.min(frameSize, size)];
+        long done = 0;
+        while (done < total) {
+            long frameStart = k * frameSize;
+            int length = (int) Math.min(frameSize, size - frameStart);
+            block = readFrame(block, stored);
+            codec.decode(stored, 0, plain, 0, length);
+            int from = (int) (offset + done - frameStart);
+            int n = (int) Math.min(length - from, total - done);
+            sink.accept(plain, from, n);
+            done += n;
+            k++;
+        }
+        if (v != null && block != FNodeTable.END) v.setChainHint(new FEntry.ChainHint(k, block));
+    }
+
+    //blocks of the frame stored from block on, read from its header into buf
+    private int frameBlocks(int block, byte[] buf) throws IOException {
+        if (block == FNodeTable.END) throw new IOException("File chain ends before its last frame.");
+        blockCache.read(block, 0, buf, 0, FrameCodec.HEADER_SIZE);
+        int n = codec.blocks(FrameCodec.header(buf, 0));
+        if (n > codec.maxBlocks(codec.frameSize())) throw new IOException("Corrupted frame header in block " + block + ".");
+        return n;
+    }
+
+    //reads the frame stored from block on into buf, returns the block after it
+    private int readFrame(int block, byte[] buf) throws IOException {
+        int n = frameBlocks(block, buf);
+        for (int i = 0; i < n; i++) {
+            if (block == FNodeTable.END) throw new IOException("File chain ends inside a frame.");
+            blockCache.read(block, 0, buf, i * BLOCK_SIZE, BLOCK_SIZE);
+            block = fnodes.next(block);
+        }
+        return block;
+    }
+
+    //the block after the frame stored from block on
+    private int skipFrame(int block, byte[] buf) throws IOException {
+        int n = frameBlocks(block, buf);
+        for (int i = 0; i < n; i++) {
+            if (block == FNodeTable.END) throw new IOException("File chain ends inside a frame.");
+            block = fnodes.next(block);
+        }
+        return block;
+    }
+
+    //block holding the index-th block of a version, walked from its hint when that is not past it
+    private int seek(FEntry.Version v, long index) {
+        long i = 0;
+        int b = v.firstBlock();
+        FEntry.ChainHint hint = v.getChainHint();
+        if (hint != null && hint.index() <= index) {
+            i = hint.index();
+            b = hint.block();
+        }
+        for (; i < index; i++) b = fnodes.next(b);
+        return b;
+    }
+
+    //deletes the whole file
+    public void deleteFile(String fileName) throws Exception {
+        int inodeIndex = findInodeIndex(fileName);
+        if (inodeIndex == -1) throw new Exception("File does not exist.");
+
+        FEntry f = inodeTable.get(inodeIndex);
+        if (f == null) throw new Exception("File does not exist.");
+        f.acquireWrite();
+        try {
+            if (!stillExists(inodeIndex, f)) throw new Exception("File does not exist.");
+            MetadataUpdate update = new MetadataUpdate();
+            int oldFirst = f.getFirstBlock();
+            int[] freed = dedup == null ? unlinkChain(oldFirst, FNodeTable.END, update) : NO_BLOCKS;
+            logInode(update, inodeIndex, null);
+            long seq = saveMetadata(update, false);
+            // like a write, the delete is seen only once a crash can no longer undo it; the name and slot
+            // are released after the record, so a create reusing them is journaled after it
+            journal.awaitDurable(seq);
+            nameIndex.remove(f.getFilename());
+            inodeTable.set(inodeIndex, null);
+            // reads already running finish on the old contents
+            FEntry.Version old = f.publish(0, FNodeTable.END);
+            if (dedup == null) releaseBlocks(freed, seq, old);
+            else releaseChain(oldFirst, seq, old);
+            if (inodeIndex < nextFreeSlot) nextFreeSlot = inodeIndex;
+            listVersion.incrementAndGet();
         } finally {
             f.releaseWrite();
         }
     }
 
-    //lists all files
-    public String[] listFiles() {
-        globalLock.lock();
+    //what a name stands for while a batch runs: the file it started with (write locked by the batch)
+    //and what the batch has made of it so far, published only once the batch is durable
+    private static final class Staged {
+        final FEntry original;
+        final int originalSlot;
+        FEntry entry;
+        int slot;
+        long size;
+        int first;
+        //stored as frames, in storedSize bytes
+        boolean compressed;
+        long storedSize;
+        //the original's published chain, once the batch replaced or deleted it; with shared blocks
+        //just its first block, after an append to it only the blocks the append took the place of
+        int[] replaced;
+        //an append to the published chain: the link from spliceFrom to spliceTo (the block at
+        //spliceIndex) that goes into it when the batch publishes, END while there is none
+        int spliceFrom = FNodeTable.END;
+        int spliceTo = FNodeTable.END;
+        long spliceIndex;
+        //the batch holds the name as RESERVED in nameIndex
+        boolean reserved;
+        //with shared blocks: hashes of the new blocks staged contents start with, how many there are,
+        //and where the suffix they link to starts
+        long[] hashes;
+        int fresh;
+        long sharedFrom = Long.MAX_VALUE;
+
+        Staged(FEntry original, int slot) {
+            this.original = original;
+            this.originalSlot = slot;
+            this.entry = original;
+            this.slot = slot;
+            if (original != null) {
+                FEntry.Version v = original.getVersion();
+                this.size = v.size();
+                this.first = v.firstBlock();
+                this.compressed = v.isCompressed();
+                this.storedSize = v.storedSize();
+            }
+        }
+    }
+
+    //what a batch has changed so far, for publishing it or taking it back
+    private static final class BatchState {
+        final TreeMap<String, Staged> names = new TreeMap<>();
+        //chains allocated by the batch, first blocks; with shared blocks also suffixes it took references to
+        final ArrayList<Integer> allocated = new ArrayList<>();
+        //chains allocated by the batch and replaced again, never published
+        final ArrayList<int[]> unpublished = new ArrayList<>();
+        //slots claimed by creates, with their entries
+        final ArrayList<FEntry> created = new ArrayList<>();
+        final ArrayList<Integer> createdSlots = new ArrayList<>();
+        boolean wroteData;
+    }
+
+    //runs the batch's operations in order as one metadata record with one journal flush. The files it
+    //names are write locked (in name order, so two batches never wait on each other in a cycle) until
+    //the record is durable and the results are published. An operation that fails leaves nothing
+    //behind; in an atomic batch it also takes back the operations before it and nothing is journaled.
+    public Batch.Result[] execute(Batch batch) throws Exception {
+        List<Batch.Op> ops = batch.ops();
+        Batch.Result[] results = new Batch.Result[ops.size()];
+        BatchState state = new BatchState();
+        for (Batch.Op op : ops) {
+            if (op.name() != null) state.names.putIfAbsent(op.name(), null);
+        }
         try {
-            return java.util.Arrays.stream(inodeTable)
-                    .filter(e -> e != null)
-                    .map(FEntry::getFilename)
-                    .toArray(String[]::new);
+            for (Map.Entry<String, Staged> e : state.names.entrySet()) e.setValue(lockForBatch(e.getKey()));
+
+            MetadataUpdate update = new MetadataUpdate();
+            for (int i = 0; i < ops.size(); i++) {
+                MetadataUpdate opUpdate = new MetadataUpdate();
+                try {
+                    results[i] = runStaged(ops.get(i), state, opUpdate);
+                    update.addAll(opUpdate);
+                } catch (Exception e) {
+                    String message = e.getMessage() == null ? e.toString() : e.getMessage();
+                    results[i] = Batch.Result.failed(message);
+                    if (batch.isAtomic()) {
+                        abortBatch(state);
+                        for (int k = 0; k < results.length; k++) {
+                            if (k != i) results[k] = Batch.Result.failed("Batch aborted, operation " + (i + 1) + " failed.");
+                        }
+                        return results;
+                    }
+                }
+            }
+            if (!update.isEmpty()) {
+                long seq = saveMetadata(update, state.wroteData);
+                journal.awaitDurable(seq);
+                publishBatch(state, seq);
+            }
+            return results;
         } finally {
-            globalLock.unlock();
+            for (Staged s : state.names.values()) {
+                if (s != null && s.original != null) s.original.releaseWrite();
+            }
+        }
+    }
+
+    private Staged lockForBatch(String name) {
+        int slot = findInodeIndex(name);
+        FEntry f = slot == -1 ? null : inodeTable.get(slot);
+        if (f == null) return new Staged(null, -1);
+        f.acquireWrite();
+        if (stillExists(slot, f)) return new Staged(f, slot);
+        f.releaseWrite();
+        return new Staged(null, -1);
+    }
+
+    //one operation against the batch's view; it changes shared state only once it can no longer fail
+    private Batch.Result runStaged(Batch.Op op, BatchState state, MetadataUpdate update) throws Exception {
+        Staged s = op.name() == null ? null : state.names.get(op.name());
+        if (s == null && op.kind() != Batch.Kind.LIST) throw new IllegalArgumentException("Filename cannot be null or empty.");
+        switch (op.kind()) {
+            case CREATE: {
+                String name = op.name();
+                if (name.isEmpty()) throw new IllegalArgumentException("Filename cannot be null or empty.");
+                if (name.length() > 11) throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
+                if (s.entry != null) throw new IllegalArgumentException("File with the name " + name + " already exists.");
+                // a name the batch found free is held like createFile holds it
+                boolean reserve = s.original == null && !s.reserved;
+                if (reserve && nameIndex.putIfAbsent(name, RESERVED) != null)
+                    throw new IllegalArgumentException("File with the name " + name + " already exists.");
+                boolean compressed = codec.compresses(name);
+                FEntry entry = new FEntry(name, 0, FNodeTable.END, compressed, 0);
+                int slot = -1;
+                int block = -1;
+                try {
+                    slot = claimSlot(entry);
+                    if (slot == -1) throw new Exception("Maximum number of files reached.");
+                    if (ensureFree(1)) block = freeBlocks.allocate();
+                    if (block == -1) throw new Exception("No free blocks available.");
+                } catch (Exception e) {
+                    if (slot != -1) inodeTable.set(slot, null);
+                    if (reserve) nameIndex.remove(name, RESERVED);
+                    throw e;
+                }
+                fnodes.setNext(block, FNodeTable.END);
+                if (dedup != null) dedup.allocated(block, 1);
+                logInode(update, slot, entry, 0, block, compressed, 0);
+                logNext(update, block);
+                if (reserve) s.reserved = true;
+                s.entry = entry;
+                s.slot = slot;
+                s.size = 0;
+                s.first = block;
+                s.compressed = compressed;
+                s.storedSize = 0;
+                s.hashes = null;
+                state.allocated.add(block);
+                state.created.add(entry);
+                state.createdSlots.add(slot);
+                return Batch.Result.DONE;
+            }
+
+            case WRITE:
+                if (s.entry == null) throw new Exception("File does not exist.");
+                stageContents(s, op.data(), state, update);
+                return Batch.Result.DONE;
+
+            case APPEND: {
+                if (s.entry == null) throw new Exception("File does not exist.");
+                if (dedup == null && !s.compressed) {
+                    appendStaged(s, op.data(), state, update);
+                    return new Batch.Result(null, null, s.size, null);
+                }
+                // frames and shared blocks are stored again as a whole
+                byte[] old = readStaged(s);
+                byte[] data = Arrays.copyOf(old, old.length + op.data().length);
+                System.arraycopy(op.data(), 0, data, old.length, op.data().length);
+                stageContents(s, data, state, update);
+                return new Batch.Result(null, null, data.length, null);
+            }
+
+            case READ:
+                if (s.entry == null) throw new Exception("File does not exist.");
+                return new Batch.Result(null, readStaged(s), s.size, null);
+
+            case DELETE:
+                if (s.entry == null) throw new Exception("File does not exist.");
+                unlinkStaged(s, state, update);
+                logInode(update, s.slot, null);
+                s.entry = null;
+                s.size = 0;
+                s.first = FNodeTable.END;
+                s.compressed = false;
+                s.storedSize = 0;
+                s.hashes = null;
+                return Batch.Result.DONE;
+
+            case LIST: {
+                LinkedHashSet<String> names = new LinkedHashSet<>(Arrays.asList(listFiles()));
+                for (Map.Entry<String, Staged> e : state.names.entrySet()) {
+                    if (e.getValue().entry == null) names.remove(e.getKey());
+                    else names.add(e.getKey());
+                }
+                return new Batch.Result(null, null, names.size(), names.toArray(new String[0]));
+            }
+
+            default:
+                throw new Exception("Unsupported batch operation " + op.kind());
+        }
+    }
+
+    //new contents in fresh blocks, the staged chain they replace is unlinked
+    private void stageContents(Staged s, byte[] data, BatchState state, MetadataUpdate update) throws Exception {
+        FrameCodec.Encoded encoded = codec.compresses(s.entry.getFilename()) ? codec.encodeAll(data) : null;
+        byte[] stored = encoded == null ? data : encoded.blocks();
+        int blocksNeeded = (int) ((stored.length + (long) BLOCK_SIZE - 1) / BLOCK_SIZE);
+        long[] hashes = null;
+        DedupIndex.Suffix suffix = null;
+        if (dedup != null) {
+            hashes = hashBlocks(stored, blocksNeeded);
+            suffix = takeStoredSuffix(stored, hashes, blocksNeeded);
+        }
+        int fresh = suffix == null ? blocksNeeded : suffix.index();
+        int first = suffix == null ? FNodeTable.END : suffix.block();
+        try {
+            // no truncate first as in writeFile, the batch may still be taken back
+            if (!ensureFree(fresh)) throw new Exception("Not enough free blocks.");
+            if (fresh > 0) {
+                int chain = allocateChain(fresh, update);
+                if (chain == -1) throw new Exception("Not enough free blocks.");
+                if (dedup != null) dedup.allocated(chain, fresh);
+                try {
+                    writeChain(stored, chain);
+                    CrashPoint.hit(CrashPoint.DATA_WRITTEN);
+                } catch (Exception e) {
+                    discardChain(chain);
+                    throw e;
+                }
+                if (suffix != null) linkSuffix(chain, fresh, suffix.block(), update);
+                first = chain;
+            }
+        } catch (Exception e) {
+            if (suffix != null) releaseChain(suffix.block(), journal.lastSeq(), null);
+            throw e;
+        }
+        if (first != FNodeTable.END) state.allocated.add(first);
+        unlinkStaged(s, state, update);
+        s.compressed = encoded != null;
+        s.storedSize = s.compressed ? encoded.storedSize() : data.length;
+        logInode(update, s.slot, s.entry, data.length, first, s.compressed, s.storedSize);
+        s.size = data.length;
+        s.first = first;
+        s.hashes = hashes;
+        s.fresh = fresh;
+        s.sharedFrom = suffix == null ? Long.MAX_VALUE : suffix.index();
+        state.wroteData = true;
+    }
+
+    //appends to a plain file the way appendFile does: its last block and the new ones are written to
+    //fresh blocks that take the place of that last block, the blocks before it are not touched. A
+    //chain the batch allocated is relinked right away, the published one only when the batch publishes
+    private void appendStaged(Staged s, byte[] data, BatchState state, MetadataUpdate update) throws Exception {
+        if (data.length == 0) return;
+        long size = s.size;
+        long end = size + data.length;
+        long firstIndex = size / BLOCK_SIZE;
+        long lastIndex = (end - 1) / BLOCK_SIZE;
+        if (lastIndex - firstIndex >= MAXBLOCKS) throw new Exception("Not enough free blocks.");
+        int count = (int) (lastIndex - firstIndex + 1);
+        int prev = firstIndex == 0 ? FNodeTable.END : stagedBlock(s, firstIndex - 1);
+        int oldFirst = prev == FNodeTable.END ? s.first : stagedNext(s, prev);
+
+        // the bytes of the last block are carried over
+        int carried = (int) (size - firstIndex * BLOCK_SIZE);
+        byte[] tail = new byte[carried + data.length];
+        if (carried > 0) blockCache.read(oldFirst, 0, tail, 0, carried);
+        System.arraycopy(data, 0, tail, carried, data.length);
+        if (!ensureFree(count)) throw new Exception("Not enough free blocks.");
+        int newFirst = allocateChain(count, update);
+        if (newFirst == -1) throw new Exception("Not enough free blocks.");
+        try {
+            writeChain(tail, newFirst);
+            CrashPoint.hit(CrashPoint.DATA_WRITTEN);
+        } catch (Exception e) {
+            discardChain(newFirst);
+            throw e;
+        }
+
+        if (prev == FNodeTable.END) {
+            // the file had less than a block, all of it is replaced
+            state.allocated.add(newFirst);
+            unlinkStaged(s, state, update);
+            s.first = newFirst;
+        } else {
+            boolean ownsPrev = ownsStaged(s, firstIndex - 1);
+            if (oldFirst != FNodeTable.END && ownsStaged(s, firstIndex)) {
+                // never published; an abort frees it as the chain it is once cut off
+                if (oldFirst != s.spliceTo) state.allocated.add(oldFirst);
+                state.unpublished.add(unlinkChain(oldFirst, FNodeTable.END, update));
+            } else if (oldFirst != FNodeTable.END) {
+                s.replaced = unlinkChain(oldFirst, FNodeTable.END, update);
+            }
+            if (ownsPrev) {
+                fnodes.setNext(prev, newFirst);
+                logNext(update, prev);
+            } else {
+                // readers still walk the published chain until the batch publishes
+                if (s.replaced == null) s.replaced = NO_BLOCKS;
+                logNext(update, prev, newFirst);
+                state.allocated.add(newFirst);
+                s.spliceFrom = prev;
+                s.spliceTo = newFirst;
+                s.spliceIndex = firstIndex;
+            }
         }
+        logInode(update, s.slot, s.entry, end, s.first, false, end);
+        s.size = end;
+        s.storedSize = end;
+        state.wroteData = true;
+    }
+
+    //true if the index-th block of the staged chain was allocated by the batch, so nobody else reads it
+    private static boolean ownsStaged(Staged s, long index) {
+        if (s.spliceTo != FNodeTable.END) return index >= s.spliceIndex;
+        return s.entry != s.original || s.replaced != null;
+    }
+
+    //the index-th block of the staged chain, the published part walked from its version's hint
+    private int stagedBlock(Staged s, long index) {
+        if (!ownsStaged(s, index)) return seek(s.original.getVersion(), index);
+        long i = 0;
+        int b = s.first;
+        if (s.spliceTo != FNodeTable.END) {
+            i = s.spliceIndex;
+            b = s.spliceTo;
+        }
+        for (; i < index; i++) b = fnodes.next(b);
+        return b;
+    }
+
+    //the block after b in the staged chain, which takes the link an append has not published yet
+    private int stagedNext(Staged s, int b) {
+        return b == s.spliceFrom ? s.spliceTo : fnodes.next(b);
+    }
+
+    //journals the staged chain as unlinked; the original's published one is released when the batch
+    //publishes, one the batch allocated itself is never read by anyone. With shared blocks nothing is
+    //journaled, the chain's reference is dropped when the batch publishes
+    private void unlinkStaged(Staged s, BatchState state, MetadataUpdate update) {
+        if (s.spliceTo != FNodeTable.END) {
+            // the published blocks up to the append join those it replaced, the ones it added never were
+            int[] kept = unlinkChain(s.first, s.spliceFrom, update);
+            int[] blocks = Arrays.copyOf(kept, kept.length + s.replaced.length);
+            System.arraycopy(s.replaced, 0, blocks, kept.length, s.replaced.length);
+            s.replaced = blocks;
+            state.unpublished.add(unlinkChain(s.spliceTo, FNodeTable.END, update));
+            s.spliceFrom = FNodeTable.END;
+            s.spliceTo = FNodeTable.END;
+            return;
+        }
+        int[] blocks;
+        if (dedup == null) blocks = unlinkChain(s.first, FNodeTable.END, update);
+        else blocks = s.first == FNodeTable.END ? NO_BLOCKS : new int[] { s.first };
+        if (s.entry == s.original && s.replaced == null) s.replaced = blocks;
+        else state.unpublished.add(blocks);
+    }
+
+    //writes data into the chain from first, as far as it goes; with shared blocks a partial last block
+    //is zero padded so it matches the hash it is indexed by
+    private void writeChain(byte[] data, int first) throws IOException {
+        int offset = 0;
+        for (int block = first; offset < data.length && block != FNodeTable.END; block = fnodes.next(block)) {
+            int n = Math.min(BLOCK_SIZE, data.length - offset);
+            if (dedup != null && n < BLOCK_SIZE) disk.write(blockToOffset(block), Arrays.copyOfRange(data, offset, offset + BLOCK_SIZE), 0, BLOCK_SIZE);
+            else disk.write(blockToOffset(block), data, offset, n);
+            blockCache.invalidate(block);
+            offset += n;
+        }
+    }
+
+    //releases what the batch replaced: chains, or with shared blocks the first blocks of chains
+    private void releaseReplaced(int[] blocks, long seq, FEntry.Version readBy) {
+        if (dedup == null) releaseBlocks(blocks, seq, readBy);
+        else for (int first : blocks) releaseChain(first, seq, readBy);
+    }
+
+    //lets other writes share the staged contents once they are published
+    private void indexStaged(Staged s) {
+        if (dedup != null && s.hashes != null) dedup.replaced(s.entry, s.first, s.hashes, s.fresh, s.sharedFrom);
+    }
+
+    private byte[] readStaged(Staged s) throws Exception {
+        if (s.size > Integer.MAX_VALUE - 8) throw new Exception("File is too large to read in one piece.");
+        byte[] data = new byte[(int) s.size];
+        if (s.compressed) {
+            readFrames(s.first, s.size, null, 0, s.size, ByteBuffer.wrap(data)::put);
+            return data;
+        }
+        int done = 0;
+        for (int block = s.first; done < data.length && block != FNodeTable.END; block = stagedNext(s, block)) {
+            int n = Math.min(BLOCK_SIZE, data.length - done);
+            blockCache.read(block, 0, data, done, n);
+            done += n;
+        }
+        return data;
+    }
+
+    //an aborted batch journaled nothing, so everything it allocated is reusable right away; with shared
+    //blocks its chains may link to suffixes other files hold, their references are dropped instead
+    private void abortBatch(BatchState state) {
+        for (int first : state.allocated) {
+            if (dedup == null) discardChain(first);
+            else releaseChain(first, journal.lastSeq(), null);
+        }
+        for (int slot : state.createdSlots) inodeTable.set(slot, null);
+        for (Map.Entry<String, Staged> e : state.names.entrySet()) {
+            if (e.getValue().reserved) nameIndex.remove(e.getKey(), RESERVED);
+        }
+    }
+
+    //makes a durable batch visible, the way the single operations publish their own changes
+    private void publishBatch(BatchState state, long seq) {
+        boolean listChanged = false;
+        for (Map.Entry<String, Staged> e : state.names.entrySet()) {
+            String name = e.getKey();
+            Staged s = e.getValue();
+            if (s.original != null && s.entry == s.original) {
+                if (s.replaced != null) {
+                    FEntry.Version old;
+                    if (s.spliceTo == FNodeTable.END) {
+                        old = s.original.publish(s.size, s.first, s.compressed, s.storedSize);
+                    } else {
+                        // an append's blocks go into the published chain the way relink puts them there
+                        s.original.acquireRelink();
+                        try {
+                            fnodes.setNext(s.spliceFrom, s.spliceTo);
+                            old = s.original.publish(s.size, s.first, s.compressed, s.storedSize);
+                        } finally {
+                            s.original.releaseRelink();
+                        }
+                    }
+                    indexStaged(s);
+                    releaseReplaced(s.replaced, seq, old);
+                }
+                continue;
+            }
+            if (s.original != null) {
+                inodeTable.set(s.originalSlot, null);
+                releaseReplaced(s.replaced, seq, s.original.publish(0, FNodeTable.END));
+                if (s.originalSlot < nextFreeSlot) nextFreeSlot = s.originalSlot;
+                listChanged = true;
+            }
+            if (s.entry != null) {
+                s.entry.publish(s.size, s.first, s.compressed, s.storedSize);
+                indexStaged(s);
+                nameIndex.put(name, s.slot);
+                listChanged = true;
+            } else if (s.original != null) {
+                nameIndex.remove(name, s.originalSlot);
+            } else if (s.reserved) {
+                nameIndex.remove(name, RESERVED);
+            }
+        }
+        // slots of files the batch created and deleted again
+        for (int i = 0; i < state.created.size(); i++) {
+            FEntry entry = state.created.get(i);
+            int slot = state.createdSlots.get(i);
+            if (state.names.get(entry.getFilename()).entry != entry) {
+                inodeTable.set(slot, null);
+                if (slot < nextFreeSlot) nextFreeSlot = slot;
+            }
+        }
+        for (int[] blocks : state.unpublished) releaseReplaced(blocks, seq, null);
+        if (listChanged) listVersion.incrementAndGet();
+    }
+
+    //lists all files, from a published snapshot that is rebuilt only after a create or delete
+    public String[] listFiles() {
+        long version = listVersion.get();
+        Listing current = listing;
+        if (current == null || current.version() != version) {
+            // a slot is listed once its create has published the name for it
+            ArrayList<String> names = new ArrayList<>();
+            for (int i = 0; i < MAXFILES; i++) {
+                FEntry e = inodeTable.get(i);
+                if (e != null && Integer.valueOf(i).equals(nameIndex.get(e.getFilename()))) names.add(e.getFilename());
+            }
+            current = new Listing(version, names.toArray(new String[0]));
+            listing = current;
+        }
+        return current.names().clone();
+    }
+
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    public int getFreeBlockCount() {
+        return freeBlocks.getFreeCount();
+    }
+
+    //the id stored in the volume, null if it has none
+    public String getVolumeId() {
+        return superblock.getVolumeId();
+    }
+
+    //true if the name is held, by a file or a create in progress
+    public boolean exists(String fileName) {
+        return nameIndex.containsKey(fileName);
+    }
+
+    //true if the volume was formatted or opened with Superblock.FEATURE_DEDUP
+    public boolean sharesBlocks() {
+        return dedup != null;
+    }
+
+    //true if the volume may hold compressed files, it has Superblock.FEATURE_COMPRESSION
+    public boolean compressesFiles() {
+        return superblock.hasFeature(Superblock.FEATURE_COMPRESSION);
+    }
+
+    //blocks other writes can find to share, 0 unless the volume shares blocks
+    public int getIndexedBlockCount() {
+        return dedup == null ? 0 : dedup.indexedBlocks();
+    }
+
+    //blocks writes linked to instead of storing them again, since the volume was opened
+    public long getSavedBlockCount() {
+        return dedup == null ? 0 : dedup.savedBlocks();
+    }
+
+    //logical bytes of the compressed files
+    public long getCompressedLogicalBytes() {
+        long sum = 0;
+        for (int i = 0; i < MAXFILES; i++) {
+            FEntry e = inodeTable.get(i);
+            FEntry.Version v = e == null ? null : e.getVersion();
+            if (v != null && v.isCompressed()) sum += v.size();
+        }
+        return sum;
+    }
+
+    //bytes of frame headers and payloads the compressed files are stored in, not counting the rest of
+    //their last blocks
+    public long getCompressedStoredBytes() {
+        long sum = 0;
+        for (int i = 0; i < MAXFILES; i++) {
+            FEntry e = inodeTable.get(i);
+            FEntry.Version v = e == null ? null : e.getVersion();
+            if (v != null && v.isCompressed()) sum += v.storedSize();
+        }
+        return sum;
+    }
+
+    //names in use, including creates still in progress
+    public int getFileCount() {
+        return nameIndex.size();
+    }
+
+    //the volume's part of the cache, fs, dedup and compression gauges; whoever opened it registers it
+    //with Metrics, close() takes it out of the sums again
+    public void gauges(ObjLongConsumer<String> gauge) {
+        gauge.accept("cache.hits", blockCache.getHits());
+        gauge.accept("cache.misses", blockCache.getMisses());
+        gauge.accept("cache.evictions", blockCache.getEvictions());
+        gauge.accept("fs.free_blocks", getFreeBlockCount());
+        gauge.accept("fs.files", getFileCount());
+        if (dedup != null) {
+            gauge.accept("dedup.indexed_blocks", getIndexedBlockCount());
+            gauge.accept("dedup.saved_blocks", getSavedBlockCount());
+        }
+        if (compressesFiles()) {
+            gauge.accept("compression.logical_bytes", getCompressedLogicalBytes());
+            gauge.accept("compression.stored_bytes", getCompressedStoredBytes());
+        }
+    }
+
+    public void close() throws Exception {
+        Metrics.unregister(this);
+        // pending frees go back to the bitmap, which is then stored for the next start
+        journal.awaitDurable(journal.lastSeq());
+        reclaimFreedBlocks();
+        journal.close();
+        writeBitmap();
+        disk.force();
+        disk.close();
     }
 }
@@ -0,0 +1,103 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.FEntry;
+import ca.concordia.filesystem.device.BlockDevice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//a read resolved to runs of contiguous bytes on the volume, sent to a channel by the device
+//(transferTo) or as one gathering write of views of the volume, never through a heap copy.
+//It holds no lock, only its version pinned until close(), so the blocks it sends are not reused meanwhile
+public final class FileTransfer implements Closeable {
+
+    //views handed to one gathering write
+    private static final int MAX_GATHER = 64;
+
+    private final BlockDevice disk;
+    private final FEntry entry;
+    private final FEntry.Version version;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int runs;
+    private final long length;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    //next run to send and how much of it went out already
+    private int run;
+    private long runDone;
+    private long sent;
+
+    FileTransfer(BlockDevice disk, FEntry entry, FEntry.Version version, long[] offsets, int[] lengths, int runs, long length) {
+        this.disk = disk;
+        this.entry = entry;
+        this.version = version;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.runs = runs;
+        this.length = length;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public long remaining() {
+        return length - sent;
+    }
+
+    //sends as much as the target takes, true once everything is out; a blocking target takes it all
+    public boolean writeTo(WritableByteChannel target) throws IOException {
+        if (closed.get()) throw new IOException("Transfer is closed.");
+        while (run < runs) {
+            long n = runs - run > 1 && target instanceof GatheringByteChannel g ? gather(g) : -1;
+            // one run, or a device without views: the device sends it
+            if (n < 0) n = disk.transferTo(offsets[run] + runDone, lengths[run] - runDone, target);
+            if (n == 0) return false;
+            advance(n);
+        }
+        return true;
+    }
+
+    //-1 if the device has no view of the next run
+    private long gather(GatheringByteChannel target) throws IOException {
+        int count = Math.min(MAX_GATHER, runs - run);
+        ByteBuffer[] views = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long skip = i == 0 ? runDone : 0;
+            ByteBuffer view = disk.view(offsets[run + i] + skip, (int) (lengths[run + i] - skip));
+            if (view == null || view.remaining() < lengths[run + i] - skip) {
+                // no view at all, or one cut at a mapping boundary: send what is whole
+                if (i == 0) return -1;
+                count = i;
+                break;
+            }
+            views[i] = view;
+        }
+        return target.write(views, 0, count);
+    }
+
+    private void advance(long n) {
+        sent += n;
+        while (n > 0) {
+            long left = lengths[run] - runDone;
+            if (n < left) {
+                runDone += n;
+                return;
+            }
+            n -= left;
+            run++;
+            runDone = 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        entry.unpin(version);
+    }
+}
@@ -0,0 +1,192 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Storage format of compressed files, and which files are compressed.
+ *
+ * The contents are cut into frames of frameSize() bytes, the last one shorter, and each is deflated
+ * on its own. A frame is stored from the start of a block as [i32 header][payload], padded to whole
+ * blocks. The header is the payload's length, with RAW set when deflating would not have saved a
+ * block and the payload is the frame as it is. A frame's length follows from its index and the file
+ * size. So a read finds a frame by stepping through the headers before it and inflates only the
+ * frames its range covers, and a ranged write stores again only the frames it changes.
+ *
+ * Compression is opt-in by file name: -Dfileserver.compress takes comma separated patterns where *
+ * and ? are wildcards ("*.txt,*.log", or "*" for every file), -Dfileserver.compress.level the deflate
+ * level from 1 (fastest) to 9 (smallest, default 6).
+ */
+final class FrameCodec {
+
+    public static final String PROPERTY = "fileserver.compress";
+    public static final String LEVEL_PROPERTY = "fileserver.compress.level";
+
+    //contents as frames: whole blocks, and the bytes of their headers and payloads
+    record Encoded(byte[] blocks, long storedSize) {}
+
+    static final int HEADER_SIZE = Integer.BYTES;
+    private static final int RAW = 1 << 31;
+    //logical bytes per frame, unless a block is larger than a quarter of it
+    private static final int FRAME_SIZE = 16 * 1024;
+    //idle deflaters and inflaters kept for reuse, each holds native memory
+    private static final int POOL_SIZE = 64;
+
+    private final int blockSize;
+    private final int frameSize;
+    private final int level;
+    //null when no file is compressed
+    private final Pattern names;
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    FrameCodec(int blockSize, String patterns, int level) {
+        if (level < 1 || level > 9) throw new IllegalArgumentException("Compression level must be between 1 and 9.");
+        this.blockSize = blockSize;
+        this.frameSize = Math.max(FRAME_SIZE, 4 * blockSize);
+        this.level = level;
+        this.names = patterns == null || patterns.isBlank() ? null : compile(patterns);
+    }
+
+    //the codec -Dfileserver.compress and -Dfileserver.compress.level ask for
+    static FrameCodec configured(int blockSize) {
+        return new FrameCodec(blockSize, System.getProperty(PROPERTY), Integer.getInteger(LEVEL_PROPERTY, 6));
+    }
+
+    //"*.txt,a?c" as one regular expression
+    private static Pattern compile(String patterns) {
+        StringBuilder regex = new StringBuilder();
+        for (String glob : patterns.split(",")) {
+            glob = glob.trim();
+            if (glob.isEmpty()) continue;
+            if (!regex.isEmpty()) regex.append('|');
+            StringBuilder literal = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                if (c == '*' || c == '?') {
+                    if (!literal.isEmpty()) regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                    regex.append(c == '*' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (!literal.isEmpty()) regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.isEmpty() ? null : Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    //true if some files are to be stored compressed
+    boolean isEnabled() {
+        return names != null;
+    }
+
+    //true if files with this name are to be stored compressed
+    boolean compresses(String name) {
+        return names != null && names.matcher(name).matches();
+    }
+
+    int frameSize() {
+        return frameSize;
+    }
+
+    //blocks a frame of length bytes takes at most, which is when it is stored raw
+    int maxBlocks(int length) {
+        return (HEADER_SIZE + length + blockSize - 1) / blockSize;
+    }
+
+    //blocks of the frame that starts with this header
+    int blocks(int header) {
+        return maxBlocks(header & ~RAW);
+    }
+
+    //bytes of the frame that starts with this header, its padding not included
+    static int storedSize(int header) {
+        return HEADER_SIZE + (header & ~RAW);
+    }
+
+    static int header(byte[] block, int off) {
+        return ByteBuffer.wrap(block, off, HEADER_SIZE).getInt();
+    }
+
+    //stores length bytes of src as one frame at out[outOff], which has room for maxBlocks(length) blocks;
+    //returns the blocks it took, the rest of the last one is zeroed
+    int encode(byte[] src, int off, int length, byte[] out, int outOff) {
+        int maxBlocks = maxBlocks(length);
+        // deflated is only worth it if it saves a block
+        int limit = (maxBlocks - 1) * blockSize - HEADER_SIZE;
+        int header = -1;
+        if (limit > 0) {
+            Deflater deflater = deflaters.poll();
+            if (deflater == null) deflater = new Deflater(level);
+            try {
+                deflater.setInput(src, off, length);
+                deflater.finish();
+                int n = 0;
+                while (n < limit && !deflater.finished()) n += deflater.deflate(out, outOff + HEADER_SIZE + n, limit - n);
+                if (deflater.finished()) header = n;
+            } finally {
+                deflater.reset();
+                if (deflaters.size() < POOL_SIZE) deflaters.offer(deflater);
+                else deflater.end();
+            }
+        }
+        if (header == -1) {
+            System.arraycopy(src, off, out, outOff + HEADER_SIZE, length);
+            header = length | RAW;
+        }
+        ByteBuffer.wrap(out, outOff, HEADER_SIZE).putInt(header);
+        int blocks = blocks(header);
+        int end = outOff + storedSize(header);
+        Arrays.fill(out, end, outOff + blocks * blockSize, (byte) 0);
+        return blocks;
+    }
+
+    //data cut into frames, an incompressible one costs its header and at most one more block
+    Encoded encodeAll(byte[] data) {
+        int frames = (data.length + frameSize - 1) / frameSize;
+        byte[] out = new byte[frames * maxBlocks(frameSize) * blockSize];
+        int blocks = 0;
+        long stored = 0;
+        for (int off = 0; off < data.length; off += frameSize) {
+            int at = blocks * blockSize;
+            blocks += encode(data, off, Math.min(frameSize, data.length - off), out, at);
+            stored += storedSize(header(out, at));
+        }
+        return new Encoded(Arrays.copyOf(out, blocks * blockSize), stored);
+    }
+
+    //inflates the frame at frame[off] into length bytes at dst[dstOff]
+    void decode(byte[] frame, int off, byte[] dst, int dstOff, int length) throws IOException {
+        int header = header(frame, off);
+        int payload = header & ~RAW;
+        if ((header & RAW) != 0) {
+            if (payload != length) throw new IOException("Corrupted frame: " + payload + " bytes stored for " + length + ".");
+            System.arraycopy(frame, off + HEADER_SIZE, dst, dstOff, length);
+            return;
+        }
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) inflater = new Inflater();
+        try {
+            inflater.setInput(frame, off + HEADER_SIZE, payload);
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int got = inflater.inflate(dst, dstOff + n, length - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += got;
+            }
+            if (n != length || !inflater.finished()) throw new IOException("Corrupted frame: inflated " + n + " of " + length + " bytes.");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted frame: " + e.getMessage(), e);
+        } finally {
+            inflater.reset();
+            if (inflaters.size() < POOL_SIZE) inflaters.offer(inflater);
+            else inflater.end();
+        }
+    }
+}
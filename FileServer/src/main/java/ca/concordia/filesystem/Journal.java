@@ -0,0 +1,240 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.device.BlockDevice;
+import ca.concordia.metrics.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+ * Write-ahead log for metadata updates, kept in a sidecar file next to the volume.
+ *
+ * layout: [checkpoint marker][record][record]...
+ *   every entry is [int magic][long seq][int payload length][int crc32 of payload][payload]
+ *   the marker has an empty payload and carries the last sequence already on the volume,
+ *   records follow with consecutive sequence numbers, the payload is a MetadataUpdate
+ *
+ * Updates are appended in memory by the thread that made them and made durable by whichever
+ * waiting thread takes the commit lock first: it writes every pending record with one journal
+ * force, then copies them to the volume. Everything that queued up during the previous force
+ * goes out in the next batch, so the number of forces follows the batches, not the clients.
+ * When the journal grows past its checkpoint size the volume is forced and the log starts over.
+ */
+final class Journal implements Closeable {
+
+    //-Dfileserver.journalSize=<bytes> sets how much log is kept before a checkpoint
+    static final String SIZE_PROPERTY = "fileserver.journalSize";
+    static final long DEFAULT_CHECKPOINT_SIZE = 4L << 20;
+
+    private static final int MAGIC = 0x4A524E4C; // "JRNL"
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+
+    private final BlockDevice log;
+    private final BlockDevice volume;
+    private final long checkpointSize;
+
+    //updates not yet in a batch, in sequence order
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final List<MetadataUpdate> pending = new ArrayList<>();
+    private boolean pendingDataSync;
+    private long lastSeq;
+
+    //one batch at a time, the holder is the thread doing the forces
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private volatile long durableSeq;
+    private long writePos;
+    private IOException failure;
+
+    Journal(BlockDevice log, BlockDevice volume) {
+        this.log = log;
+        this.volume = volume;
+        this.checkpointSize = Math.max(64 << 10, Long.getLong(SIZE_PROPERTY, DEFAULT_CHECKPOINT_SIZE));
+    }
+
+    //copies every committed record to the volume, returns how many were replayed
+    int recover() throws IOException {
+        int replayed = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long seq = readEntry(0, header, ByteBuffer.allocate(0));
+        if (seq >= 0) {
+            lastSeq = seq;
+            long pos = HEADER_SIZE;
+            // stops at the first torn, stale or missing record, those never reached the volume
+            while (readEntry(pos, header, null) == lastSeq + 1) {
+                ByteBuffer payload = ByteBuffer.allocate(header.getInt(12));
+                if (readEntry(pos, header, payload) != lastSeq + 1) break;
+                MetadataUpdate.applyEncoded(payload.flip(), volume);
+                lastSeq++;
+                pos += HEADER_SIZE + payload.limit();
+                replayed++;
+            }
+            if (replayed > 0) volume.force();
+        }
+        durableSeq = lastSeq;
+        writeMarker();
+        return replayed;
+    }
+
+    //forgets every record, used when a new volume is formatted
+    void reset() throws IOException {
+        commitLock.lock();
+        try {
+            // records of an older volume must not survive behind the new marker
+            log.setSize(0);
+            writeMarker();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    //queues an update and returns the sequence number to wait for
+    long append(MetadataUpdate update, boolean dataSync) {
+        appendLock.lock();
+        try {
+            pending.add(update);
+            if (dataSync) pendingDataSync = true;
+            return ++lastSeq;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    long lastSeq() {
+        appendLock.lock();
+        try {
+            return lastSeq;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    long durableSeq() {
+        return durableSeq;
+    }
+
+    //returns once the update with this sequence number is durable, the wait is recorded in Metrics.JOURNAL_WAIT
+    void awaitDurable(long seq) throws IOException {
+        if (durableSeq >= seq) return;
+        long start = System.nanoTime();
+        commitLock.lock();
+        try {
+            if (failure != null) throw new IOException("Journal is unusable after an earlier failure.", failure);
+            if (durableSeq >= seq) return;
+            try {
+                commitBatch();
+            } catch (IOException | RuntimeException e) {
+                failure = e instanceof IOException io ? io : new IOException(e);
+                throw e;
+            }
+        } finally {
+            commitLock.unlock();
+            Metrics.JOURNAL_WAIT.recordSince(start);
+        }
+    }
+
+    private void commitBatch() throws IOException {
+        List<MetadataUpdate> batch;
+        boolean dataSync;
+        long last;
+        appendLock.lock();
+        try {
+            batch = new ArrayList<>(pending);
+            pending.clear();
+            dataSync = pendingDataSync;
+            pendingDataSync = false;
+            last = lastSeq;
+        } finally {
+            appendLock.unlock();
+        }
+        if (batch.isEmpty()) return;
+        long began = System.nanoTime();
+
+        // file data the new metadata points at has to be on disk before the metadata is
+        if (dataSync) volume.force();
+
+        int bytes = 0;
+        for (MetadataUpdate u : batch) bytes += HEADER_SIZE + u.encodedSize();
+        if (writePos + bytes > checkpointSize && writePos > HEADER_SIZE) checkpoint();
+
+        ByteBuffer out = ByteBuffer.allocate(bytes);
+        CRC32 crc = new CRC32();
+        long seq = last - batch.size();
+        for (MetadataUpdate u : batch) {
+            int start = out.position();
+            out.position(start + HEADER_SIZE);
+            u.encode(out);
+            int len = out.position() - start - HEADER_SIZE;
+            crc.reset();
+            crc.update(out.array(), start + HEADER_SIZE, len);
+            out.putInt(start, MAGIC).putLong(start + 4, ++seq).putInt(start + 12, len).putInt(start + 16, (int) crc.getValue());
+        }
+        if (writePos + bytes > log.size()) log.setSize(Math.max(writePos + bytes, checkpointSize));
+        log.write(writePos, out.array(), 0, bytes);
+        CrashPoint.hit(CrashPoint.JOURNAL_WRITTEN);
+        log.force();
+        CrashPoint.hit(CrashPoint.JOURNAL_FORCED);
+        writePos += bytes;
+
+        // in sequence order so a later image of the same region wins
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).writeTo(volume);
+            if (i == 0) CrashPoint.hit(CrashPoint.APPLY_PARTIAL);
+        }
+        durableSeq = last;
+        if (writePos >= checkpointSize) checkpoint();
+        Metrics.JOURNAL_COMMIT.recordSince(began);
+        Metrics.JOURNAL_RECORDS.add(batch.size());
+    }
+
+    //the volume holds every record once it is forced, so the log can start over
+    private void checkpoint() throws IOException {
+        volume.force();
+        CrashPoint.hit(CrashPoint.CHECKPOINT);
+        writeMarker();
+    }
+
+    private void writeMarker() throws IOException {
+        ByteBuffer marker = ByteBuffer.allocate(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        marker.putInt(MAGIC).putLong(durableSeq).putInt(0).putInt((int) crc.getValue());
+        if (log.size() < HEADER_SIZE) log.setSize(checkpointSize);
+        log.write(0, marker.array(), 0, HEADER_SIZE);
+        log.force();
+        writePos = HEADER_SIZE;
+    }
+
+    //sequence number of a well-formed entry at pos, -1 otherwise; with a payload buffer of the
+    //entry's length the payload is read into it and checked against the crc
+    private long readEntry(long pos, ByteBuffer header, ByteBuffer payload) throws IOException {
+        if (pos + HEADER_SIZE > log.size()) return -1;
+        log.read(pos, header.array(), 0, HEADER_SIZE);
+        if (header.getInt(0) != MAGIC) return -1;
+        int len = header.getInt(12);
+        if (len < 0 || pos + HEADER_SIZE + len > log.size()) return -1;
+        if (payload == null) return header.getLong(4);
+        if (len != payload.capacity()) return -1;
+        log.read(pos + HEADER_SIZE, payload.array(), 0, len);
+        payload.position(len);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, len);
+        return (int) crc.getValue() == header.getInt(16) ? header.getLong(4) : -1;
+    }
+
+    //makes everything appended so far durable and checkpoints it
+    @Override
+    public void close() throws IOException {
+        awaitDurable(lastSeq());
+        commitLock.lock();
+        try {
+            checkpoint();
+        } finally {
+            commitLock.unlock();
+        }
+        log.close();
+    }
+}
@@ -0,0 +1,91 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.device.BlockDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//changed metadata regions (volume offset + new bytes) packed into one buffer
+final class MetadataUpdate {
+
+    private byte[] data = new byte[256];
+    private int size;
+    private long[] offsets = new long[8];
+    private int[] lengths = new int[8];
+    private int count;
+
+    //returns a buffer for len bytes that will be stored at offset, fill it before asking for the next region
+    ByteBuffer region(long offset, int len) {
+        if (size + len > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, size + len));
+        //extends the previous region when it ends exactly where this one starts
+        if (count > 0 && offsets[count - 1] + lengths[count - 1] == offset) {
+            lengths[count - 1] += len;
+        } else {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            offsets[count] = offset;
+            lengths[count] = len;
+            count++;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data, size, len).slice();
+        size += len;
+        return buf;
+    }
+
+    //adds every region of other after the ones already here
+    void addAll(MetadataUpdate other) {
+        int pos = 0;
+        for (int i = 0; i < other.count; i++) {
+            region(other.offsets[i], other.lengths[i]).put(other.data, pos, other.lengths[i]);
+            pos += other.lengths[i];
+        }
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int byteCount() {
+        return size;
+    }
+
+    //one device write per contiguous run
+    void writeTo(BlockDevice disk) throws IOException {
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            disk.write(offsets[i], data, pos, lengths[i]);
+            pos += lengths[i];
+        }
+    }
+
+    //bytes taken by encode()
+    int encodedSize() {
+        return count * (Long.BYTES + Integer.BYTES) + size;
+    }
+
+    //journal payload: [long offset][int length][bytes] per contiguous run
+    void encode(ByteBuffer out) {
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            out.putLong(offsets[i]);
+            out.putInt(lengths[i]);
+            out.put(data, pos, lengths[i]);
+            pos += lengths[i];
+        }
+    }
+
+    //writes an encoded payload back to the volume, used when the journal is replayed
+    static void applyEncoded(ByteBuffer in, BlockDevice disk) throws IOException {
+        while (in.hasRemaining()) {
+            long offset = in.getLong();
+            int len = in.getInt();
+            if (offset < 0 || len < 0 || len > in.remaining() || offset + len > disk.size())
+                throw new IOException("Journal record points outside the volume (" + offset + "+" + len + ").");
+            disk.write(offset, in.array(), in.arrayOffset() + in.position(), len);
+            in.position(in.position() + len);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.Superblock;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Files spread over several volumes, each with its own journal, block cache and locks. A name always
+ * lives on the volume a consistent-hash ring gives it, so every operation on one file runs on exactly
+ * one volume and volumes never wait on each other.
+ *
+ * Each volume is put on the ring at VIRTUAL_NODES points hashed from its id, which open() keeps in the
+ * volume's superblock: the directory as it was first given, so however it is spelled later ("./d1",
+ * "d1/", an absolute path) the volume keeps its place. Adding a volume therefore moves only the names
+ * that now land on it, and rebalance() moves them while the server is down. Until then nothing scans
+ * for them; a name missing from its volume is looked up on the others, and found there it fails with
+ * an error that says to rebalance instead of reading as not found.
+ */
+public final class ShardedFileStore implements FileStore {
+
+    //each directory holds one volume under this name
+    public static final String VOLUME_FILE = "filesystem.dat";
+    //ring points per volume, enough for every volume to own close to 1/N of the names
+    private static final int VIRTUAL_NODES = 128;
+
+    private final String[] ids;
+    private final FileSystemManager[] volumes;
+    //ring points in ascending order and the volume each one belongs to
+    private final long[] points;
+    private final int[] owners;
+
+    private record Point(long hash, int volume) {}
+
+    //ids name the volumes on the ring and must stay the same from one start to the next
+    public ShardedFileStore(List<String> ids, List<FileSystemManager> volumes) {
+        if (ids.isEmpty() || ids.size() != volumes.size()) throw new IllegalArgumentException("Need one id per volume.");
+        if (new HashSet<>(ids).size() != ids.size()) throw new IllegalArgumentException("Volume ids must be unique: " + ids);
+        this.ids = ids.toArray(new String[0]);
+        this.volumes = volumes.toArray(new FileSystemManager[0]);
+
+        Point[] ring = new Point[this.ids.length * VIRTUAL_NODES];
+        for (int v = 0; v < this.ids.length; v++) {
+            for (int k = 0; k < VIRTUAL_NODES; k++) ring[v * VIRTUAL_NODES + k] = new Point(hash(this.ids[v] + "#" + k), v);
+        }
+        // a tie between two points goes to the same volume whatever order the ids were given in
+        Arrays.sort(ring, Comparator.comparingLong(Point::hash).thenComparing(p -> this.ids[p.volume()]));
+        this.points = new long[ring.length];
+        this.owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i].hash();
+            owners[i] = ring[i].volume();
+        }
+    }
+
+    //opens the volume in each directory, formatting the ones that are new with the given geometry
+    public static ShardedFileStore open(List<String> dirs, Superblock geometry) throws Exception {
+        List<FileSystemManager> opened = new ArrayList<>();
+        try {
+            List<String> ids = new ArrayList<>();
+            for (String dir : dirs) {
+                Files.createDirectories(Path.of(dir));
+                // volumes from before ids were stored take the directory string the ring hashed until then
+                FileSystemManager v = new FileSystemManager(Path.of(dir, VOLUME_FILE).toString(), geometry.withVolumeId(dir));
+                opened.add(v);
+                ids.add(v.getVolumeId());
+            }
+            // the gauges of all volumes add up, each volume takes its part out when it is closed
+            for (FileSystemManager v : opened) Metrics.register(v);
+            return new ShardedFileStore(ids, opened);
+        } catch (Exception e) {
+            for (FileSystemManager v : opened) {
+                try {
+                    v.close();
+                } catch (Exception suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+    }
+
+    //FNV-1a over the UTF-8 bytes, then the murmur3 finalizer so names that differ in one character
+    //land far apart on the ring
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    //index of the volume that owns fileName: the first ring point at or after its hash, wrapping around
+    public int volumeOf(String fileName) {
+        if (volumes.length == 1) return 0;
+        if (fileName == null) throw new IllegalArgumentException("Filename cannot be null or empty.");
+        int i = Arrays.binarySearch(points, hash(fileName));
+        if (i < 0) i = -i - 1;
+        return owners[i == points.length ? 0 : i];
+    }
+
+    private interface VolumeCall<T> {
+        T call(FileSystemManager volume) throws Exception;
+    }
+
+    //runs an operation on the volume that owns fileName, see misplaced()
+    private <T> T onVolume(String fileName, VolumeCall<T> call) throws Exception {
+        int owner = volumeOf(fileName);
+        try {
+            return call.call(volumes[owner]);
+        } catch (Exception e) {
+            throw misplaced(fileName, owner, e);
+        }
+    }
+
+    //what an operation on a name its volume does not hold failed with: an error naming the volume it
+    //is on if that is another one, a store with volumes added or removed and not yet rebalanced
+    private Exception misplaced(String fileName, int owner, Exception e) {
+        if (volumes.length == 1 || fileName == null || volumes[owner].exists(fileName)) return e;
+        for (int v = 0; v < volumes.length; v++) {
+            if (v != owner && volumes[v].exists(fileName)) {
+                return new Exception("File " + fileName + " is on volume " + ids[v] + " but hashes to " + ids[owner]
+                        + ", run once with -Dfileserver.rebalance=true.");
+            }
+        }
+        return e;
+    }
+
+    public int getVolumeCount() {
+        return volumes.length;
+    }
+
+    @Override
+    public void createFile(String fileName) throws Exception {
+        // the name must not be held by another volume either
+        int owner = volumeOf(fileName);
+        Exception elsewhere = misplaced(fileName, owner, null);
+        if (elsewhere != null) throw elsewhere;
+        volumes[owner].createFile(fileName);
+    }
+
+    @Override
+    public void writeFile(String fileName, String content) throws Exception {
+        onVolume(fileName, v -> {
+            v.writeFile(fileName, content);
+            return null;
+        });
+    }
+
+    @Override
+    public void writeFile(String fileName, byte[] data) throws Exception {
+        onVolume(fileName, v -> {
+            v.writeFile(fileName, data);
+            return null;
+        });
+    }
+
+    @Override
+    public long writeFile(String fileName, long offset, long length, ChunkSource source) throws Exception {
+        return onVolume(fileName, v -> v.writeFile(fileName, offset, length, source));
+    }
+
+    @Override
+    public long appendFile(String fileName, long length, ChunkSource source) throws Exception {
+        return onVolume(fileName, v -> v.appendFile(fileName, length, source));
+    }
+
+    @Override
+    public String readFile(String fileName) throws Exception {
+        return onVolume(fileName, v -> v.readFile(fileName));
+    }
+
+    @Override
+    public byte[] readFileBytes(String fileName) throws Exception {
+        return onVolume(fileName, v -> v.readFileBytes(fileName));
+    }
+
+    @Override
+    public long readFile(String fileName, long offset, long length, ChunkSink sink) throws Exception {
+        return onVolume(fileName, v -> v.readFile(fileName, offset, length, sink));
+    }
+
+    @Override
+    public FileTransfer openTransfer(String fileName, long offset, long length, long minLength) throws Exception {
+        return onVolume(fileName, v -> v.openTransfer(fileName, offset, length, minLength));
+    }
+
+    @Override
+    public void deleteFile(String fileName) throws Exception {
+        onVolume(fileName, v -> {
+            v.deleteFile(fileName);
+            return null;
+        });
+    }
+
+    //every volume's listing, one after the other
+    @Override
+    public String[] listFiles() {
+        if (volumes.length == 1) return volumes[0].listFiles();
+        String[][] lists = new String[volumes.length][];
+        int total = 0;
+        for (int v = 0; v < volumes.length; v++) {
+            lists[v] = volumes[v].listFiles();
+            total += lists[v].length;
+        }
+        String[] names = new String[total];
+        int n = 0;
+        for (String[] list : lists) {
+            System.arraycopy(list, 0, names, n, list.length);
+            n += list.length;
+        }
+        return names;
+    }
+
+    //each volume runs its share of the operations as one batch (one journal record per volume).
+    //A LIST runs in every share, so on each volume it sees the operations before it, and volumes
+    //the batch does not touch add their current files. An atomic batch must stay on one volume,
+    //there is no commit across journals
+    @Override
+    public Batch.Result[] execute(Batch batch) throws Exception {
+        if (volumes.length == 1) return volumes[0].execute(batch);
+        List<Batch.Op> ops = batch.ops();
+        Batch[] shares = new Batch[volumes.length];
+        int[] volumeOfOp = new int[ops.size()];
+        for (int i = 0; i < ops.size(); i++) {
+            Batch.Op op = ops.get(i);
+            if (op.name() == null) continue;
+            int v = volumeOf(op.name());
+            volumeOfOp[i] = v;
+            if (op.kind() == Batch.Kind.CREATE) {
+                Exception elsewhere = misplaced(op.name(), v, null);
+                if (elsewhere != null) throw elsewhere;
+            }
+            if (shares[v] == null) shares[v] = new Batch(batch.isAtomic());
+        }
+        if (batch.isAtomic() && Arrays.stream(shares).filter(b -> b != null).count() > 1)
+            throw new Exception("An atomic batch cannot span volumes, its files are not all on the same one.");
+
+        //position of each operation in the share of every volume it went to
+        int[][] at = new int[volumes.length][ops.size()];
+        for (int i = 0; i < ops.size(); i++) {
+            Batch.Op op = ops.get(i);
+            for (int v = 0; v < volumes.length; v++) {
+                if (shares[v] != null && (op.name() == null || volumeOfOp[i] == v)) {
+                    at[v][i] = shares[v].size();
+                    shares[v].add(op);
+                }
+            }
+        }
+        Batch.Result[][] shareResults = new Batch.Result[volumes.length][];
+        for (int v = 0; v < volumes.length; v++) {
+            if (shares[v] != null) shareResults[v] = volumes[v].execute(shares[v]);
+        }
+
+        Batch.Result[] results = new Batch.Result[ops.size()];
+        for (int i = 0; i < ops.size(); i++) {
+            Batch.Op op = ops.get(i);
+            if (op.name() != null) {
+                Batch.Result r = shareResults[volumeOfOp[i]][at[volumeOfOp[i]][i]];
+                Exception elsewhere = r.ok() ? null : misplaced(op.name(), volumeOfOp[i], null);
+                results[i] = elsewhere == null ? r : Batch.Result.failed(elsewhere.getMessage());
+                continue;
+            }
+            List<String> names = new ArrayList<>();
+            Batch.Result failed = null;
+            for (int v = 0; v < volumes.length && failed == null; v++) {
+                if (shares[v] == null) {
+                    names.addAll(Arrays.asList(volumes[v].listFiles()));
+                    continue;
+                }
+                Batch.Result r = shareResults[v][at[v][i]];
+                if (r.ok()) names.addAll(Arrays.asList(r.names()));
+                else failed = r;
+            }
+            results[i] = failed != null ? failed : new Batch.Result(null, null, 0, names.toArray(new String[0]));
+        }
+        return results;
+    }
+
+    //moves every file to the volume the ring gives it, for when volumes were added or removed while the
+    //server was down; returns how many moved. A file is deleted from its old volume only once its copy is
+    //durable on the new one, so an interrupted rebalance loses nothing and running it again finishes it
+    public int rebalance() throws Exception {
+        List<Set<String>> present = new ArrayList<>();
+        for (FileSystemManager v : volumes) present.add(new HashSet<>(Arrays.asList(v.listFiles())));
+
+        int moved = 0;
+        for (int from = 0; from < volumes.length; from++) {
+            for (String name : volumes[from].listFiles()) {
+                int to = volumeOf(name);
+                if (to == from) continue;
+                byte[] data = volumes[from].readFileBytes(name);
+                // a copy left by an interrupted run is overwritten, the old volume still has the original
+                Batch copy = new Batch(true);
+                if (!present.get(to).contains(name)) copy.create(name);
+                copy.write(name, data);
+                for (Batch.Result r : volumes[to].execute(copy)) {
+                    if (!r.ok()) throw new Exception("Could not move " + name + " to " + ids[to] + ": " + r.error());
+                }
+                present.get(to).add(name);
+                volumes[from].deleteFile(name);
+                moved++;
+
+                Log.Line line = Log.line(Log.Level.DEBUG);
+                if (line != null) line.append("Moved ").append(name).append(" from ").append(ids[from]).append(" to ").append(ids[to]).append('.').commit();
+            }
+        }
+        return moved;
+    }
+
+    //closes every volume, the first failure is thrown once all of them were tried
+    @Override
+    public void close() throws Exception {
+        Exception failure = null;
+        for (FileSystemManager v : volumes) {
+            try {
+                v.close();
+            } catch (Exception e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
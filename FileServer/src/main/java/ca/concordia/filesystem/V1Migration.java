@@ -0,0 +1,114 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.BlockBitmap;
+import ca.concordia.filesystem.datastructures.FEntry;
+import ca.concordia.filesystem.datastructures.FNodeTable;
+import ca.concordia.filesystem.datastructures.Superblock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Converts a v1 volume (no superblock) to the current format.
+ *
+ * v1 layout, fixed geometry of 10 blocks of 128 bytes and 5 inodes:
+ *   [10 x boolean free flag][5 x (used flag, 12 byte name, short size, short first block)]
+ *   data blocks from offset 160, each file in consecutive blocks starting at its first block
+ *
+ * The v2 image is written next to the volume and renamed over it, the original is kept as <name>.v1.bak.
+ */
+final class V1Migration {
+
+    private static final int BLOCKS = 10;
+    private static final int FILES = 5;
+    private static final int BLOCK_SIZE = 128;
+    private static final int INODE_SIZE = 1 + 12 + 2 + 2;
+    private static final int DATA_OFFSET = 32 * FILES;
+    private static final int MIN_SIZE = BLOCKS + FILES * 32;
+
+    private V1Migration() {}
+
+    static boolean isV1Volume(String filename) throws IOException {
+        Path path = Path.of(filename);
+        if (!Files.exists(path) || Files.size(path) < MIN_SIZE) return false;
+        byte[] head = new byte[BLOCKS + FILES * INODE_SIZE];
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            ch.read(ByteBuffer.wrap(head), 0);
+        }
+        if (Superblock.hasMagic(ByteBuffer.wrap(head))) return false;
+        // every flag of a v1 volume is a boolean byte
+        for (int i = 0; i < BLOCKS; i++) {
+            if (head[i] != 0 && head[i] != 1) return false;
+        }
+        for (int i = 0; i < FILES; i++) {
+            byte used = head[BLOCKS + i * INODE_SIZE];
+            if (used != 0 && used != 1) return false;
+        }
+        return true;
+    }
+
+    static void migrate(String filename) throws IOException {
+        Path path = Path.of(filename);
+        byte[] old = Files.readAllBytes(path);
+        ByteBuffer in = ByteBuffer.wrap(old);
+
+        Superblock sb = Superblock.format(BLOCK_SIZE, BLOCKS, FILES);
+        BlockBitmap bitmap = new BlockBitmap(BLOCKS);
+        FNodeTable fnodes = new FNodeTable(BLOCKS);
+        FEntry[] inodes = new FEntry[FILES];
+        byte[] data = new byte[BLOCKS * BLOCK_SIZE];
+
+        for (int i = 0; i < FILES; i++) {
+            in.position(BLOCKS + i * INODE_SIZE);
+            if (in.get() == 0) continue;
+            byte[] nameBytes = new byte[12];
+            in.get(nameBytes);
+            int nameLen = 0;
+            while (nameLen < 11 && nameBytes[nameLen] != 0) nameLen++;
+            String name = new String(nameBytes, 0, nameLen);
+            int size = in.getShort() & 0xFFFF;
+            int first = in.getShort();
+
+            // a v1 file created but never written still holds its first block
+            int blocks = first < 0 ? 0 : Math.max(1, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            int newFirst = FNodeTable.END;
+            int prev = FNodeTable.END;
+            for (int k = 0; k < blocks; k++) {
+                int b = bitmap.allocate();
+                if (b == -1) throw new IOException("v1 volume cannot be migrated: its files overlap and do not fit in " + BLOCKS + " blocks.");
+                if (prev == FNodeTable.END) newFirst = b;
+                else fnodes.setNext(prev, b);
+                prev = b;
+                // copy what a v1 READ would have returned, bytes past the end of the old file read as zeros
+                long from = DATA_OFFSET + (long) (first + k) * BLOCK_SIZE;
+                int n = (int) Math.max(0, Math.min(BLOCK_SIZE, old.length - from));
+                if (n > 0) System.arraycopy(old, (int) from, data, b * BLOCK_SIZE, n);
+            }
+            inodes[i] = new FEntry(name, size, newFirst);
+        }
+
+        ByteBuffer image = ByteBuffer.allocate((int) sb.volumeSize());
+        sb.writeTo(image);
+        image.position((int) sb.getBitmapOffset());
+        bitmap.writeTo(image);
+        for (FEntry e : inodes) FileSystemManager.writeInode(image, e);
+        fnodes.writeTo(image);
+        image.position((int) sb.getDataOffset());
+        image.put(data);
+        image.flip();
+
+        Path tmp = Path.of(filename + ".v2");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (image.hasRemaining()) ch.write(image);
+            ch.force(true);
+        }
+        Files.copy(path, Path.of(filename + ".v1.bak"), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
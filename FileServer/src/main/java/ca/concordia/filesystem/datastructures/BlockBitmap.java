@@ -0,0 +1,205 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//free-space map, one bit per block (1 = in use) packed into longs;
+//blocks are claimed and released with compare-and-set on their word, so allocators never lock
+public class BlockBitmap {
+
+    private final int blockCount;
+    private final AtomicLongArray words;
+    //searches start here, every word below it was full when last looked at
+    private volatile int firstFreeWord;
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    public BlockBitmap(int blockCount) {
+        this.blockCount = blockCount;
+        this.words = new AtomicLongArray(wordsFor(blockCount));
+        clear();
+    }
+
+    public static int wordsFor(int blockCount) {
+        return (blockCount + 63) >>> 6;
+    }
+
+    //bytes needed to store the bitmap on disk
+    public static int byteSize(int blockCount) {
+        return wordsFor(blockCount) * Long.BYTES;
+    }
+
+    //marks every block free, not safe against concurrent allocations; final because the constructor
+    //calls it
+    public final void clear() {
+        for (int i = 0; i < words.length(); i++) words.set(i, 0L);
+        //bits past the last block stay set so they are never handed out
+        int tail = blockCount & 63;
+        if (tail != 0) words.set(words.length() - 1, -1L << tail);
+        firstFreeWord = 0;
+        freeCount.set(blockCount);
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getFreeCount() {
+        return freeCount.get();
+    }
+
+    public boolean isFree(int block) {
+        return (words.get(block >>> 6) & (1L << block)) == 0;
+    }
+
+    //allocates one block, -1 if the volume is full
+    public int allocate() {
+        int hint = firstFreeWord;
+        int block = allocateIn(hint, words.length());
+        //a block freed below the hint after it moved is still found
+        if (block < 0 && hint > 0) block = allocateIn(0, hint);
+        return block;
+    }
+
+    private int allocateIn(int fromWord, int toWord) {
+        for (int w = fromWord; w < toWord; w++) {
+            long word;
+            while ((word = words.get(w)) != -1L) {
+                long bit = Long.lowestOneBit(~word);
+                if (words.compareAndSet(w, word, word | bit)) {
+                    freeCount.decrementAndGet();
+                    if ((word | bit) == -1L && firstFreeWord == w) firstFreeWord = w + 1;
+                    return (w << 6) + Long.numberOfTrailingZeros(bit);
+                }
+            }
+            if (firstFreeWord == w) firstFreeWord = w + 1;
+        }
+        return -1;
+    }
+
+    //allocates n contiguous blocks (first fit), returns the first one or -1 if no run is long enough
+    public int allocateExtent(int n) {
+        if (n <= 0) throw new IllegalArgumentException("Extent length must be positive.");
+        if (n > freeCount.get()) return -1;
+        if (n == 1) return allocate();
+        int start = nextFree(firstFreeWord << 6);
+        while (start >= 0 && start + n <= blockCount) {
+            int end = nextUsed(start, start + n);
+            //another allocator may take part of the run between the scan and the claim
+            if (end - start >= n && claim(start, n)) {
+                freeCount.addAndGet(-n);
+                return start;
+            }
+            start = nextFree(end - start >= n ? start + 1 : end);
+        }
+        return -1;
+    }
+
+    //claims a specific run, the blocks must currently be free
+    public void markUsed(int start, int n) {
+        if (!claim(start, n)) throw new IllegalStateException("Block already in use in range " + start + "+" + n);
+        freeCount.addAndGet(-n);
+    }
+
+    public void free(int start, int n) {
+        for (int b = start; b < start + n; ) {
+            int w = b >>> 6;
+            int bits = Math.min(64 - (b & 63), start + n - b);
+            long mask = mask(b, bits);
+            long word;
+            do {
+                word = words.get(w);
+                if ((word & mask) != mask) throw new IllegalStateException("Freeing a free block in range " + start + "+" + n);
+            } while (!words.compareAndSet(w, word, word & ~mask));
+            b += bits;
+        }
+        freeCount.addAndGet(n);
+        if ((start >>> 6) < firstFreeWord) firstFreeWord = start >>> 6;
+    }
+
+    //sets every bit of the run or none of them
+    private boolean claim(int start, int n) {
+        for (int b = start; b < start + n; ) {
+            int w = b >>> 6;
+            int bits = Math.min(64 - (b & 63), start + n - b);
+            long mask = mask(b, bits);
+            long word;
+            do {
+                word = words.get(w);
+                if ((word & mask) != 0) {
+                    release(start, b - start);
+                    return false;
+                }
+            } while (!words.compareAndSet(w, word, word | mask));
+            b += bits;
+        }
+        return true;
+    }
+
+    //undoes the part of a claim that succeeded, those bits belong to the caller
+    private void release(int start, int n) {
+        for (int b = start; b < start + n; ) {
+            int w = b >>> 6;
+            int bits = Math.min(64 - (b & 63), start + n - b);
+            long mask = mask(b, bits);
+            long word;
+            do {
+                word = words.get(w);
+            } while (!words.compareAndSet(w, word, word & ~mask));
+            b += bits;
+        }
+    }
+
+    private static long mask(int block, int bits) {
+        return (bits == 64 ? -1L : (1L << bits) - 1) << block;
+    }
+
+    //first free block at or after from, -1 if none
+    private int nextFree(int from) {
+        if (from >= blockCount) return -1;
+        int w = from >>> 6;
+        long inv = ~words.get(w) & (-1L << from);
+        while (inv == 0) {
+            if (++w == words.length()) return -1;
+            inv = ~words.get(w);
+        }
+        int block = (w << 6) + Long.numberOfTrailingZeros(inv);
+        return block < blockCount ? block : -1;
+    }
+
+    //first used block in [from, limit), limit if there is none
+    private int nextUsed(int from, int limit) {
+        int w = from >>> 6;
+        long bits = words.get(w) & (-1L << from);
+        while (bits == 0) {
+            if (++w == words.length() || (w << 6) >= limit) return limit;
+            bits = words.get(w);
+        }
+        return Math.min(limit, (w << 6) + Long.numberOfTrailingZeros(bits));
+    }
+
+    public long getWord(int index) {
+        return words.get(index);
+    }
+
+    public int getWordCount() {
+        return words.length();
+    }
+
+    public void writeTo(ByteBuffer out) {
+        for (int i = 0; i < words.length(); i++) out.putLong(words.get(i));
+    }
+
+    //not safe against concurrent allocations
+    public void readFrom(ByteBuffer in) {
+        for (int i = 0; i < words.length(); i++) words.set(i, in.getLong());
+        int tail = blockCount & 63;
+        if (tail != 0) words.set(words.length() - 1, words.get(words.length() - 1) | (-1L << tail));
+        int free = 0;
+        for (int i = 0; i < words.length(); i++) free += Long.bitCount(~words.get(i));
+        freeCount.set(free);
+        int first = 0;
+        while (first < words.length() && words.get(first) == -1L) first++;
+        firstFreeWord = first;
+    }
+}
@@ -1,30 +1,80 @@
 package ca.concordia.filesystem.datastructures;
 
+import ca.concordia.metrics.Metrics;
+
 import java.util.LinkedList;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 public class FEntry {
 
     private String filename;
-    private short filesize;
-    private short firstBlock; 
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    //size and first block, replaced as a whole when a write commits
+    private volatile Version version;
+    //one writer per file at a time, readers never take it
+    private final ReentrantLock writeLock = new ReentrantLock();
+    //held exclusively only while a ranged write relinks blocks of the published chain in place
+    private final StampedLock chainLock = new StampedLock();
+
+    //when the current writer got writeLock, only touched by that writer
+    private long writeLockedAt;
 
-    public void acquireRead() { lock.readLock().lock(); }
-    public void releaseRead() { lock.readLock().unlock(); }
+    //on a volume that shares blocks, guarded by its DedupIndex: no block before index sharedFrom can be
+    //reached from another file (it may be lower than needed), and none before frozenBelow may start
+    //being shared while a ranged write relinks it
+    private long sharedFrom = Long.MAX_VALUE;
+    private long frozenBelow;
+
+    //waits and hold times go to Metrics.FILE_WRITE_WAIT/HOLD
+    public void acquireWrite() {
+        long start = System.nanoTime();
+        writeLock.lock();
+        if (writeLock.getHoldCount() > 1) return;
+        writeLockedAt = System.nanoTime();
+        Metrics.FILE_WRITE_WAIT.record(writeLockedAt - start);
+    }
 
-    public void acquireWrite() { lock.writeLock().lock(); }
-    public void releaseWrite() { lock.writeLock().unlock(); }
+    public void releaseWrite() {
+        //nested acquisitions are timed as part of the outermost one
+        if (writeLock.getHoldCount() == 1) Metrics.FILE_WRITE_HOLD.recordSince(writeLockedAt);
+        writeLock.unlock();
+    }
+
+    //keeps ranged writes from relinking the chain, for reads that cannot be retried;
+    //only reads that had to wait are recorded in Metrics.FILE_READ_WAIT
+    public void acquireRead() {
+        long stamp = chainLock.tryReadLock();
+        if (stamp != 0) return;
+        long start = System.nanoTime();
+        chainLock.readLock();
+        Metrics.FILE_READ_WAIT.recordSince(start);
+    }
 
+    public void releaseRead() { chainLock.tryUnlockRead(); }
 
-    public FEntry(String filename, short filesize, short firstblock) throws IllegalArgumentException{
+    public void acquireRelink() { chainLock.writeLock(); }
+    public void releaseRelink() { chainLock.tryUnlockWrite(); }
+
+    //optimistic read: walk the chain without locking, then keep the copy only if validate(stamp)
+    //says no relink happened in between; 0 means one is happening now
+    public long tryOptimisticRead() { return chainLock.tryOptimisticRead(); }
+    public boolean validate(long stamp) { return stamp != 0 && chainLock.validate(stamp); }
+
+
+    public FEntry(String filename, long filesize, int firstblock) throws IllegalArgumentException{
         //Check filename is max 11 bytes long
         if (filename.length() > 11) {
             throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
         }
         this.filename = filename;
-        this.filesize = filesize;
-        this.firstBlock = firstblock;
+        this.version = new Version(filesize, firstblock, false, filesize);
+    }
+
+    //a file whose contents are stored as FrameCodec frames when compressed, in storedSize bytes
+    public FEntry(String filename, long filesize, int firstblock, boolean compressed, long storedSize) {
+        this(filename, filesize, firstblock);
+        this.version = new Version(filesize, firstblock, compressed, compressed ? storedSize : filesize);
     }
 
     // Getters and Setters
@@ -39,22 +89,131 @@ public class FEntry {
         this.filename = filename;
     }
 
-    public short getFilesize() {
-        return filesize;
+    public long getFilesize() {
+        return version.size();
+    }
+
+    public void setFilesize(long filesize) {
+        publish(filesize, version.firstBlock());
+    }
+
+    public int getFirstBlock() {
+        return version.firstBlock();
+    }
+
+public void setFirstBlock(int firstBlock) {
+    publish(version.size(), firstBlock);
+}
+
+    public long getSharedFrom() {
+        return sharedFrom;
+    }
+
+    public void setSharedFrom(long index) {
+        this.sharedFrom = index;
+    }
+
+    public long getFrozenBelow() {
+        return frozenBelow;
+    }
+
+    public void setFrozenBelow(long index) {
+        this.frozenBelow = index;
     }
 
-    public void setFilesize(short filesize) {
-        if (filesize < 0) {
+    public Version getVersion() {
+        return version;
+    }
+
+    //makes size and firstBlock the file's state in one step, returns the version it replaces; the
+    //file keeps its storage format (and a compressed file its stored size)
+    public Version publish(long size, int firstBlock) {
+        Version v = version;
+        return publish(size, firstBlock, v.compressed, v.compressed ? v.storedSize : size);
+    }
+
+    public Version publish(long size, int firstBlock, boolean compressed, long storedSize) {
+        if (size < 0) {
             throw new IllegalArgumentException("Filesize cannot be negative.");
         }
-        this.filesize = filesize;
+        Version old = version;
+        // the versions before old are all replaced, none of them can be pinned again
+        old.isPinned();
+        Version next = new Version(size, firstBlock, compressed, compressed ? storedSize : size);
+        next.before = old;
+        version = next;
+        return old;
     }
 
-    public short getFirstBlock() {
-        return firstBlock;
+    //the current version, counted as read until unpin(); a version already replaced is never returned,
+    //so once replaced its reader count only goes down
+    public Version pin() {
+        while (true) {
+            Version v = version;
+            v.readers.incrementAndGet();
+            if (version == v) return v;
+            v.readers.decrementAndGet();
+        }
     }
 
-public void setFirstBlock(short firstBlock) {
-    this.firstBlock = firstBlock;
-}
+    public void unpin(Version v) {
+        v.readers.decrementAndGet();
+    }
+
+    //one committed state of the file; the blocks of a replaced version are not reused while it is pinned
+    public static final class Version {
+        private final long size;
+        private final int firstBlock;
+        //contents stored as FrameCodec frames, storedSize bytes of headers and payloads
+        private final boolean compressed;
+        private final long storedSize;
+        private final AtomicInteger readers = new AtomicInteger();
+        //the version this one replaced, while it is pinned: its reader may still reach blocks the two
+        //share, which a later write can replace
+        private volatile Version before;
+        //last position reached in this version's chain, so sequential ranged requests do not walk it from
+        //the start; of a compressed version the last frame reached and its first block
+        private volatile ChainHint chainHint;
+
+        private Version(long size, int firstBlock, boolean compressed, long storedSize) {
+            this.size = size;
+            this.firstBlock = firstBlock;
+            this.compressed = compressed;
+            this.storedSize = storedSize;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public int firstBlock() {
+            return firstBlock;
+        }
+
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        public long storedSize() {
+            return storedSize;
+        }
+
+        //true while this version or one it replaced is read; only the current version gains readers
+        public boolean isPinned() {
+            Version b = before;
+            if (b != null && !b.isPinned()) before = b = null;
+            return readers.get() > 0 || b != null;
+        }
+
+        public ChainHint getChainHint() {
+            return chainHint;
+        }
+
+        public void setChainHint(ChainHint hint) {
+            this.chainHint = hint;
+        }
+    }
+
+    //block is the index-th block (or frame) of the file
+    public record ChainHint(long index, int block) {}
 }
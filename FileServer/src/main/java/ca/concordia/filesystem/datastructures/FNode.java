@@ -9,4 +9,22 @@ public class FNode {
         this.blockIndex = blockIndex;
         this.next = -1;
     }
+
+    public FNode(int blockIndex, int next) {
+        this.blockIndex = blockIndex;
+        this.next = next;
+    }
+
+    public int getBlockIndex() {
+        return blockIndex;
+    }
+
+    //index of the file's following block, -1 on the last one
+    public int getNext() {
+        return next;
+    }
+
+    public void setNext(int next) {
+        this.next = next;
+    }
 }
@@ -0,0 +1,58 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//FAT-style chain of blocks: entry i holds the block that follows block i in its file
+public class FNodeTable {
+
+    public static final int END = -1;
+
+    //an entry is only changed by the operation that owns its block
+    private final int[] next;
+
+    public FNodeTable(int blockCount) {
+        this.next = new int[blockCount];
+        Arrays.fill(next, END);
+    }
+
+    //bytes needed to store the table on disk
+    public static int byteSize(int blockCount) {
+        return blockCount * Integer.BYTES;
+    }
+
+    public FNode get(int block) {
+        return new FNode(block, next[block]);
+    }
+
+    public int next(int block) {
+        return next[block];
+    }
+
+    public void setNext(int block, int nextBlock) {
+        next[block] = nextBlock;
+    }
+
+    //number of blocks in the chain starting at first, fails on a loop or an out of range link
+    public int chainLength(int first) {
+        int count = 0;
+        for (int b = first; b != END; b = next[b]) {
+            if (b < 0 || b >= next.length || ++count > next.length) {
+                throw new IllegalStateException("Broken block chain starting at " + first);
+            }
+        }
+        return count;
+    }
+
+    public void clear() {
+        Arrays.fill(next, END);
+    }
+
+    public void writeTo(ByteBuffer out) {
+        for (int n : next) out.putInt(n);
+    }
+
+    public void readFrom(ByteBuffer in) {
+        for (int i = 0; i < next.length; i++) next[i] = in.getInt();
+    }
+}
@@ -0,0 +1,162 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * First bytes of a v2 volume: format version, geometry and where each region starts.
+ *
+ * layout: [superblock][free block bitmap][inode table][FNode table][data blocks]
+ */
+public class Superblock {
+
+    public static final int MAGIC = 0x46535632; // "FSV2"
+    public static final int VERSION = 2;
+    public static final int SIZE = 512;
+
+    //on-disk inode: flags, 12 byte name, 3 bytes padding, 64-bit size, first block, 64-bit stored size
+    //(compressed files only), reserved
+    public static final int INODE_SIZE = 64;
+
+    //optional behaviour of a volume, kept in the header because its files depend on it;
+    //volumes from before these existed have none
+
+    //files may share the ends of their block chains, see DedupIndex
+    public static final int FEATURE_DEDUP = 1;
+    //files may be stored compressed, see FrameCodec
+    public static final int FEATURE_COMPRESSION = 2;
+
+    //UTF-8 bytes of a volume id, stored after the features as [u8 length][bytes]; older volumes have
+    //zeros there, which read as no id
+    public static final int MAX_VOLUME_ID = 255;
+
+    private final int blockSize;
+    private final int blockCount;
+    private final int inodeCount;
+    private final int features;
+    //names the volume among others (ShardedFileStore), null if it was never given one
+    private final String volumeId;
+    private final long bitmapOffset;
+    private final long inodeOffset;
+    private final long fnodeOffset;
+    private final long dataOffset;
+
+    private Superblock(int blockSize, int blockCount, int inodeCount, int features, String volumeId) {
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        this.inodeCount = inodeCount;
+        this.features = features;
+        this.volumeId = volumeId;
+        this.bitmapOffset = SIZE;
+        this.inodeOffset = bitmapOffset + BlockBitmap.byteSize(blockCount);
+        this.fnodeOffset = inodeOffset + (long) inodeCount * INODE_SIZE;
+        long metadataEnd = fnodeOffset + FNodeTable.byteSize(blockCount);
+        //data blocks are aligned to the block size
+        this.dataOffset = (metadataEnd + blockSize - 1) / blockSize * blockSize;
+    }
+
+    //layout for a new volume
+    public static Superblock format(int blockSize, int blockCount, int inodeCount) {
+        return format(blockSize, blockCount, inodeCount, 0);
+    }
+
+    public static Superblock format(int blockSize, int blockCount, int inodeCount, int features) {
+        if (blockSize < 64 || Integer.bitCount(blockSize) != 1)
+            throw new IllegalArgumentException("Block size must be a power of two of at least 64 bytes.");
+        if (blockCount <= 0) throw new IllegalArgumentException("Block count must be positive.");
+        if (inodeCount <= 0) throw new IllegalArgumentException("Inode count must be positive.");
+        return new Superblock(blockSize, blockCount, inodeCount, features, null);
+    }
+
+    //the same geometry with more features turned on
+    public Superblock withFeatures(int added) {
+        return new Superblock(blockSize, blockCount, inodeCount, features | added, volumeId);
+    }
+
+    //the same geometry with the given volume id
+    public Superblock withVolumeId(String id) {
+        if (id == null || id.isEmpty() || id.getBytes(StandardCharsets.UTF_8).length > MAX_VOLUME_ID)
+            throw new IllegalArgumentException("Volume id must be 1 to " + MAX_VOLUME_ID + " bytes: " + id);
+        return new Superblock(blockSize, blockCount, inodeCount, features, id);
+    }
+
+    public static boolean hasMagic(ByteBuffer in) {
+        return in.remaining() >= 4 && in.getInt(in.position()) == MAGIC;
+    }
+
+    public static Superblock readFrom(ByteBuffer in) throws IOException {
+        if (in.getInt() != MAGIC) throw new IOException("Not a v2 volume (bad magic).");
+        int version = in.getInt();
+        if (version != VERSION) throw new IOException("Unsupported volume format version " + version + ".");
+        int blockSize = in.getInt();
+        int blockCount = in.getInt();
+        int inodeCount = in.getInt();
+        int features = in.getInt();
+        if ((features & ~(FEATURE_DEDUP | FEATURE_COMPRESSION)) != 0) throw new IOException("Volume uses unknown features " + Integer.toHexString(features) + ".");
+        byte[] id = new byte[in.get() & 0xff];
+        in.get(id);
+        try {
+            Superblock read = format(blockSize, blockCount, inodeCount, features);
+            return id.length == 0 ? read : read.withVolumeId(new String(id, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupted superblock: " + e.getMessage(), e);
+        }
+    }
+
+    public void writeTo(ByteBuffer out) {
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(blockSize);
+        out.putInt(blockCount);
+        out.putInt(inodeCount);
+        out.putInt(features);
+        byte[] id = volumeId == null ? new byte[0] : volumeId.getBytes(StandardCharsets.UTF_8);
+        out.put((byte) id.length);
+        out.put(id);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getInodeCount() {
+        return inodeCount;
+    }
+
+    public boolean hasFeature(int feature) {
+        return (features & feature) != 0;
+    }
+
+    public String getVolumeId() {
+        return volumeId;
+    }
+
+    public long getBitmapOffset() {
+        return bitmapOffset;
+    }
+
+    public long getInodeOffset() {
+        return inodeOffset;
+    }
+
+    public long getFnodeOffset() {
+        return fnodeOffset;
+    }
+
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    public long blockOffset(int block) {
+        return dataOffset + (long) block * blockSize;
+    }
+
+    public long volumeSize() {
+        return blockOffset(blockCount);
+    }
+}
@@ -0,0 +1,55 @@
+package ca.concordia.filesystem.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+//byte-addressed storage under FileSystemManager, offsets are absolute positions in the volume file
+public interface BlockDevice extends Closeable {
+
+    //-Dfileserver.device=mapped|channel|raf picks the implementation used by open(String)
+    String DEVICE_PROPERTY = "fileserver.device";
+
+    long size();
+
+    //grows (or shrinks) the volume, only called while the filesystem is being formatted or opened
+    void setSize(long size) throws IOException;
+
+    void read(long offset, byte[] dst, int off, int len) throws IOException;
+
+    void write(long offset, byte[] src, int off, int len) throws IOException;
+
+    //makes every write so far durable
+    void force() throws IOException;
+
+    //sends up to count bytes at offset to target, without copying them through the heap where the
+    //device can; returns how many went out, fewer (or 0) when a non-blocking target is full. What went
+    //out no longer depends on the volume, the blocks may be reused as soon as it returns
+    default long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        byte[] buf = new byte[(int) Math.min(count, 64 * 1024)];
+        read(offset, buf, 0, buf.length);
+        return target.write(ByteBuffer.wrap(buf));
+    }
+
+    //a read-only view of up to len bytes at offset for gathering writes (shorter where a mapping
+    //ends), null if the device cannot give one without copying
+    default ByteBuffer view(long offset, int len) {
+        return null;
+    }
+
+    //the device is metered (Metrics.DISK_*)
+    static BlockDevice open(String filename) throws IOException {
+        String kind = System.getProperty(DEVICE_PROPERTY, "mapped");
+        switch (kind.toLowerCase()) {
+            case "mapped":
+                return new MeteredDevice(new MappedFileDevice(filename));
+            case "channel":
+                return new MeteredDevice(new FileChannelDevice(filename));
+            case "raf":
+                return new MeteredDevice(new RandomAccessFileDevice(filename));
+            default:
+                throw new IllegalArgumentException("Unknown block device '" + kind + "'");
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ca.concordia.filesystem.device;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//transferTo of the devices that keep the volume in a FileChannel. To a socket, sendfile queues the
+//page cache pages of the volume, not their bytes, so a block reused before the socket sent them goes
+//out with its new contents; sockets get a copy through a pooled direct buffer instead, never the heap
+final class ChannelCopy {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    //idle buffers kept for reuse, a virtual thread per connection must not mean a buffer per connection
+    private static final int POOL_SIZE = 16;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFERS = new ConcurrentLinkedQueue<>();
+
+    private ChannelCopy() {
+    }
+
+    static long transferTo(FileChannel channel, long offset, long count, WritableByteChannel target) throws IOException {
+        // a file takes a copy of the bytes
+        if (target instanceof FileChannel) return channel.transferTo(offset, count, target);
+        ByteBuffer buf = BUFFERS.poll();
+        if (buf == null) buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            buf.clear().limit((int) Math.min(count, BUFFER_SIZE));
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position()) < 0) break;
+            }
+            buf.flip();
+            // what a non-blocking target did not take is read again by the next call
+            return target.write(buf);
+        } finally {
+            if (BUFFERS.size() < POOL_SIZE) BUFFERS.offer(buf);
+        }
+    }
+}
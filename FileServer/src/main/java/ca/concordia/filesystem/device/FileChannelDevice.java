@@ -0,0 +1,73 @@
+package ca.concordia.filesystem.device;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+//positional reads and writes (pread/pwrite), there is no file pointer so callers never wait on each other
+public class FileChannelDevice implements BlockDevice {
+
+    private final FileChannel channel;
+
+    public FileChannelDevice(String filename) throws IOException {
+        this.channel = FileChannel.open(Path.of(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public long size() {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized void setSize(long size) throws IOException {
+        long current = channel.size();
+        if (size < current) {
+            channel.truncate(size);
+        } else if (size > current) {
+            //writing the last byte extends the file, the gap reads back as zeros
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+    }
+
+    @Override
+    public void read(long offset, byte[] dst, int off, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(dst, off, len);
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, offset + (buf.position() - off));
+            if (n < 0) throw new EOFException("Read past the end of the volume at " + offset);
+        }
+    }
+
+    @Override
+    public void write(long offset, byte[] src, int off, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(src, off, len);
+        while (buf.hasRemaining()) {
+            channel.write(buf, offset + (buf.position() - off));
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    //sendfile to files where the platform has it, a copy to sockets (see ChannelCopy)
+    @Override
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        return ChannelCopy.transferTo(channel, offset, count, target);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,116 @@
+package ca.concordia.filesystem.device;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+//maps the whole volume file, reads and writes are plain memory copies with no shared position
+public class MappedFileDevice implements BlockDevice {
+
+    //a single MappedByteBuffer is limited to 2 GB, so large volumes are mapped as several segments
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private volatile MappedByteBuffer[] segments;
+    private volatile long size;
+
+    public MappedFileDevice(String filename) throws IOException {
+        this.file = new RandomAccessFile(filename, "rw");
+        this.channel = file.getChannel();
+        map(channel.size());
+    }
+
+    private void map(long newSize) throws IOException {
+        int count = (int) ((newSize + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, newSize - start));
+        }
+        this.segments = mapped;
+        this.size = newSize;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void setSize(long newSize) throws IOException {
+        if (newSize == size) return;
+        force();
+        file.setLength(newSize);
+        map(newSize);
+    }
+
+    @Override
+    public void read(long offset, byte[] dst, int off, int len) throws IOException {
+        checkBounds(offset, len);
+        MappedByteBuffer[] segs = segments;
+        while (len > 0) {
+            int index = (int) (offset & (SEGMENT_SIZE - 1));
+            int n = (int) Math.min(len, SEGMENT_SIZE - index);
+            segs[(int) (offset >>> SEGMENT_SHIFT)].get(index, dst, off, n);
+            offset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(long offset, byte[] src, int off, int len) throws IOException {
+        checkBounds(offset, len);
+        MappedByteBuffer[] segs = segments;
+        while (len > 0) {
+            int index = (int) (offset & (SEGMENT_SIZE - 1));
+            int n = (int) Math.min(len, SEGMENT_SIZE - index);
+            segs[(int) (offset >>> SEGMENT_SHIFT)].put(index, src, off, n);
+            offset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    //the bytes of the mapping are copied out by the write, so a block reused afterwards is never sent
+    //with its new contents (see ChannelCopy); shorter where a segment ends
+    @Override
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        // like FileChannel.transferTo, nothing goes out past the end
+        long n = Math.min(count, size - offset);
+        if (offset < 0 || n <= 0) return 0;
+        return target.write(view(offset, (int) Math.min(n, Integer.MAX_VALUE)));
+    }
+
+    @Override
+    public ByteBuffer view(long offset, int len) {
+        if (offset < 0 || len < 0 || offset + len > size) return null;
+        int index = (int) (offset & (SEGMENT_SIZE - 1));
+        int n = (int) Math.min(len, SEGMENT_SIZE - index);
+        return segments[(int) (offset >>> SEGMENT_SHIFT)].slice(index, n).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void force() {
+        for (MappedByteBuffer segment : segments) segment.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+        file.close();
+    }
+
+    private void checkBounds(long offset, int len) throws EOFException {
+        if (offset < 0 || offset + len > size) {
+            throw new EOFException("Access at " + offset + "+" + len + " is outside the volume (" + size + " bytes)");
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ca.concordia.filesystem.device;
+
+import ca.concordia.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+//times every read, write and force of the device it wraps and counts the bytes moved
+final class MeteredDevice implements BlockDevice {
+
+    private final BlockDevice device;
+
+    MeteredDevice(BlockDevice device) {
+        this.device = device;
+    }
+
+    @Override
+    public long size() {
+        return device.size();
+    }
+
+    @Override
+    public void setSize(long size) throws IOException {
+        device.setSize(size);
+    }
+
+    @Override
+    public void read(long offset, byte[] dst, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        device.read(offset, dst, off, len);
+        Metrics.DISK_READ.recordSince(start);
+        Metrics.DISK_READ_BYTES.add(len);
+    }
+
+    @Override
+    public void write(long offset, byte[] src, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        device.write(offset, src, off, len);
+        Metrics.DISK_WRITE.recordSince(start);
+        Metrics.DISK_WRITE_BYTES.add(len);
+    }
+
+    @Override
+    public void force() throws IOException {
+        long start = System.nanoTime();
+        device.force();
+        Metrics.DISK_SYNC.recordSince(start);
+    }
+
+    //the time includes waiting for the target, the bytes are the ones that went out
+    @Override
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        long start = System.nanoTime();
+        long n = device.transferTo(offset, count, target);
+        Metrics.DISK_READ.recordSince(start);
+        Metrics.DISK_READ_BYTES.add(n);
+        return n;
+    }
+
+    //counted when the view is taken, reading it is a memory access
+    @Override
+    public ByteBuffer view(long offset, int len) {
+        ByteBuffer view = device.view(offset, len);
+        if (view != null) Metrics.DISK_READ_BYTES.add(view.remaining());
+        return view;
+    }
+
+    @Override
+    public void close() throws IOException {
+        device.close();
+    }
+}
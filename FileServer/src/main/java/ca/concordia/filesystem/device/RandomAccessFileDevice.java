@@ -0,0 +1,57 @@
+package ca.concordia.filesystem.device;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.WritableByteChannel;
+
+//fallback device: seek + read/write on one RandomAccessFile, the shared file pointer makes every call exclusive
+public class RandomAccessFileDevice implements BlockDevice {
+
+    private final RandomAccessFile disk;
+
+    public RandomAccessFileDevice(String filename) throws IOException {
+        this.disk = new RandomAccessFile(filename, "rw");
+    }
+
+    @Override
+    public synchronized long size() {
+        try {
+            return disk.length();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized void setSize(long size) throws IOException {
+        disk.setLength(size);
+    }
+
+    @Override
+    public synchronized void read(long offset, byte[] dst, int off, int len) throws IOException {
+        disk.seek(offset);
+        disk.readFully(dst, off, len);
+    }
+
+    @Override
+    public synchronized void write(long offset, byte[] src, int off, int len) throws IOException {
+        disk.seek(offset);
+        disk.write(src, off, len);
+    }
+
+    @Override
+    public void force() throws IOException {
+        disk.getChannel().force(false);
+    }
+
+    //positional, so unlike read and write it leaves the file pointer alone and needs no lock
+    @Override
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        return ChannelCopy.transferTo(disk.getChannel(), offset, count, target);
+    }
+
+    @Override
+    public void close() throws IOException {
+        disk.close();
+    }
+}
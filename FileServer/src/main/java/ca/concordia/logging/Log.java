@@ -0,0 +1,244 @@
+package ca.concordia.logging;
+
+import ca.concordia.metrics.Metrics;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Server log. Threads format into preallocated lines of a bounded ring and go on; one background
+ * thread writes them out in the order they were claimed, so the lines of one connection (whose
+ * requests never run concurrently) come out in order. Claiming a line is a single compare-and-set,
+ * filling it copies characters and never allocates. When the ring is full the line is dropped and
+ * counted (log.dropped) rather than making the request wait.
+ *
+ * -Dfileserver.log.level=error|warn|info|debug   lines below it are not recorded (default info)
+ * -Dfileserver.log.sampleEvery=N                 request lines: one in N per connection (default 1)
+ * -Dfileserver.log.buffer=N                      lines the ring holds, rounded up to a power of two (default 4096)
+ *
+ * WARN and ERROR go to System.err, the rest to System.out (whichever streams are set when written).
+ */
+public final class Log {
+
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    //longer lines are cut and end with "..."
+    private static final int LINE_CHARS = 256;
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("fileserver.log.level", "info").toUpperCase());
+    private static final int SAMPLE_EVERY = Math.max(1, Integer.getInteger("fileserver.log.sampleEvery", 1));
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("fileserver.log.buffer", 4096) * 2 - 1));
+    private static final int MASK = CAPACITY - 1;
+    private static final Line[] lines = new Line[CAPACITY];
+    //sequence of each slot: equal to the claim position when free, position + 1 once committed
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    //next position the writer takes, only advanced by the writer thread
+    private static volatile long head;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            lines[i] = new Line();
+            sequences.set(i, i);
+        }
+        Metrics.gauge("log.dropped", dropped::sum);
+        Thread writer = new Thread(Log::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {}
+
+    public static boolean enabled(Level level) {
+        return level.ordinal() <= LEVEL.ordinal();
+    }
+
+    //whether the n-th request of a connection (counting from 1) is logged
+    public static boolean sampled(long n) {
+        return n % SAMPLE_EVERY == 0;
+    }
+
+    //a line to fill and commit(), null when the level is off or the ring is full
+    public static Line line(Level level) {
+        if (!enabled(level)) return null;
+        long pos = tail.get();
+        while (true) {
+            int slot = (int) (pos & MASK);
+            long seq = sequences.getAcquire(slot);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) return lines[slot].reset(level, pos);
+                pos = tail.get();
+            } else if (seq < pos) {
+                //the writer has not taken this slot's previous line yet
+                dropped.increment();
+                return null;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    private static void log(Level level, String message, Throwable error) {
+        Line line = line(level);
+        if (line == null) return;
+        line.error = error;
+        line.append(message).commit();
+    }
+
+    //waits (up to a second) until every line committed so far is written
+    public static void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (head < target && System.nanoTime() < deadline) LockSupport.parkNanos(IDLE_PARK_NANOS);
+    }
+
+    private static void drainLoop() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        while (true) {
+            long pos = head;
+            int slot = (int) (pos & MASK);
+            if (sequences.getAcquire(slot) != pos + 1) {
+                //nothing committed at the head, write what was gathered and wait for more
+                write(System.out, out);
+                write(System.err, err);
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            Line line = lines[slot];
+            boolean toErr = line.level.ordinal() <= Level.WARN.ordinal();
+            StringBuilder sb = toErr ? err : out;
+            if (toErr && !out.isEmpty()) write(System.out, out);
+            format(sb, line);
+            Throwable error = line.error;
+            line.error = null;
+            sequences.setRelease(slot, pos + CAPACITY);
+            if (error != null) {
+                write(System.err, err);
+                error.printStackTrace(System.err);
+            }
+            head = pos + 1;
+        }
+    }
+
+    private static void format(StringBuilder sb, Line line) {
+        LocalTime t = LocalTime.ofInstant(Instant.ofEpochMilli(line.millis), ZONE);
+        pad(sb, t.getHour(), 2).append(':');
+        pad(sb, t.getMinute(), 2).append(':');
+        pad(sb, t.getSecond(), 2).append('.');
+        pad(sb, t.getNano() / 1_000_000, 3).append(' ');
+        sb.append(line.level.name()).append(' ').append(line.chars, 0, line.length).append('\n');
+    }
+
+    private static StringBuilder pad(StringBuilder sb, int value, int width) {
+        for (int w = width - 1, p = 10; w > 0; w--, p *= 10) if (value < p) sb.append('0');
+        return sb.append(value);
+    }
+
+    private static void write(PrintStream stream, StringBuilder sb) {
+        if (sb.isEmpty()) return;
+        stream.print(sb);
+        stream.flush();
+        sb.setLength(0);
+    }
+
+    //one preallocated log line, owned by the thread that claimed it until commit()
+    public static final class Line {
+        private final char[] chars = new char[LINE_CHARS];
+        private int length;
+        private Level level;
+        private long millis;
+        private long position;
+        private Throwable error;
+
+        private Line reset(Level level, long position) {
+            this.level = level;
+            this.position = position;
+            this.millis = System.currentTimeMillis();
+            this.length = 0;
+            return this;
+        }
+
+        public Line append(CharSequence s) {
+            if (s == null) s = "null";
+            int n = Math.min(s.length(), LINE_CHARS - length);
+            if (s instanceof String str) {
+                str.getChars(0, n, chars, length);
+            } else {
+                for (int i = 0; i < n; i++) chars[length + i] = s.charAt(i);
+            }
+            length += n;
+            if (n < s.length()) truncated();
+            return this;
+        }
+
+        public Line append(char c) {
+            if (length < LINE_CHARS) chars[length++] = c;
+            else truncated();
+            return this;
+        }
+
+        public Line append(long v) {
+            if (v == Long.MIN_VALUE) return append("-9223372036854775808");
+            if (v < 0) {
+                append('-');
+                v = -v;
+            }
+            int digits = 1;
+            for (long p = 10; digits < 19 && v >= p; p *= 10) digits++;
+            if (length + digits > LINE_CHARS) {
+                truncated();
+                return this;
+            }
+            for (int i = length + digits - 1; i >= length; i--) {
+                chars[i] = (char) ('0' + v % 10);
+                v /= 10;
+            }
+            length += digits;
+            return this;
+        }
+
+        private void truncated() {
+            for (int i = LINE_CHARS - 3; i < LINE_CHARS; i++) chars[i] = '.';
+            length = LINE_CHARS;
+        }
+
+        //hands the line to the writer, it must not be touched afterwards
+        public void commit() {
+            sequences.setRelease((int) (position & MASK), position + 1);
+        }
+    }
+}
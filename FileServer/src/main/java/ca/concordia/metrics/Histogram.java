@@ -0,0 +1,74 @@
+package ca.concordia.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+//fixed buckets over nanoseconds, 4 per power of two (neighbours at most 25% apart); every bucket is a
+//LongAdder so recording threads neither contend on one counter nor allocate
+public final class Histogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final LongAdder[] buckets = new LongAdder[64 << SUB_BITS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets[index(nanos)].increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    //records the time since startNanos (a System.nanoTime() reading)
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    //read side, allocates and is not atomic against concurrent recording
+    public Snapshot snapshot() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, sum.sum(), max.get());
+    }
+
+    public record Snapshot(long[] counts, long count, long sumNanos, long maxNanos) {
+        public long meanNanos() {
+            return count == 0 ? 0 : sumNanos / count;
+        }
+
+        //upper bound of the bucket holding the percentile-th sample
+        public long percentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upperBound(i), maxNanos);
+            }
+            return maxNanos;
+        }
+    }
+
+    private static int index(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (msb - SUB_BITS)) & (SUB_COUNT - 1);
+        return ((msb - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = (index >> SUB_BITS) - 1;
+        long sub = SUB_COUNT + (index & (SUB_COUNT - 1));
+        return shift >= 61 ? Long.MAX_VALUE : ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,151 @@
+package ca.concordia.metrics;
+
+import ca.concordia.logging.Log;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ObjLongConsumer;
+
+/*
+ * Process-wide counters and latency histograms of the server, read by the STATS command and over
+ * JMX (ca.concordia:type=FileServer). Recording is a few LongAdder increments and never allocates;
+ * a snapshot allocates and is only as consistent as the adders it sums.
+ */
+public final class Metrics {
+
+    //requests as the server sees them, text and binary ones alike
+    //something there can be several of (a volume) that reports the same gauges as the others
+    public interface GaugeSource {
+        void gauges(ObjLongConsumer<String> gauge);
+    }
+
+    public enum Command { CREATE, WRITE, READ, APPEND, DELETE, LIST, BATCH, STATS, TOKEN, AFTER, QUIT, BINARY, UNKNOWN }
+
+    private static final Histogram[] COMMAND_LATENCY = new Histogram[Command.values().length];
+    private static final LongAdder[] COMMAND_ERRORS = new LongAdder[Command.values().length];
+
+    //waiting for and holding a file's write lock, waiting for its read lock (ranged writes relinking)
+    public static final Histogram FILE_WRITE_WAIT = new Histogram();
+    public static final Histogram FILE_WRITE_HOLD = new Histogram();
+    public static final Histogram FILE_READ_WAIT = new Histogram();
+    //lock-free reads that had to copy again because a ranged write relinked the chain
+    public static final LongAdder OPTIMISTIC_RETRIES = new LongAdder();
+
+    //an operation waiting for its journal record to be durable, and one group commit
+    public static final Histogram JOURNAL_WAIT = new Histogram();
+    public static final Histogram JOURNAL_COMMIT = new Histogram();
+    public static final LongAdder JOURNAL_RECORDS = new LongAdder();
+
+    //block device calls, volume and journal together
+    public static final Histogram DISK_READ = new Histogram();
+    public static final Histogram DISK_WRITE = new Histogram();
+    public static final Histogram DISK_SYNC = new Histogram();
+    public static final LongAdder DISK_READ_BYTES = new LongAdder();
+    public static final LongAdder DISK_WRITE_BYTES = new LongAdder();
+
+    public static final LongAdder CONNECTIONS_OPENED = new LongAdder();
+    public static final LongAdder ACTIVE_CONNECTIONS = new LongAdder();
+
+    //values owned elsewhere (cache counters, executor queue depth), read at snapshot time
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<>();
+    //summed by name over the sources registered at snapshot time
+    private static final Set<GaugeSource> SOURCES = ConcurrentHashMap.newKeySet();
+
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+
+    static {
+        for (int i = 0; i < COMMAND_LATENCY.length; i++) {
+            COMMAND_LATENCY[i] = new Histogram();
+            COMMAND_ERRORS[i] = new LongAdder();
+        }
+    }
+
+    private Metrics() {}
+
+    public static void command(Command command, long startNanos, boolean failed) {
+        COMMAND_LATENCY[command.ordinal()].recordSince(startNanos);
+        if (failed) COMMAND_ERRORS[command.ordinal()].increment();
+    }
+
+    //registers (or replaces) a gauge
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    //adds a source's gauges to the sums, until it is unregistered
+    public static void register(GaugeSource source) {
+        SOURCES.add(source);
+    }
+
+    public static void unregister(GaugeSource source) {
+        SOURCES.remove(source);
+    }
+
+    //every metric by name, latencies in microseconds
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> out = new LinkedHashMap<>();
+        for (Command c : Command.values()) {
+            Histogram.Snapshot h = COMMAND_LATENCY[c.ordinal()].snapshot();
+            if (h.count() == 0) continue;
+            String name = "cmd." + c.name().toLowerCase();
+            latency(out, name, h);
+            out.put(name + ".errors", COMMAND_ERRORS[c.ordinal()].sum());
+        }
+        latency(out, "lock.file_write_wait", FILE_WRITE_WAIT.snapshot());
+        latency(out, "lock.file_write_hold", FILE_WRITE_HOLD.snapshot());
+        latency(out, "lock.file_read_wait", FILE_READ_WAIT.snapshot());
+        out.put("read.optimistic_retries", OPTIMISTIC_RETRIES.sum());
+        latency(out, "journal.wait", JOURNAL_WAIT.snapshot());
+        latency(out, "journal.commit", JOURNAL_COMMIT.snapshot());
+        out.put("journal.records", JOURNAL_RECORDS.sum());
+        latency(out, "disk.read", DISK_READ.snapshot());
+        latency(out, "disk.write", DISK_WRITE.snapshot());
+        latency(out, "disk.sync", DISK_SYNC.snapshot());
+        out.put("disk.read_bytes", DISK_READ_BYTES.sum());
+        out.put("disk.write_bytes", DISK_WRITE_BYTES.sum());
+        out.put("connections.opened", CONNECTIONS_OPENED.sum());
+        out.put("connections.active", ACTIVE_CONNECTIONS.sum());
+        Map<String, Long> gauges = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> g : GAUGES.entrySet()) gauges.put(g.getKey(), g.getValue().getAsLong());
+        for (GaugeSource source : SOURCES) source.gauges((name, value) -> gauges.merge(name, value, Long::sum));
+        out.putAll(gauges);
+        return out;
+    }
+
+    private static void latency(Map<String, Long> out, String name, Histogram.Snapshot h) {
+        out.put(name + ".count", h.count());
+        out.put(name + ".mean_us", h.meanNanos() / 1000);
+        for (int i = 0; i < PERCENTILES.length; i++) out.put(name + "." + PERCENTILE_NAMES[i] + "_us", h.percentile(PERCENTILES[i]) / 1000);
+        out.put(name + ".max_us", h.maxNanos() / 1000);
+    }
+
+    //name=value pairs, separator between them
+    public static String format(String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+            if (!sb.isEmpty()) sb.append(separator);
+            sb.append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    //publishes the snapshot as ca.concordia:type=FileServer, once per process
+    public static synchronized void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("ca.concordia:type=FileServer");
+            var server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) server.registerMBean(new MetricsMBean(), name);
+        } catch (Exception e) {
+            Log.warn("Could not register the metrics MBean: " + e);
+        }
+    }
+}
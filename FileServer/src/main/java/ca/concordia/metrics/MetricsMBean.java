@@ -0,0 +1,53 @@
+package ca.concordia.metrics;
+
+import javax.management.*;
+import java.util.Map;
+
+//every Metrics.snapshot() entry as a read-only long attribute
+final class MetricsMBean implements DynamicMBean {
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = Metrics.snapshot().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> snapshot = Metrics.snapshot();
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            Long value = snapshot.get(a);
+            if (value != null) list.add(new Attribute(a, value));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+
+    //attributes that have not been recorded yet show up once they have
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Long> snapshot = Metrics.snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (String name : snapshot.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "File server metrics", attributes, null, null, null);
+    }
+}
@@ -0,0 +1,153 @@
+package ca.concordia.replication;
+
+import ca.concordia.filesystem.Batch;
+import ca.concordia.filesystem.FileStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Predicate;
+
+//a log entry: one mutation that succeeded on the primary, with its bytes, replayed on a replica
+//through the same FileStore call. [u8 kind][name][...]:
+//  CREATE, DELETE   nothing more
+//  WRITE, APPEND    [i32 length][data]
+//  WRITE_AT         [i64 offset][i32 length][data]
+//  BATCH            (no name) [bool atomic][i32 count] then count entries of the kinds above
+final class Mutation {
+    private static final byte CREATE = 1;
+    private static final byte WRITE = 2;
+    private static final byte WRITE_AT = 3;
+    private static final byte APPEND = 4;
+    private static final byte DELETE = 5;
+    private static final byte BATCH = 6;
+
+    private Mutation() {}
+
+    static byte[] create(String name) {
+        return encode(CREATE, name, -1, null);
+    }
+
+    static byte[] write(String name, byte[] data) {
+        return encode(WRITE, name, -1, data);
+    }
+
+    static byte[] writeAt(String name, long offset, byte[] data) {
+        return encode(WRITE_AT, name, offset, data);
+    }
+
+    static byte[] append(String name, byte[] data) {
+        return encode(APPEND, name, -1, data);
+    }
+
+    static byte[] delete(String name) {
+        return encode(DELETE, name, -1, null);
+    }
+
+    //the batch's operations that changed something, READ and LIST are left out by the caller
+    static byte[] batch(boolean atomic, List<Batch.Op> ops) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(BATCH);
+            out.writeBoolean(atomic);
+            out.writeInt(ops.size());
+            for (Batch.Op op : ops) {
+                switch (op.kind()) {
+                    case CREATE -> encodeTo(out, CREATE, op.name(), -1, null);
+                    case WRITE -> encodeTo(out, WRITE, op.name(), -1, op.data());
+                    case APPEND -> encodeTo(out, APPEND, op.name(), -1, op.data());
+                    case DELETE -> encodeTo(out, DELETE, op.name(), -1, null);
+                    default -> throw new IllegalArgumentException(op.kind() + " does not change the store.");
+                }
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] encode(byte kind, String name, long offset, byte[] data) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + (data == null ? 0 : data.length));
+            encodeTo(new DataOutputStream(bytes), kind, name, offset, data);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void encodeTo(DataOutputStream out, byte kind, String name, long offset, byte[] data) throws IOException {
+        out.writeByte(kind);
+        out.writeUTF(name);
+        if (kind == WRITE_AT) out.writeLong(offset);
+        if (data != null) {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    //replays an entry, leaving out the operations on names skip holds; it succeeded on the primary, so
+    //a failure here means the replica has diverged
+    static void apply(byte[] entry, FileStore store, Predicate<String> skip) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+        byte kind = in.readByte();
+        if (kind != BATCH) {
+            applyOne(kind, in, store, skip);
+            return;
+        }
+        Batch batch = new Batch(in.readBoolean());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte opKind = in.readByte();
+            String name = in.readUTF();
+            if (skip.test(name)) {
+                if (opKind == WRITE || opKind == APPEND) in.skipNBytes(in.readInt());
+                continue;
+            }
+            switch (opKind) {
+                case CREATE -> batch.create(name);
+                case WRITE -> batch.write(name, readData(in));
+                case APPEND -> batch.append(name, readData(in));
+                case DELETE -> batch.delete(name);
+                default -> throw new IOException("Unknown batch operation " + opKind + " in the replication log.");
+            }
+        }
+        if (batch.ops().isEmpty()) return;
+        Batch.Result[] results = store.execute(batch);
+        for (int i = 0; i < results.length; i++) {
+            if (!results[i].ok()) throw new Exception("Batch operation " + (i + 1) + " failed: " + results[i].error());
+        }
+    }
+
+    private static void applyOne(byte kind, DataInputStream in, FileStore store, Predicate<String> skip) throws Exception {
+        String name = in.readUTF();
+        if (skip.test(name)) return;
+        switch (kind) {
+            case CREATE -> store.createFile(name);
+            case WRITE -> store.writeFile(name, readData(in));
+            case WRITE_AT -> {
+                long offset = in.readLong();
+                byte[] data = readData(in);
+                store.writeFile(name, offset, data.length, ByteBuffer.wrap(data)::get);
+            }
+            case APPEND -> {
+                byte[] data = readData(in);
+                store.appendFile(name, data.length, ByteBuffer.wrap(data)::get);
+            }
+            case DELETE -> store.deleteFile(name);
+            default -> throw new IOException("Unknown operation " + kind + " in the replication log.");
+        }
+    }
+
+    private static byte[] readData(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+}
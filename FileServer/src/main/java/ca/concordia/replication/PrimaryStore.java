@@ -0,0 +1,318 @@
+package ca.concordia.replication;
+
+import ca.concordia.filesystem.Batch;
+import ca.concordia.filesystem.FileStore;
+import ca.concordia.filesystem.FileTransfer;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static ca.concordia.replication.ReplicationProtocol.*;
+
+/*
+ * The store of a primary. Every mutation that succeeds is appended to a ReplicationLog, and each
+ * replica connected to the replication port is streamed the log from where it is (see ReplicaStore).
+ *
+ * The log is logical, an entry is the operation and its bytes, so a replica can have another block
+ * size or layout. A file's entries have to be in the order its mutations took effect: a mutation holds
+ * the lock of its name's stripe from before it runs until it is logged. A snapshot holds all of them
+ * only while it lists the names, then each file's while it sends that file, so every file in it is
+ * exactly the file as of the seq sent with it. Reads take no stripe.
+ */
+public final class PrimaryStore implements FileStore {
+
+    private static final int STRIPES = 256;
+    //entries written to a replica between flushes
+    private static final int SEND_BATCH = 256;
+
+    private final FileStore store;
+    private final ReplicationLog log;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final long epoch = System.currentTimeMillis();
+    private final AtomicInteger replicas = new AtomicInteger();
+    private volatile ServerSocket server;
+
+    //retainBytes of the newest entries are kept for replicas that reconnect
+    public PrimaryStore(FileStore store, long retainBytes) {
+        this.store = store;
+        this.log = new ReplicationLog(retainBytes);
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+        Metrics.gauge("replication.head", log::head);
+        Metrics.gauge("replication.replicas", replicas::get);
+    }
+
+    //accepts replicas on port, each is served by a thread of its own until it disconnects
+    public void listen(int port) throws IOException {
+        ServerSocket socket = new ServerSocket(port);
+        server = socket;
+        Thread.ofPlatform().daemon().name("Replication-acceptor").start(() -> {
+            while (!socket.isClosed()) {
+                try {
+                    Socket replica = socket.accept();
+                    Thread.ofPlatform().daemon().name("Replica-" + replica.getRemoteSocketAddress()).start(() -> serve(replica));
+                } catch (IOException e) {
+                    if (!socket.isClosed()) Log.warn("Replication accept failed: " + e.getMessage());
+                }
+            }
+        });
+        Log.info("Replication stream on port " + port + " (epoch " + epoch + ")");
+    }
+
+    private void serve(Socket socket) {
+        String remote = String.valueOf(socket.getRemoteSocketAddress());
+        replicas.incrementAndGet();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            long theirEpoch = in.readLong();
+            long cursor = in.readLong();
+            out.writeLong(epoch);
+            if (theirEpoch == epoch && log.covers(cursor)) {
+                out.writeByte(RESUME);
+                Log.info("Replica " + remote + " resumes after " + ReplicationProtocol.position(epoch, cursor));
+            } else {
+                cursor = sendSnapshot(out);
+                Log.info("Replica " + remote + " was sent a snapshot as of " + ReplicationProtocol.position(epoch, cursor));
+            }
+            out.flush();
+
+            long beatNanos = TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS);
+            long lastBeat = 0;
+            while (true) {
+                List<ReplicationLog.Entry> entries = log.after(cursor, SEND_BATCH, HEARTBEAT_MILLIS);
+                // it reconnects and is sent a snapshot
+                if (entries == null) throw new IOException("it fell behind the retained log");
+                for (ReplicationLog.Entry e : entries) {
+                    out.writeByte(ENTRY);
+                    out.writeLong(e.seq());
+                    out.writeInt(e.data().length);
+                    out.write(e.data());
+                    cursor = e.seq();
+                }
+                long now = System.nanoTime();
+                if (entries.isEmpty() || now - lastBeat >= beatNanos) {
+                    out.writeByte(HEARTBEAT);
+                    out.writeLong(log.head());
+                    lastBeat = now;
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            Log.warn("Replica " + remote + " disconnected: " + e.getMessage());
+        } catch (Exception e) {
+            Log.error("Replication to " + remote + " failed", e);
+        } finally {
+            replicas.decrementAndGet();
+        }
+    }
+
+    //the names as of one seq, then every file streamed as of the seq it is read at, which the replica
+    //skips that file's entries up to; returns the seq the log is sent from
+    private long sendSnapshot(DataOutputStream out) throws Exception {
+        long seq;
+        String[] names;
+        // only as long as it takes to list the names
+        for (ReentrantLock stripe : stripes) stripe.lock();
+        try {
+            seq = log.head();
+            names = store.listFiles();
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--) stripes[i].unlock();
+        }
+        out.writeByte(SNAPSHOT);
+        out.writeLong(seq);
+        out.writeInt(names.length);
+        for (String name : names) out.writeUTF(name);
+        for (String name : names) {
+            ReentrantLock lock = lockStripe(name);
+            try {
+                out.writeLong(log.head());
+                sendFile(name, out);
+            } finally {
+                lock.unlock();
+            }
+        }
+        out.writeLong(log.head());
+        return seq;
+    }
+
+    //[i64 length][data] of a file, or -1 if it was deleted since it was listed
+    private void sendFile(String name, DataOutputStream out) throws Exception {
+        boolean[] begun = new boolean[1];
+        try {
+            store.readFile(name, 0, Long.MAX_VALUE, new ChunkSink() {
+                @Override
+                public void begin(long length) throws IOException {
+                    begun[0] = true;
+                    out.writeLong(length);
+                }
+
+                @Override
+                public void accept(byte[] buf, int off, int len) throws IOException {
+                    out.write(buf, off, len);
+                }
+            });
+        } catch (Exception e) {
+            // part of it is sent already, or it failed for another reason: the replica reconnects
+            if (begun[0] || Arrays.asList(store.listFiles()).contains(name)) throw e;
+            out.writeLong(-1);
+        }
+    }
+
+    private static int stripeOf(String name) {
+        int h = name == null ? 0 : name.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private ReentrantLock lockStripe(String name) {
+        ReentrantLock lock = stripes[stripeOf(name)];
+        lock.lock();
+        return lock;
+    }
+
+    //the whole of a ranged write, which is logged with its bytes
+    private static byte[] readAll(long length, ChunkSource source) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Length out of range: " + length);
+        byte[] data = new byte[(int) length];
+        source.read(data, 0, data.length);
+        return data;
+    }
+
+    @Override
+    public void createFile(String fileName) throws Exception {
+        ReentrantLock lock = lockStripe(fileName);
+        try {
+            store.createFile(fileName);
+            log.append(Mutation.create(fileName));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void writeFile(String fileName, String content) throws Exception {
+        writeFile(fileName, content.getBytes());
+    }
+
+    @Override
+    public void writeFile(String fileName, byte[] data) throws Exception {
+        ReentrantLock lock = lockStripe(fileName);
+        try {
+            store.writeFile(fileName, data);
+            log.append(Mutation.write(fileName, data));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long writeFile(String fileName, long offset, long length, ChunkSource source) throws Exception {
+        byte[] data = readAll(length, source);
+        ReentrantLock lock = lockStripe(fileName);
+        try {
+            long size = store.writeFile(fileName, offset, data.length, java.nio.ByteBuffer.wrap(data)::get);
+            log.append(Mutation.writeAt(fileName, offset, data));
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long appendFile(String fileName, long length, ChunkSource source) throws Exception {
+        byte[] data = readAll(length, source);
+        ReentrantLock lock = lockStripe(fileName);
+        try {
+            long size = store.appendFile(fileName, data.length, java.nio.ByteBuffer.wrap(data)::get);
+            log.append(Mutation.append(fileName, data));
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteFile(String fileName) throws Exception {
+        ReentrantLock lock = lockStripe(fileName);
+        try {
+            store.deleteFile(fileName);
+            log.append(Mutation.delete(fileName));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //the operations that succeeded are logged as one batch, so a replica applies them with one record
+    //and an atomic batch stays atomic there
+    @Override
+    public Batch.Result[] execute(Batch batch) throws Exception {
+        List<Batch.Op> ops = batch.ops();
+        // ascending, like a snapshot takes them
+        TreeSet<Integer> used = new TreeSet<>();
+        for (Batch.Op op : ops) {
+            if (op.name() != null) used.add(stripeOf(op.name()));
+        }
+        for (int s : used) stripes[s].lock();
+        try {
+            Batch.Result[] results = store.execute(batch);
+            List<Batch.Op> applied = new ArrayList<>();
+            for (int i = 0; i < ops.size(); i++) {
+                Batch.Kind kind = ops.get(i).kind();
+                if (results[i].ok() && kind != Batch.Kind.READ && kind != Batch.Kind.LIST) applied.add(ops.get(i));
+            }
+            if (!applied.isEmpty()) log.append(Mutation.batch(batch.isAtomic(), applied));
+            return results;
+        } finally {
+            for (int s : used.descendingSet()) stripes[s].unlock();
+        }
+    }
+
+    @Override
+    public String readFile(String fileName) throws Exception {
+        return store.readFile(fileName);
+    }
+
+    @Override
+    public byte[] readFileBytes(String fileName) throws Exception {
+        return store.readFileBytes(fileName);
+    }
+
+    @Override
+    public long readFile(String fileName, long offset, long length, ChunkSink sink) throws Exception {
+        return store.readFile(fileName, offset, length, sink);
+    }
+
+    @Override
+    public FileTransfer openTransfer(String fileName, long offset, long length, long minLength) throws Exception {
+        return store.openTransfer(fileName, offset, length, minLength);
+    }
+
+    @Override
+    public String[] listFiles() {
+        return store.listFiles();
+    }
+
+    //every mutation that returned before this call is logged at or before it
+    @Override
+    public String position() {
+        return ReplicationProtocol.position(epoch, log.head());
+    }
+
+    @Override
+    public void close() throws Exception {
+        ServerSocket socket = server;
+        if (socket != null) socket.close();
+        store.close();
+    }
+}
@@ -0,0 +1,68 @@
+package ca.concordia.replication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+//the position a replica's store holds, kept in a file next to it so a restart resumes from there
+//instead of a snapshot. [i64 epoch][i64 applied][u8 clean][i32 crc]: it is marked dirty before
+//entries are applied and clean once they are, so a crash in between, a torn write or a missing file
+//all read back as no position
+final class ReplicaPosition implements AutoCloseable {
+
+    private static final int SIZE = 8 + 8 + 1 + 4;
+
+    private final FileChannel channel;
+    private boolean clean;
+
+    ReplicaPosition(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    //[epoch, applied] as last marked clean, null if there is none
+    long[] load() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SIZE);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, buf.position()) < 0) return null;
+        }
+        buf.flip();
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, SIZE - 4);
+        if (buf.getInt(SIZE - 4) != (int) crc.getValue() || buf.get(16) != 1) return null;
+        clean = true;
+        return new long[] { buf.getLong(0), buf.getLong(8) };
+    }
+
+    boolean isClean() {
+        return clean;
+    }
+
+    //the store is about to change, until markClean a restart cannot tell how far it got
+    void markDirty() throws IOException {
+        write(0, 0, false);
+    }
+
+    //the store holds everything up to applied of epoch, durably
+    void markClean(long epoch, long applied) throws IOException {
+        write(epoch, applied, true);
+    }
+
+    private void write(long epoch, long applied, boolean clean) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SIZE);
+        buf.putLong(epoch).putLong(applied).put((byte) (clean ? 1 : 0));
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, SIZE - 4);
+        buf.putInt((int) crc.getValue()).flip();
+        while (buf.hasRemaining()) channel.write(buf, buf.position());
+        channel.force(false);
+        this.clean = clean;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
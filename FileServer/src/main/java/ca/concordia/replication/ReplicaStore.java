@@ -0,0 +1,305 @@
+package ca.concordia.replication;
+
+import ca.concordia.filesystem.Batch;
+import ca.concordia.filesystem.FileStore;
+import ca.concordia.filesystem.FileTransfer;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static ca.concordia.replication.ReplicationProtocol.*;
+
+/*
+ * The store of a read-only replica. A thread follows a primary's replication stream (see PrimaryStore)
+ * and applies each entry to the local store in order; clients can read and list but not change anything.
+ *
+ * A read is refused unless the replica had everything the primary had at most maxStalenessMillis ago,
+ * which heartbeats tell it: a heartbeat carries the primary's head, and once that seq is applied the
+ * replica was current as of when the heartbeat arrived. A client that needs its own writes passes the
+ * primary's position to awaitPosition (AFTER) before reading.
+ *
+ * What is applied is kept in a ReplicaPosition file next to the store, so a replica that restarts
+ * resumes from there while the primary still retains the entries after it.
+ */
+public final class ReplicaStore implements FileStore {
+
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final FileStore store;
+    private final String host;
+    private final int port;
+    private final long maxStalenessMillis;
+    private final ReplicaPosition saved;
+
+    //guarded by this; epoch is 0 until the first snapshot or resume
+    private long epoch;
+    private long applied;
+    //nanoTime as of which everything on the primary is applied, 0 while never
+    private volatile long caughtUpAt;
+    //applier thread only: files the last snapshot sent as of a later seq than the one the log is
+    //replayed from, with that seq; their entries up to it are in the snapshot already
+    private final Map<String, Long> skipUpTo = new HashMap<>();
+    //the primary's head once the snapshot was sent, every file is as of at most this seq
+    private long snapshotEnd;
+
+    //positionFile keeps what the store holds across restarts
+    public ReplicaStore(FileStore store, Path positionFile, String host, int port, long maxStalenessMillis) throws IOException {
+        this.store = store;
+        this.host = host;
+        this.port = port;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.saved = new ReplicaPosition(positionFile);
+        long[] position = saved.load();
+        if (position != null) {
+            epoch = position[0];
+            applied = position[1];
+        }
+        Metrics.gauge("replication.applied", () -> {
+            synchronized (this) {
+                return applied;
+            }
+        });
+        Metrics.gauge("replication.staleness_ms", () -> {
+            long at = caughtUpAt;
+            return at == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - at);
+        });
+    }
+
+    //follows the primary from a daemon thread, reconnecting whenever the stream breaks
+    public void start() {
+        Thread.ofPlatform().daemon().name("Replication-applier").start(() -> {
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(host, port));
+                    socket.setTcpNoDelay(true);
+                    follow(socket);
+                } catch (IOException e) {
+                    Log.warn("Replication from " + host + ":" + port + " interrupted: " + e.getMessage());
+                } catch (Exception e) {
+                    // resync from a snapshot rather than serve a copy that no longer matches
+                    synchronized (this) {
+                        epoch = 0;
+                        applied = 0;
+                    }
+                    Log.error("Replica diverged from " + host + ":" + port + ", resyncing", e);
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    private void follow(Socket socket) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        synchronized (this) {
+            out.writeLong(epoch);
+            out.writeLong(applied);
+        }
+        out.flush();
+        long theirEpoch = in.readLong();
+        byte mode = in.readByte();
+        if (mode == SNAPSHOT) {
+            loadSnapshot(in, theirEpoch);
+        } else if (mode != RESUME) {
+            throw new IOException("Unexpected replication handshake " + mode);
+        }
+        Log.info("Replicating " + host + ":" + port + " from " + position());
+
+        //heartbeats not yet covered by what is applied: [head, nanoTime received]
+        ArrayDeque<long[]> marks = new ArrayDeque<>();
+        while (true) {
+            byte type = in.readByte();
+            if (type == ENTRY) {
+                long seq = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                long expected;
+                synchronized (this) {
+                    expected = applied + 1;
+                }
+                if (seq != expected) throw new IOException("Expected entry " + expected + " but got " + seq);
+                if (saved.isClean()) saved.markDirty();
+                Mutation.apply(data, store, name -> {
+                    Long upTo = skipUpTo.get(name);
+                    return upTo != null && seq <= upTo;
+                });
+                advance(seq);
+                if (seq >= snapshotEnd) skipUpTo.clear();
+            } else if (type == HEARTBEAT) {
+                marks.add(new long[] { in.readLong(), System.nanoTime() });
+            } else {
+                throw new IOException("Unexpected replication message " + type);
+            }
+            long done;
+            long doneEpoch;
+            synchronized (this) {
+                done = applied;
+                doneEpoch = epoch;
+            }
+            while (!marks.isEmpty() && marks.peek()[0] <= done) caughtUpAt = marks.poll()[1];
+            // once a burst is applied, and the snapshot before it whole, a restart can resume here
+            if (!saved.isClean() && done >= snapshotEnd && in.available() == 0) saved.markClean(doneEpoch, done);
+        }
+    }
+
+    //replaces every local file with the primary's, each written as it arrives; reads are refused until
+    //the entries after it are applied too
+    private void loadSnapshot(DataInputStream in, long theirEpoch) throws Exception {
+        caughtUpAt = 0;
+        saved.markDirty();
+        long seq = in.readLong();
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; i++) names[i] = in.readUTF();
+        // the files that are gone go first, which leaves room for the ones coming
+        Set<String> keep = new HashSet<>(Arrays.asList(names));
+        Set<String> local = new HashSet<>();
+        for (String name : store.listFiles()) {
+            if (keep.contains(name)) local.add(name);
+            else store.deleteFile(name);
+        }
+        skipUpTo.clear();
+        for (String name : names) {
+            long fileSeq = in.readLong();
+            long length = in.readLong();
+            if (local.contains(name)) store.deleteFile(name);
+            // -1: deleted after it was listed
+            if (length >= 0) {
+                store.createFile(name);
+                if (length > 0) store.appendFile(name, length, in::readFully);
+            }
+            if (fileSeq > seq) skipUpTo.put(name, fileSeq);
+        }
+        snapshotEnd = in.readLong();
+        synchronized (this) {
+            epoch = theirEpoch;
+            applied = seq;
+            notifyAll();
+        }
+    }
+
+    private synchronized void advance(long seq) {
+        applied = seq;
+        notifyAll();
+    }
+
+    private void checkFresh() {
+        long at = caughtUpAt;
+        if (at == 0) throw new IllegalStateException("Replica has not synced with the primary yet.");
+        long behind = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - at);
+        if (behind > maxStalenessMillis) throw new IllegalStateException("Replica is " + behind + " ms behind the primary.");
+    }
+
+    private Exception readOnly() {
+        return new Exception("Read-only replica of " + host + ":" + port + ", send writes to the primary.");
+    }
+
+    @Override
+    public void createFile(String fileName) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeFile(String fileName, String content) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeFile(String fileName, byte[] data) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public long writeFile(String fileName, long offset, long length, ChunkSource source) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public long appendFile(String fileName, long length, ChunkSource source) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void deleteFile(String fileName) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public Batch.Result[] execute(Batch batch) throws Exception {
+        for (Batch.Op op : batch.ops()) {
+            if (op.kind() != Batch.Kind.READ && op.kind() != Batch.Kind.LIST) throw readOnly();
+        }
+        checkFresh();
+        return store.execute(batch);
+    }
+
+    @Override
+    public String readFile(String fileName) throws Exception {
+        checkFresh();
+        return store.readFile(fileName);
+    }
+
+    @Override
+    public byte[] readFileBytes(String fileName) throws Exception {
+        checkFresh();
+        return store.readFileBytes(fileName);
+    }
+
+    @Override
+    public long readFile(String fileName, long offset, long length, ChunkSink sink) throws Exception {
+        checkFresh();
+        return store.readFile(fileName, offset, length, sink);
+    }
+
+    @Override
+    public FileTransfer openTransfer(String fileName, long offset, long length, long minLength) throws Exception {
+        checkFresh();
+        return store.openTransfer(fileName, offset, length, minLength);
+    }
+
+    @Override
+    public String[] listFiles() {
+        checkFresh();
+        return store.listFiles();
+    }
+
+    //what is applied here, null before the first sync
+    @Override
+    public synchronized String position() {
+        return epoch == 0 ? null : ReplicationProtocol.position(epoch, applied);
+    }
+
+    @Override
+    public synchronized void awaitPosition(String position, long timeoutMillis) throws Exception {
+        long[] wanted = parsePosition(position);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long left;
+        while (!reached(wanted[0], wanted[1]) && (left = deadline - System.nanoTime()) > 0) TimeUnit.NANOSECONDS.timedWait(this, left);
+        if (!reached(wanted[0], wanted[1])) throw new Exception("Replica has not caught up with " + position + " yet.");
+    }
+
+    //a position from an earlier epoch is included in the snapshot of the primary's restart
+    private boolean reached(long wantedEpoch, long wantedSeq) {
+        return epoch != 0 && (wantedEpoch < epoch || (wantedEpoch == epoch && applied >= wantedSeq));
+    }
+
+    @Override
+    public void close() throws Exception {
+        store.close();
+        saved.close();
+    }
+}
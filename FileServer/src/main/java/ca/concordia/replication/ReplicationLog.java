@@ -0,0 +1,73 @@
+package ca.concordia.replication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+//the primary's mutations in the order they took effect, numbered from 1. Only the newest retainBytes
+//worth of entries are kept in memory for replicas to catch up from; one that needs an older entry
+//is sent a snapshot instead
+final class ReplicationLog {
+
+    record Entry(long seq, byte[] data) {}
+
+    private final long retainBytes;
+    //ring of the retained entries, the oldest at start; seqs are consecutive
+    private Entry[] ring = new Entry[1024];
+    private int start;
+    private int count;
+    private long bytes;
+    private long head;
+
+    ReplicationLog(long retainBytes) {
+        this.retainBytes = retainBytes;
+    }
+
+    //returns the entry's seq
+    synchronized long append(byte[] data) {
+        if (count == ring.length) {
+            Entry[] grown = new Entry[ring.length * 2];
+            for (int i = 0; i < count; i++) grown[i] = ring[(start + i) % ring.length];
+            ring = grown;
+            start = 0;
+        }
+        Entry entry = new Entry(++head, data);
+        ring[(start + count) % ring.length] = entry;
+        count++;
+        bytes += data.length;
+        // the newest entry always stays, however large
+        while (bytes > retainBytes && count > 1) {
+            bytes -= ring[start].data().length;
+            ring[start] = null;
+            start = (start + 1) % ring.length;
+            count--;
+        }
+        notifyAll();
+        return head;
+    }
+
+    synchronized long head() {
+        return head;
+    }
+
+    //whether a replica that has everything up to seq can continue from here
+    synchronized boolean covers(long seq) {
+        if (seq > head) return false;
+        return seq == head || (count > 0 && ring[start].seq() <= seq + 1);
+    }
+
+    //up to max entries after seq, waiting up to timeoutMillis for the first one (empty if none came);
+    //null once entries after seq are no longer retained
+    synchronized List<Entry> after(long seq, int max, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long left;
+        while (head <= seq && (left = deadline - System.nanoTime()) > 0) TimeUnit.NANOSECONDS.timedWait(this, left);
+        if (head <= seq) return List.of();
+        if (count == 0 || ring[start].seq() > seq + 1) return null;
+        int from = (int) (seq + 1 - ring[start].seq());
+        int n = Math.min(max, count - from);
+        List<Entry> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) out.add(ring[(start + from + i) % ring.length]);
+        return out;
+    }
+}
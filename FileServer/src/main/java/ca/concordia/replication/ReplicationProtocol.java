@@ -0,0 +1,44 @@
+package ca.concordia.replication;
+
+/*
+ * Stream from a primary to a replica, on the primary's replication port.
+ *
+ * replica -> primary, once: [i64 epoch][i64 seq], the position the replica has (0 0 for none)
+ * primary -> replica:       [i64 epoch][u8 RESUME or SNAPSHOT]
+ *   SNAPSHOT [i64 seq][i32 count][UTF name]*count, the names as of seq, then per name in that
+ *            order [i64 file seq][i64 length][data] (length -1: deleted since), the file as of file
+ *            seq, and last [i64 end], the primary's head after the last file. The replica's files are
+ *            replaced by these, and of the entries after seq it skips a file's up to its file seq
+ * then, until either side closes:
+ *   ENTRY     [i64 seq][i32 length][Mutation], seqs consecutive
+ *   HEARTBEAT [i64 head], the primary's last seq when it was sent; one goes out at least every
+ *             HEARTBEAT_MILLIS, which is what a replica measures its staleness against
+ *
+ * The epoch is when the primary started. A replica whose position is from another epoch, or older
+ * than what the primary still retains, gets a snapshot.
+ */
+final class ReplicationProtocol {
+    static final byte RESUME = 1;
+    static final byte SNAPSHOT = 2;
+    static final byte ENTRY = 3;
+    static final byte HEARTBEAT = 4;
+
+    static final long HEARTBEAT_MILLIS = 50;
+
+    private ReplicationProtocol() {}
+
+    //"epoch:seq", what clients pass from a primary's TOKEN to a replica's AFTER
+    static String position(long epoch, long seq) {
+        return epoch + ":" + seq;
+    }
+
+    static long[] parsePosition(String position) throws Exception {
+        int colon = position.indexOf(':');
+        try {
+            if (colon > 0) return new long[] { Long.parseLong(position.substring(0, colon)), Long.parseLong(position.substring(colon + 1)) };
+        } catch (NumberFormatException ignored) {
+            // reported below
+        }
+        throw new Exception("'" + position + "' is not a replication position (<epoch>:<seq>).");
+    }
+}
@@ -0,0 +1,199 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.Batch;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Framed binary protocol, entered by sending the text command BINARY.
+ *
+ * request: [u8 opcode][i32 request id][i32 payload length][payload]
+ * reply:   [u8 status][i32 request id][i32 payload length][payload]
+ *
+ * Payloads that name a file start with [u16 name length][UTF-8 name], WRITE
+ * carries the file content in the rest of the payload. Replies echo the request
+ * id and come back in request order, so clients may pipeline without waiting.
+ *
+ * Ranged operations move a large file as a series of requests of at most one frame each:
+ *   READ_RANGE [name][i64 offset][i32 length] -> the bytes, fewer at the end of the file
+ *   WRITE_AT   [name][i64 offset][data]       -> [i64 new file size]
+ *   APPEND     [name][data]                   -> [i64 new file size]
+ *
+ * STATS takes no payload and answers with the server metrics as UTF-8 "name=value" lines.
+ *
+ * BATCH runs several operations with one journal flush and answers them in one frame:
+ *   request [u8 flags (1 = atomic)][i32 count] then per operation [u8 opcode][i32 length][payload]
+ *   reply   per operation [u8 status][i32 length][payload]
+ * CREATE, WRITE, READ, APPEND, DELETE and LIST can be batched, with their usual payloads and replies.
+ *
+ * Reading your own writes from a replica:
+ *   TOKEN (no payload)                    -> the primary's replication position as UTF-8
+ *   AFTER [u16 length][token][i64 millis] -> empty once the replica has applied up to token;
+ *                                            millis is optional, 5000 by default
+ */
+final class BinaryProtocol {
+    static final String UPGRADE_COMMAND = "BINARY";
+
+    static final int HEADER_SIZE = 9;
+    static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    static final byte OP_CREATE = 1;
+    static final byte OP_WRITE = 2;
+    static final byte OP_READ = 3;
+    static final byte OP_DELETE = 4;
+    static final byte OP_LIST = 5;
+    static final byte OP_QUIT = 6;
+    static final byte OP_READ_RANGE = 7;
+    static final byte OP_WRITE_AT = 8;
+    static final byte OP_APPEND = 9;
+    static final byte OP_STATS = 10;
+    static final byte OP_BATCH = 11;
+    static final byte OP_TOKEN = 12;
+    static final byte OP_AFTER = 13;
+
+    static final byte BATCH_ATOMIC = 1;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    static final byte[] EMPTY = new byte[0];
+
+    record Request(byte opcode, int id, byte[] payload) {}
+
+    private BinaryProtocol() {}
+
+    static boolean isUpgrade(String line) {
+        //same token ClientHandler.handleCommand switches on
+        return line.split(" ", 2)[0].equalsIgnoreCase(UPGRADE_COMMAND);
+    }
+
+    //blocking read of one request, null if the client closed between frames
+    static Request readRequest(DataInputStream in) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0) return null;
+        try {
+            int id = in.readInt();
+            byte[] payload = new byte[checkLength(in.readInt())];
+            in.readFully(payload);
+            return new Request((byte) opcode, id, payload);
+        } catch (EOFException e) {
+            throw new IOException("Truncated request frame", e);
+        }
+    }
+
+    //non-blocking decode from a buffer in read mode, null (position untouched) until a whole frame is there
+    static Request tryDecode(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < HEADER_SIZE) return null;
+        int start = buf.position();
+        int length = checkLength(buf.getInt(start + 5));
+        if (buf.remaining() < HEADER_SIZE + length) return null;
+        byte opcode = buf.get();
+        int id = buf.getInt();
+        buf.getInt();
+        byte[] payload = new byte[length];
+        buf.get(payload);
+        return new Request(opcode, id, payload);
+    }
+
+    static void writeReply(DataOutputStream out, byte status, int id, byte[] payload) throws IOException {
+        writeReplyHeader(out, status, id, payload.length);
+        out.write(payload);
+    }
+
+    //header of a reply whose payload is streamed after it
+    static void writeReplyHeader(DataOutputStream out, byte status, int id, int length) throws IOException {
+        out.writeByte(status);
+        out.writeInt(id);
+        out.writeInt(length);
+    }
+
+    static String readName(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 2) throw new IOException("Missing filename");
+        int len = payload.getShort() & 0xFFFF;
+        if (payload.remaining() < len) throw new IOException("Truncated filename");
+        String name = new String(payload.array(), payload.arrayOffset() + payload.position(), len, StandardCharsets.UTF_8);
+        payload.position(payload.position() + len);
+        return name;
+    }
+
+    static byte[] remaining(ByteBuffer payload) {
+        byte[] rest = new byte[payload.remaining()];
+        payload.get(rest);
+        return rest;
+    }
+
+    //LIST reply: [i32 count] then one [u16 length][UTF-8 name] per file
+    static byte[] encodeNames(String[] names) {
+        byte[][] encoded = new byte[names.length][];
+        int size = 4;
+        for (int i = 0; i < names.length; i++) {
+            encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+            size += 2 + encoded[i].length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(names.length);
+        for (byte[] name : encoded) {
+            out.putShort((short) name.length);
+            out.put(name);
+        }
+        return out.array();
+    }
+
+    static Batch decodeBatch(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 5) throw new IOException("Missing batch header");
+        Batch batch = new Batch((payload.get() & BATCH_ATOMIC) != 0);
+        int count = payload.getInt();
+        for (int i = 0; i < count; i++) {
+            if (payload.remaining() < 5) throw new IOException("Truncated batch operation " + (i + 1));
+            byte opcode = payload.get();
+            int len = payload.getInt();
+            if (len < 0 || len > payload.remaining()) throw new IOException("Truncated batch operation " + (i + 1));
+            ByteBuffer op = payload.slice(payload.position(), len);
+            payload.position(payload.position() + len);
+            switch (opcode) {
+                case OP_CREATE -> batch.create(readName(op));
+                case OP_WRITE -> batch.write(readName(op), remaining(op));
+                case OP_READ -> batch.read(readName(op));
+                case OP_APPEND -> batch.append(readName(op), remaining(op));
+                case OP_DELETE -> batch.delete(readName(op));
+                case OP_LIST -> batch.list();
+                default -> throw new IOException("Opcode " + opcode + " cannot be batched");
+            }
+        }
+        return batch;
+    }
+
+    static byte[] encodeResults(Batch batch, Batch.Result[] results) {
+        byte[][] payloads = new byte[results.length][];
+        int size = 0;
+        for (int i = 0; i < results.length; i++) {
+            Batch.Result r = results[i];
+            if (!r.ok()) {
+                payloads[i] = r.error().getBytes(StandardCharsets.UTF_8);
+            } else {
+                payloads[i] = switch (batch.ops().get(i).kind()) {
+                    case READ -> r.data();
+                    case APPEND -> ByteBuffer.allocate(8).putLong(r.size()).array();
+                    case LIST -> encodeNames(r.names());
+                    default -> EMPTY;
+                };
+            }
+            size += 5 + payloads[i].length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        for (int i = 0; i < results.length; i++) {
+            out.put(results[i].ok() ? STATUS_OK : STATUS_ERROR).putInt(payloads[i].length).put(payloads[i]);
+        }
+        return out.array();
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_PAYLOAD) throw new IOException("Bad payload length " + length);
+        return length;
+    }
+}
@@ -0,0 +1,537 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.Batch;
+import ca.concordia.filesystem.FileStore;
+import ca.concordia.filesystem.FileTransfer;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+//parses and runs the text commands of one client connection
+class ClientHandler implements Runnable {
+    static final String GREETING = " Connected to FileServer. Type commands:";
+    //binary reads at least this long (-Dfileserver.transferThreshold) go out as a FileTransfer when
+    //the engine takes one, shorter ones are copied from the block cache
+    static final long TRANSFER_THRESHOLD = Long.getLong("fileserver.transferThreshold", 64 * 1024);
+    //longest text line a client may send, a longer one gets LINE_TOO_LONG and the connection is closed
+    static final int MAX_LINE_LENGTH = 1 << 20;
+    static final String LINE_TOO_LONG = "ERROR: Line is longer than " + MAX_LINE_LENGTH + " bytes.";
+    //how long AFTER waits for a replica when the client gives no timeout
+    private static final long AFTER_TIMEOUT_MILLIS = 5000;
+
+    //sends a reply body the engine's way once its header is written, and closes the transfer
+    interface TransferSink {
+        void send(FileTransfer transfer) throws IOException;
+    }
+
+    private final Socket clientSocket;
+    //formatted once, request log lines copy it
+    private final String remote;
+    private final FileStore fsManager;
+    //requests seen, for log sampling; a connection's requests never run concurrently
+    private long requests;
+    //null: every reply is a copy
+    private TransferSink transfers;
+    //commands queued since MULTI, run by EXEC; invalid once a queued command was rejected
+    private Batch batch;
+    private boolean batchInvalid;
+
+    //blocking engines: the handler owns the socket and runs on its own thread
+    public ClientHandler(Socket socket, FileStore fsManager) {
+        this.clientSocket = socket;
+        this.remote = String.valueOf(socket.getRemoteSocketAddress());
+        this.fsManager = fsManager;
+    }
+
+    //NIO engine: the event loop owns the channel and only hands us complete lines
+    public ClientHandler(SocketAddress remoteAddress, FileStore fsManager) {
+        this.clientSocket = null;
+        this.remote = String.valueOf(remoteAddress);
+        this.fsManager = fsManager;
+    }
+
+    void setTransferSink(TransferSink transfers) {
+        this.transfers = transfers;
+    }
+
+    @Override
+    public void run() {
+        Metrics.CONNECTIONS_OPENED.increment();
+        Metrics.ACTIVE_CONNECTIONS.increment();
+        try (
+                InputStream in = new BufferedInputStream(clientSocket.getInputStream());
+                OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream())
+        ) {
+            PrintWriter writer = new PrintWriter(out);
+            writer.println(GREETING);
+            writer.flush();
+
+            String line;
+            while ((line = readLine(in, writer)) != null) {
+                if (!handleCommand(line, writer)) {
+                    writer.flush();
+                    clientSocket.close();
+                    return;
+                }
+                if (BinaryProtocol.isUpgrade(line)) {
+                    writer.flush();
+                    runBinary(in, out);
+                    return;
+                }
+                //only flush once the client has nothing else queued, pipelined commands share one write
+                if (in.available() == 0) writer.flush();
+            }
+        } catch (IOException e) {
+            Log.info("Client disconnected: " + remote);
+        } finally {
+            Metrics.ACTIVE_CONNECTIONS.decrement();
+            try { clientSocket.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    private void runBinary(InputStream in, OutputStream out) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        DataOutputStream dout = new DataOutputStream(out);
+        SocketChannel channel = clientSocket.getChannel();
+        if (channel != null) {
+            // the socket's streams already need it blocking; a blocking channel takes every write whole,
+            // so a transfer that returns short made no progress and would never finish
+            channel.configureBlocking(true);
+            // what is buffered goes first, then the channel takes the body in place of the stream
+            setTransferSink(transfer -> {
+                try (transfer) {
+                    dout.flush();
+                    if (!transfer.writeTo(channel)) throw new IOException("Transfer stopped with " + transfer.remaining() + " byte(s) unsent.");
+                }
+            });
+        }
+        BinaryProtocol.Request request;
+        while ((request = BinaryProtocol.readRequest(din)) != null) {
+            boolean keepGoing = handleRequest(request, dout);
+            if (!keepGoing || in.available() == 0) dout.flush();
+            if (!keepGoing) return;
+        }
+    }
+
+    //reads one line as raw bytes so nothing past the newline is buffered away from a later binary switch;
+    //null at the end of the stream, or once a line too long was answered with LINE_TOO_LONG
+    private static String readLine(InputStream in, PrintWriter writer) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') break;
+            line.write(b);
+            if (line.size() > MAX_LINE_LENGTH) {
+                writer.println(LINE_TOO_LONG);
+                writer.flush();
+                return null;
+            }
+        }
+        if (b == -1 && line.size() == 0) return null;
+        String s = line.toString();
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    //runs one command line and writes its reply, returns false once the client asked to quit
+    boolean handleCommand(String line, PrintWriter writer) {
+        if (line.trim().isEmpty()) return true;
+        Log.Line log = requestLine();
+        if (log != null) log.append(line).commit();
+        String[] parts = line.split(" ", 3);
+        String command = parts[0].toUpperCase();
+        //the engines switch to frames after any BINARY line, so that one is never queued
+        if (batch != null && !command.equals("EXEC") && !command.equals("DISCARD") && !command.equals("QUIT")
+                && !command.equals(BinaryProtocol.UPGRADE_COMMAND)) {
+            queue(parts, command, writer);
+            return true;
+        }
+        long start = System.nanoTime();
+        boolean failed = false;
+
+        //handles client commands
+        try {
+            switch (command) {
+                case "CREATE":
+                    if (parts.length < 2) throw new Exception("Usage: CREATE <filename>");
+                    fsManager.createFile(parts[1]);
+                    writer.println("SUCCESS: File '" + parts[1] + "' created.");
+                    break;
+
+                case "WRITE":
+                    if (parts.length < 3) throw new Exception("Usage: WRITE <filename> <content>");
+                    fsManager.writeFile(parts[1], parts[2]);
+                    writer.println("SUCCESS: File '" + parts[1] + "' written.");
+                    break;
+
+                case "READ":
+                    if (parts.length < 2) throw new Exception("Usage: READ <filename> [<offset> <length>]");
+                    String data;
+                    if (parts.length == 3) {
+                        String[] range = parts[2].trim().split("\\s+");
+                        if (range.length != 2) throw new Exception("Usage: READ <filename> [<offset> <length>]");
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        fsManager.readFile(parts[1], parseNumber(range[0]), parseNumber(range[1]), bytes::write);
+                        data = bytes.toString();
+                    } else {
+                        data = fsManager.readFile(parts[1]);
+                    }
+                    writer.println("SUCCESS: File '" + parts[1] + "' contents: " + data);
+                    break;
+
+                case "APPEND":
+                    if (parts.length < 3) throw new Exception("Usage: APPEND <filename> <content>");
+                    byte[] tail = parts[2].getBytes();
+                    long size = fsManager.appendFile(parts[1], tail.length, ByteBuffer.wrap(tail)::get);
+                    writer.println("SUCCESS: File '" + parts[1] + "' appended, now " + size + " bytes.");
+                    break;
+
+                case "DELETE":
+                    if (parts.length < 2) throw new Exception("Usage: DELETE <filename>");
+                    fsManager.deleteFile(parts[1]);
+                    writer.println("SUCCESS: File '" + parts[1] + "' deleted.");
+                    break;
+
+                case "LIST":
+                    String[] files = fsManager.listFiles();
+                    writer.println("FILES: " + (files.length == 0 ? "(empty)" : String.join(", ", files)));
+                    break;
+
+                case "STATS":
+                    writer.println("STATS: " + Metrics.format(" "));
+                    break;
+
+                case "TOKEN":
+                    writer.println("TOKEN: " + position());
+                    break;
+
+                case "AFTER": {
+                    if (parts.length < 2) throw new Exception("Usage: AFTER <token> [<timeout ms>]");
+                    long timeout = parts.length == 3 ? parseNumber(parts[2].trim()) : AFTER_TIMEOUT_MILLIS;
+                    fsManager.awaitPosition(parts[1], timeout);
+                    writer.println("SUCCESS: Caught up with " + parts[1] + ".");
+                    break;
+                }
+
+                case "MULTI":
+                    if (parts.length > 1 && !parts[1].trim().equalsIgnoreCase("ATOMIC")) throw new Exception("Usage: MULTI [ATOMIC]");
+                    batch = new Batch(parts.length > 1);
+                    batchInvalid = false;
+                    writer.println("SUCCESS: Batch started, EXEC runs it.");
+                    break;
+
+                case "EXEC": {
+                    if (batch == null) throw new Exception("EXEC without MULTI.");
+                    Batch queued = batch;
+                    batch = null;
+                    if (batchInvalid) throw new Exception("Batch discarded, a queued command was rejected.");
+                    Batch.Result[] results = fsManager.execute(queued);
+                    //one header line, then the reply each command would have had on its own
+                    writer.println("EXEC: " + results.length + " result(s)");
+                    for (int i = 0; i < results.length; i++) writer.println(batchReply(queued.ops().get(i), results[i]));
+                    break;
+                }
+
+                case "DISCARD":
+                    if (batch == null) throw new Exception("DISCARD without MULTI.");
+                    batch = null;
+                    writer.println("SUCCESS: Batch discarded.");
+                    break;
+
+                case "QUIT":
+                    writer.println("Goodbye!");
+                    return false;
+
+                case BinaryProtocol.UPGRADE_COMMAND:
+                    //the engine switches to frame parsing after this reply, an open batch is dropped
+                    batch = null;
+                    writer.println("SUCCESS: Binary protocol enabled.");
+                    break;
+
+                default:
+                    failed = true;
+                    writer.println("ERROR: Unknown command '" + command + "'");
+                    break;
+            }
+        } catch (Exception e) {
+            failed = true;
+            writer.println("ERROR: " + e.getMessage());
+        } finally {
+            Metrics.command(textCommand(command), start, failed);
+        }
+        return true;
+    }
+
+    private static Metrics.Command textCommand(String command) {
+        return switch (command) {
+            case "CREATE" -> Metrics.Command.CREATE;
+            case "WRITE" -> Metrics.Command.WRITE;
+            case "READ" -> Metrics.Command.READ;
+            case "APPEND" -> Metrics.Command.APPEND;
+            case "DELETE" -> Metrics.Command.DELETE;
+            case "LIST" -> Metrics.Command.LIST;
+            case "STATS" -> Metrics.Command.STATS;
+            case "TOKEN" -> Metrics.Command.TOKEN;
+            case "AFTER" -> Metrics.Command.AFTER;
+            case "MULTI", "EXEC", "DISCARD" -> Metrics.Command.BATCH;
+            case "QUIT" -> Metrics.Command.QUIT;
+            case BinaryProtocol.UPGRADE_COMMAND -> Metrics.Command.BINARY;
+            default -> Metrics.Command.UNKNOWN;
+        };
+    }
+
+    //ranged reads and writes are counted with READ and WRITE
+    private static Metrics.Command binaryCommand(byte opcode) {
+        return switch (opcode) {
+            case BinaryProtocol.OP_CREATE -> Metrics.Command.CREATE;
+            case BinaryProtocol.OP_WRITE, BinaryProtocol.OP_WRITE_AT -> Metrics.Command.WRITE;
+            case BinaryProtocol.OP_READ, BinaryProtocol.OP_READ_RANGE -> Metrics.Command.READ;
+            case BinaryProtocol.OP_APPEND -> Metrics.Command.APPEND;
+            case BinaryProtocol.OP_DELETE -> Metrics.Command.DELETE;
+            case BinaryProtocol.OP_LIST -> Metrics.Command.LIST;
+            case BinaryProtocol.OP_STATS -> Metrics.Command.STATS;
+            case BinaryProtocol.OP_TOKEN -> Metrics.Command.TOKEN;
+            case BinaryProtocol.OP_AFTER -> Metrics.Command.AFTER;
+            case BinaryProtocol.OP_BATCH -> Metrics.Command.BATCH;
+            case BinaryProtocol.OP_QUIT -> Metrics.Command.QUIT;
+            default -> Metrics.Command.UNKNOWN;
+        };
+    }
+
+    //"[thread - client] " prefix of a sampled request's log line, null when it is not logged
+    private Log.Line requestLine() {
+        if (!Log.sampled(++requests)) return null;
+        Log.Line line = Log.line(Log.Level.INFO);
+        if (line != null) line.append('[').append(Thread.currentThread().getName()).append(" - ").append(remote).append("] ");
+        return line;
+    }
+
+    //adds one command line to the open batch and replies QUEUED
+    private void queue(String[] parts, String command, PrintWriter writer) {
+        try {
+            switch (command) {
+                case "CREATE":
+                    if (parts.length < 2) throw new Exception("Usage: CREATE <filename>");
+                    batch.create(parts[1]);
+                    break;
+                case "WRITE":
+                    if (parts.length < 3) throw new Exception("Usage: WRITE <filename> <content>");
+                    batch.write(parts[1], parts[2].getBytes());
+                    break;
+                case "APPEND":
+                    if (parts.length < 3) throw new Exception("Usage: APPEND <filename> <content>");
+                    batch.append(parts[1], parts[2].getBytes());
+                    break;
+                case "READ":
+                    if (parts.length < 2) throw new Exception("Usage: READ <filename>");
+                    if (parts.length == 3) throw new Exception("READ with a range cannot be batched.");
+                    batch.read(parts[1]);
+                    break;
+                case "DELETE":
+                    if (parts.length < 2) throw new Exception("Usage: DELETE <filename>");
+                    batch.delete(parts[1]);
+                    break;
+                case "LIST":
+                    batch.list();
+                    break;
+                default:
+                    throw new Exception("'" + command + "' cannot be batched.");
+            }
+            writer.println("QUEUED");
+        } catch (Exception e) {
+            batchInvalid = true;
+            writer.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    private static String batchReply(Batch.Op op, Batch.Result result) {
+        if (!result.ok()) return "ERROR: " + result.error();
+        return switch (op.kind()) {
+            case CREATE -> "SUCCESS: File '" + op.name() + "' created.";
+            case WRITE -> "SUCCESS: File '" + op.name() + "' written.";
+            case APPEND -> "SUCCESS: File '" + op.name() + "' appended, now " + result.size() + " bytes.";
+            case READ -> "SUCCESS: File '" + op.name() + "' contents: " + (result.data().length == 0 ? "(empty file)" : new String(result.data()));
+            case DELETE -> "SUCCESS: File '" + op.name() + "' deleted.";
+            case LIST -> "FILES: " + (result.names().length == 0 ? "(empty)" : String.join(", ", result.names()));
+        };
+    }
+
+    //the store's replication position, for TOKEN
+    private String position() throws Exception {
+        String position = fsManager.position();
+        if (position == null) throw new Exception("This server is not replicated.");
+        return position;
+    }
+
+    private static long parseNumber(String s) throws Exception {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            throw new Exception("'" + s + "' is not a number.");
+        }
+    }
+
+    //streams a read into one OK reply frame, the header goes out once the length is known
+    private static final class FrameSink implements FileStore.ChunkSink {
+        private final DataOutputStream out;
+        private final int id;
+        boolean started;
+
+        FrameSink(DataOutputStream out, int id) {
+            this.out = out;
+            this.id = id;
+        }
+
+        @Override
+        public void begin(long length) throws IOException {
+            if (length > BinaryProtocol.MAX_PAYLOAD)
+                throw new IOException("File is larger than one frame, read it with READ_RANGE.");
+            BinaryProtocol.writeReplyHeader(out, BinaryProtocol.STATUS_OK, id, (int) length);
+            started = true;
+        }
+
+        @Override
+        public void accept(byte[] buf, int off, int len) throws IOException {
+            out.write(buf, off, len);
+        }
+    }
+
+    //a long read as a FileTransfer with its reply header already written, null to copy it instead
+    private FileTransfer openTransfer(DataOutputStream out, int id, String file, long offset, long length) throws Exception {
+        if (transfers == null) return null;
+        FileTransfer transfer = fsManager.openTransfer(file, offset, length, TRANSFER_THRESHOLD);
+        if (transfer == null) return null;
+        try {
+            if (transfer.length() > BinaryProtocol.MAX_PAYLOAD)
+                throw new IOException("File is larger than one frame, read it with READ_RANGE.");
+            BinaryProtocol.writeReplyHeader(out, BinaryProtocol.STATUS_OK, id, (int) transfer.length());
+            return transfer;
+        } catch (IOException e) {
+            transfer.close();
+            throw e;
+        }
+    }
+
+    //runs one binary request and writes its reply frame, returns false once the client asked to quit
+    boolean handleRequest(BinaryProtocol.Request request, DataOutputStream out) throws IOException {
+        Log.Line log = requestLine();
+        if (log != null) log.append("op ").append(request.opcode()).append(" #").append(request.id()).commit();
+        ByteBuffer payload = ByteBuffer.wrap(request.payload());
+        byte[] result = BinaryProtocol.EMPTY;
+        boolean keepGoing = true;
+        FrameSink stream = null;
+        FileTransfer transfer = null;
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            switch (request.opcode()) {
+                case BinaryProtocol.OP_CREATE:
+                    fsManager.createFile(BinaryProtocol.readName(payload));
+                    break;
+
+                case BinaryProtocol.OP_WRITE:
+                    String name = BinaryProtocol.readName(payload);
+                    fsManager.writeFile(name, BinaryProtocol.remaining(payload));
+                    break;
+
+                case BinaryProtocol.OP_READ: {
+                    String file = BinaryProtocol.readName(payload);
+                    transfer = openTransfer(out, request.id(), file, 0, Long.MAX_VALUE);
+                    if (transfer != null) {
+                        transfers.send(transfer);
+                    } else {
+                        stream = new FrameSink(out, request.id());
+                        fsManager.readFile(file, 0, Long.MAX_VALUE, stream);
+                    }
+                    failed = false;
+                    return true;
+                }
+
+                case BinaryProtocol.OP_READ_RANGE: {
+                    String file = BinaryProtocol.readName(payload);
+                    if (payload.remaining() < 12) throw new IOException("Missing offset or length");
+                    long offset = payload.getLong();
+                    int length = Math.min(payload.getInt(), BinaryProtocol.MAX_PAYLOAD);
+                    transfer = openTransfer(out, request.id(), file, offset, length);
+                    if (transfer != null) {
+                        transfers.send(transfer);
+                    } else {
+                        stream = new FrameSink(out, request.id());
+                        fsManager.readFile(file, offset, length, stream);
+                    }
+                    failed = false;
+                    return true;
+                }
+
+                case BinaryProtocol.OP_WRITE_AT: {
+                    String file = BinaryProtocol.readName(payload);
+                    if (payload.remaining() < 8) throw new IOException("Missing offset");
+                    long offset = payload.getLong();
+                    long size = fsManager.writeFile(file, offset, payload.remaining(), payload::get);
+                    result = ByteBuffer.allocate(8).putLong(size).array();
+                    break;
+                }
+
+                case BinaryProtocol.OP_APPEND: {
+                    String file = BinaryProtocol.readName(payload);
+                    long size = fsManager.appendFile(file, payload.remaining(), payload::get);
+                    result = ByteBuffer.allocate(8).putLong(size).array();
+                    break;
+                }
+
+                case BinaryProtocol.OP_DELETE:
+                    fsManager.deleteFile(BinaryProtocol.readName(payload));
+                    break;
+
+                case BinaryProtocol.OP_LIST:
+                    result = BinaryProtocol.encodeNames(fsManager.listFiles());
+                    break;
+
+                case BinaryProtocol.OP_BATCH: {
+                    Batch ops = BinaryProtocol.decodeBatch(payload);
+                    result = BinaryProtocol.encodeResults(ops, fsManager.execute(ops));
+                    break;
+                }
+
+                case BinaryProtocol.OP_STATS:
+                    result = Metrics.format("\n").getBytes(StandardCharsets.UTF_8);
+                    break;
+
+                case BinaryProtocol.OP_TOKEN:
+                    result = position().getBytes(StandardCharsets.UTF_8);
+                    break;
+
+                case BinaryProtocol.OP_AFTER: {
+                    String token = BinaryProtocol.readName(payload);
+                    long timeout = payload.remaining() >= 8 ? payload.getLong() : AFTER_TIMEOUT_MILLIS;
+                    fsManager.awaitPosition(token, timeout);
+                    break;
+                }
+
+                case BinaryProtocol.OP_QUIT:
+                    keepGoing = false;
+                    break;
+
+                default:
+                    throw new Exception("Unknown opcode " + request.opcode());
+            }
+            failed = false;
+        } catch (Exception e) {
+            // part of the reply is already out, the frame cannot be turned into an error any more
+            if ((stream != null && stream.started) || transfer != null) throw new IOException("Read failed while its reply was being sent", e);
+            String message = e.getMessage() == null ? e.toString() : e.getMessage();
+            BinaryProtocol.writeReply(out, BinaryProtocol.STATUS_ERROR, request.id(), message.getBytes(StandardCharsets.UTF_8));
+            return true;
+        } finally {
+            //the reply may still sit in the connection's buffer, this is the time the server spent on it
+            Metrics.command(binaryCommand(request.opcode()), start, failed);
+        }
+        BinaryProtocol.writeReply(out, BinaryProtocol.STATUS_OK, request.id(), result);
+        return keepGoing;
+    }
+}
@@ -1,57 +1,110 @@
 package ca.concordia.server;
 
+import ca.concordia.filesystem.FileStore;
 import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
 
-import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileServer {
 
-    private final FileSystemManager fsManager;
+    //how client connections are served
+    public enum Engine {
+        POOL,    // one pooled platform thread per connection (blocking I/O)
+        VIRTUAL, // one virtual thread per connection (blocking I/O)
+        NIO      // one selector thread for all sockets, commands run on a worker pool
+    }
+
+    private final FileStore fsManager;
     private final int port;
+    private final Engine engine;
     private final ExecutorService threadPool;
 
     // Constructor for FileServer
     public FileServer(int port, String fileSystemName, int totalSize) {
+        this(port, fileSystemName, totalSize, Engine.POOL);
+    }
+
+    public FileServer(int port, String fileSystemName, int totalSize, Engine engine) {
+        this(port, openFileSystem(fileSystemName, totalSize), engine);
+    }
+
+    public FileServer(int port, FileStore fsManager, Engine engine) {
         this.port = port;
-        try {
-            this.fsManager = new FileSystemManager(fileSystemName, totalSize);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException("Failed to initialize FileSystemManager", e);
+        this.engine = engine;
+        this.fsManager = fsManager;
+
+        if (engine == Engine.VIRTUAL) {
+            ThreadFactory tf = Thread.ofVirtual().name("ClientHandler-", 1).factory();
+            this.threadPool = Executors.newThreadPerTaskExecutor(tf);
+            return;
         }
 
-        // Thread pool 
+        // Thread pool (connections for POOL, command workers for NIO)
         int poolSize = Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
         AtomicInteger counter = new AtomicInteger(1);
+        String prefix = engine == Engine.NIO ? "Worker-" : "ClientHandler-";
         ThreadFactory tf = r -> {
             Thread t = new Thread(r);
-            t.setName("ClientHandler-" + counter.getAndIncrement());
+            t.setName(prefix + counter.getAndIncrement());
             t.setDaemon(false);
             return t;
         };
         this.threadPool = Executors.newFixedThreadPool(poolSize, tf);
     }
 
+    private static FileSystemManager openFileSystem(String fileSystemName, int totalSize) {
+        try {
+            FileSystemManager fs = new FileSystemManager(fileSystemName, totalSize);
+            Metrics.register(fs);
+            return fs;
+        } catch (Exception e) {
+            Log.error("Failed to initialize FileSystemManager", e);
+            throw new RuntimeException("Failed to initialize FileSystemManager", e);
+        }
+    }
+
     //initialize server
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("FileServer started on port " + port);
+        //connections (POOL) or commands (NIO) waiting for a thread, virtual threads never queue
+        Metrics.gauge("executor.queued", () -> threadPool instanceof ThreadPoolExecutor pool ? pool.getQueue().size() : 0);
+        Metrics.gauge("executor.active", () -> threadPool instanceof ThreadPoolExecutor pool ? pool.getActiveCount() : 0);
+        Metrics.registerMBean();
+
+        if (engine == Engine.NIO) {
+            try {
+                new NioEventLoop(port, fsManager, threadPool).run();
+            } catch (Exception e) {
+                Log.error("Could not start server on port " + port, e);
+            } finally {
+                shutdownPool();
+            }
+            return;
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            Log.info("FileServer started on port " + port + " (" + engine.name().toLowerCase() + ")");
 
             while (true) {
-                Socket clientSocket = serverSocket.accept();
+                // accepted as a channel, which large reads are sent to directly (FileTransfer)
+                Socket clientSocket = serverChannel.accept().socket();
                 clientSocket.setSoTimeout(120_000);
-                System.out.println("New client connected: " + clientSocket.getRemoteSocketAddress());
+                // a header flushed ahead of its body must not wait for the client's delayed ack
+                clientSocket.setTcpNoDelay(true);
+                Log.info("New client connected: " + clientSocket.getRemoteSocketAddress());
                 threadPool.submit(new ClientHandler(clientSocket, fsManager));
             }
         } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Could not start server on port " + port);
+            Log.error("Could not start server on port " + port, e);
         } finally {
             shutdownPool();
         }
@@ -59,84 +112,6 @@ public class FileServer {
 
     private void shutdownPool() {
         threadPool.shutdown();
-        System.out.println("Server thread pool shutting down.");
-    }
-
-
-    private static class ClientHandler implements Runnable {
-        private final Socket clientSocket;
-        private final FileSystemManager fsManager;
-
-        public ClientHandler(Socket socket, FileSystemManager fsManager) {
-            this.clientSocket = socket;
-            this.fsManager = fsManager;
-        }
-
-        @Override
-        public void run() {
-            try (
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                    PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)
-            ) {
-                writer.println(" Connected to FileServer. Type commands:");
-
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (line.trim().isEmpty()) continue;
-                    System.out.println("[" + Thread.currentThread().getName() + " - " + clientSocket.getRemoteSocketAddress() + "] " + line);
-                    String[] parts = line.split(" ", 3);
-                    String command = parts[0].toUpperCase();
-
-                    //handles client commands 
-                    try {
-                        switch (command) {
-                            case "CREATE":
-                                if (parts.length < 2) throw new Exception("Usage: CREATE <filename>");
-                                fsManager.createFile(parts[1]);
-                                writer.println("SUCCESS: File '" + parts[1] + "' created.");
-                                break;
-
-                            case "WRITE":
-                                if (parts.length < 3) throw new Exception("Usage: WRITE <filename> <content>");
-                                fsManager.writeFile(parts[1], parts[2]);
-                                writer.println("SUCCESS: File '" + parts[1] + "' written.");
-                                break;
-
-                            case "READ":
-                                if (parts.length < 2) throw new Exception("Usage: READ <filename>");
-                                String data = fsManager.readFile(parts[1]);
-                                writer.println("SUCCESS: File '" + parts[1] + "' contents: " + data);
-                                break;
-
-                            case "DELETE":
-                                if (parts.length < 2) throw new Exception("Usage: DELETE <filename>");
-                                fsManager.deleteFile(parts[1]);
-                                writer.println("SUCCESS: File '" + parts[1] + "' deleted.");
-                                break;
-
-                            case "LIST":
-                                String[] files = fsManager.listFiles();
-                                writer.println("FILES: " + (files.length == 0 ? "(empty)" : String.join(", ", files)));
-                                break;
-
-                            case "QUIT":
-                                writer.println("Goodbye!");
-                                clientSocket.close();
-                                return;
-
-                            default:
-                                writer.println("ERROR: Unknown command '" + command + "'");
-                                break;
-                        }
-                    } catch (Exception e) {
-                        writer.println("ERROR: " + e.getMessage());
-                    }
-                }
-            } catch (IOException e) {
-                System.err.println("Client disconnected: " + clientSocket.getRemoteSocketAddress());
-            } finally {
-                try { clientSocket.close(); } catch (Exception ignored) {}
-            }
-        }
+        Log.info("Server thread pool shutting down.");
     }
 }
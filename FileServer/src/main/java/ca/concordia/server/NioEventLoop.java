@@ -0,0 +1,286 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileStore;
+import ca.concordia.filesystem.FileTransfer;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//single selector thread that owns every socket, commands run on the worker pool
+class NioEventLoop implements Runnable {
+    //stop reading from a client that has this many unprocessed requests queued
+    private static final int MAX_PENDING_REQUESTS = 1024;
+    //queued in place of a line longer than ClientHandler.MAX_LINE_LENGTH, the worker answers it and quits
+    private static final Object LINE_TOO_LONG = new Object();
+
+    private final int port;
+    private final FileStore fsManager;
+    private final ExecutorService workers;
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    //connections whose interest ops must be updated by the selector thread
+    private final Queue<Connection> pendingUpdates = new ConcurrentLinkedQueue<>();
+
+    NioEventLoop(int port, FileStore fsManager, ExecutorService workers) throws IOException {
+        this.port = port;
+        this.fsManager = fsManager;
+        this.workers = workers;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            Log.info("FileServer started on port " + port + " (nio)");
+
+            while (selector.isOpen()) {
+                selector.select();
+                Connection c;
+                while ((c = pendingUpdates.poll()) != null) c.updateInterest();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept(server);
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) conn.onReadable();
+                        if (key.isValid() && key.isWritable()) conn.onWritable();
+                    } catch (IOException e) {
+                        conn.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Could not start server on port " + port, e);
+        } finally {
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            Log.info("New client connected: " + ch.getRemoteAddress());
+            Connection conn = new Connection(ch);
+            conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+            Metrics.CONNECTIONS_OPENED.increment();
+            Metrics.ACTIVE_CONNECTIONS.increment();
+            conn.enqueue((ClientHandler.GREETING + System.lineSeparator()).getBytes());
+            conn.updateInterest();
+        }
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ClientHandler handler;
+        private SelectionKey key;
+
+        //touched only by the selector thread; outbound and replies hold ByteBuffers and FileTransfers
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        private final ArrayDeque<Object> outbound = new ArrayDeque<>();
+        private boolean binary;
+        //a line was too long, nothing more is read
+        private boolean overflowed;
+        private ByteBuffer partialFrame = ByteBuffer.allocate(0);
+
+        //handed from the selector thread to the worker draining this connection,
+        //either text lines (String), LINE_TOO_LONG or decoded BinaryProtocol.Request frames
+        private final Queue<Object> requests = new ConcurrentLinkedQueue<>();
+        private final Queue<Object> replies = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean quit;
+        private volatile boolean closed;
+
+        //replies of the worker draining this connection, handed over at the end of the drain or
+        //before a FileTransfer
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final PrintWriter writer = new PrintWriter(out);
+        private final DataOutputStream dout = new DataOutputStream(out);
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.handler = new ClientHandler(channel.getRemoteAddress(), fsManager);
+            handler.setTransferSink(transfer -> {
+                handOver();
+                replies.add(transfer);
+                // a close that raced with this never saw the transfer
+                if (closed) releaseTransfers(replies);
+                // sent now, not once the rest of the batch is handled; a request behind it may wait on it
+                pendingUpdates.add(this);
+                selector.wakeup();
+            });
+        }
+
+        void onReadable() throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                Log.info("Client disconnected: " + channel.getRemoteAddress());
+                close();
+                return;
+            }
+            readBuffer.flip();
+            boolean added = false;
+            while (readBuffer.hasRemaining() && !binary && !overflowed) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    String line = partialLine.toString();
+                    if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+                    partialLine.reset();
+                    requests.add(line);
+                    added = true;
+                    //everything after the BINARY line is framed
+                    if (BinaryProtocol.isUpgrade(line)) binary = true;
+                } else {
+                    partialLine.write(b);
+                    if (partialLine.size() > ClientHandler.MAX_LINE_LENGTH) {
+                        partialLine.reset();
+                        requests.add(LINE_TOO_LONG);
+                        added = true;
+                        overflowed = true;
+                    }
+                }
+            }
+            if (binary && readBuffer.hasRemaining()) added |= decodeFrames();
+            if (added) schedule();
+            updateInterest();
+        }
+
+        private boolean decodeFrames() throws IOException {
+            ByteBuffer buf = readBuffer;
+            if (partialFrame.hasRemaining()) {
+                buf = ByteBuffer.allocate(partialFrame.remaining() + readBuffer.remaining());
+                buf.put(partialFrame).put(readBuffer).flip();
+            }
+            boolean added = false;
+            BinaryProtocol.Request request;
+            while ((request = BinaryProtocol.tryDecode(buf)) != null) {
+                requests.add(request);
+                added = true;
+            }
+            //keep the incomplete tail for the next read
+            partialFrame = ByteBuffer.allocate(buf.remaining());
+            partialFrame.put(buf).flip();
+            return added;
+        }
+
+        void onWritable() throws IOException {
+            Object next;
+            while ((next = replies.poll()) != null) outbound.add(next);
+            while ((next = outbound.peek()) != null) {
+                if (next instanceof ByteBuffer buf) {
+                    channel.write(buf);
+                    if (buf.hasRemaining()) break;
+                } else {
+                    FileTransfer transfer = (FileTransfer) next;
+                    if (!transfer.writeTo(channel)) break;
+                    transfer.close();
+                }
+                outbound.poll();
+            }
+            if (outbound.isEmpty() && replies.isEmpty() && quit && !scheduled.get()) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        void enqueue(byte[] bytes) {
+            outbound.add(ByteBuffer.wrap(bytes));
+        }
+
+        //selector thread only
+        void updateInterest() {
+            if (!key.isValid()) return;
+            int ops = 0;
+            if (!quit && !overflowed && requests.size() < MAX_PENDING_REQUESTS) ops |= SelectionKey.OP_READ;
+            if (!outbound.isEmpty() || !replies.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) workers.execute(this::drain);
+        }
+
+        //worker thread: runs the queued requests in order, one worker per connection at a time,
+        //and hands their replies to the selector as a single buffer (split where a FileTransfer goes)
+        private void drain() {
+            do {
+                Object request;
+                try {
+                    while (!quit && (request = requests.poll()) != null) {
+                        boolean keepGoing;
+                        if (request == LINE_TOO_LONG) {
+                            writer.println(ClientHandler.LINE_TOO_LONG);
+                            keepGoing = false;
+                        } else if (request instanceof String line) {
+                            keepGoing = handler.handleCommand(line, writer);
+                            writer.flush();
+                        } else {
+                            keepGoing = handler.handleRequest((BinaryProtocol.Request) request, dout);
+                        }
+                        if (!keepGoing) quit = true;
+                    }
+                } catch (IOException e) {
+                    //a reply that failed halfway cannot be framed, close once what is before it is sent
+                    quit = true;
+                }
+                handOver();
+                scheduled.set(false);
+            } while (!quit && !requests.isEmpty() && scheduled.compareAndSet(false, true));
+            pendingUpdates.add(this);
+            selector.wakeup();
+        }
+
+        //worker thread: queues what the replies so far wrote
+        private void handOver() {
+            writer.flush();
+            if (out.size() == 0) return;
+            replies.add(ByteBuffer.wrap(out.toByteArray()));
+            out.reset();
+        }
+
+        void close() {
+            if (!key.isValid()) return;
+            Metrics.ACTIVE_CONNECTIONS.decrement();
+            closed = true;
+            key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            // transfers that will never be sent still hold their file's version
+            releaseTransfers(outbound);
+            releaseTransfers(replies);
+        }
+
+        private void releaseTransfers(Queue<Object> queue) {
+            Object next;
+            while ((next = queue.poll()) != null) {
+                if (next instanceof FileTransfer transfer) transfer.close();
+            }
+        }
+    }
+}
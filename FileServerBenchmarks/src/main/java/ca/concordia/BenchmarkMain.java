@@ -0,0 +1,36 @@
+package ca.concordia;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Runs the suite once per thread count and writes each run as JMH JSON, for comparing builds.
+ *
+ *   java -jar target/benchmarks.jar [JMH options, e.g. a benchmark regex or -p fileSize=4096]
+ *
+ * -Dbench.threads=1,4  thread counts to run (default 1,4)
+ * -Dbench.results=dir  where results-t<threads>.json go (default target/jmh)
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        Path results = Path.of(System.getProperty("bench.results", "target/jmh"));
+        Files.createDirectories(results);
+
+        for (String t : System.getProperty("bench.threads", "1,4").split(",")) {
+            int threads = Integer.parseInt(t.trim());
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(cli)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(results.resolve("results-t" + threads + ".json").toString());
+            new Runner(options.build()).run();
+        }
+    }
+}
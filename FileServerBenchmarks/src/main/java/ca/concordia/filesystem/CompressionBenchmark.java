@@ -0,0 +1,125 @@
+package ca.concordia.filesystem;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Throughput of compressed files against how well they compress.
+ *
+ * level=off stores files as they are, 1, 6 and 9 deflate every file at that level (see FrameCodec).
+ * content=text is generated prose over a skewed vocabulary, which compresses like English; random does
+ * not compress at all, so its frames are stored raw and only the attempt is paid for. Each thread
+ * writes and reads a file of its own. rangeRead reads 4 KiB at a time through the file, which inflates
+ * the one frame the range falls in. The ratio of logical to stored bytes is printed to stderr at the
+ * end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final int RANGE = 4096;
+
+    @State(Scope.Benchmark)
+    public static class Volume {
+        @Param({"off", "1", "6", "9"})
+        public String level;
+
+        @Param({"text", "random"})
+        public String content;
+
+        @Param({"1048576"})
+        public int fileSize;
+
+        TempVolume volume;
+        FileSystemManager fs;
+        byte[] payload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            if (level.equals("off")) {
+                System.clearProperty(FrameCodec.PROPERTY);
+            } else {
+                System.setProperty(FrameCodec.PROPERTY, "*");
+                System.setProperty(FrameCodec.LEVEL_PROPERTY, level);
+            }
+            volume = new TempVolume(4096, TempVolume.blocksFor(64, fileSize, 4096), 64);
+            fs = volume.fs();
+            payload = content.equals("text") ? text(fileSize, 42) : random(fileSize, 42);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            if (fs.compressesFiles()) {
+                long logical = fs.getCompressedLogicalBytes();
+                long stored = fs.getCompressedStoredBytes();
+                System.err.printf("level=%s content=%s: %d bytes stored in %d, ratio %.2f%n",
+                        level, content, logical, stored, (double) logical / stored);
+            }
+            volume.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Own {
+        String name;
+        long offset;
+
+        @Setup(Level.Trial)
+        public void setUp(Volume v, ThreadParams thread) throws Exception {
+            name = "c" + thread.getThreadIndex();
+            v.fs.createFile(name);
+            v.fs.writeFile(name, v.payload);
+        }
+    }
+
+    //words of 1 to 10 letters, drawn with probability about 1/rank like the words of English text
+    static byte[] text(int size, long seed) {
+        Random random = new Random(seed);
+        String[] words = new String[4096];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder w = new StringBuilder();
+            int len = 1 + Math.min(9, i / 256 + random.nextInt(4));
+            for (int k = 0; k < len; k++) w.append((char) ('a' + random.nextInt(26)));
+            words[i] = w.toString();
+        }
+        double norm = Math.log(words.length + 1.0);
+        StringBuilder out = new StringBuilder(size + 16);
+        while (out.length() < size) {
+            int rank = (int) Math.exp(random.nextDouble() * norm) - 1;
+            out.append(words[Math.min(rank, words.length - 1)]);
+            int r = random.nextInt(16);
+            out.append(r == 0 ? ".\n" : r == 1 ? ", " : " ");
+        }
+        return out.substring(0, size).getBytes();
+    }
+
+    static byte[] random(int size, long seed) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    @Benchmark
+    public void write(Volume v, Own own) throws Exception {
+        v.fs.writeFile(own.name, v.payload);
+    }
+
+    @Benchmark
+    public byte[] read(Volume v, Own own) throws Exception {
+        return v.fs.readFileBytes(own.name);
+    }
+
+    @Benchmark
+    public long rangeRead(Volume v, Own own, Blackhole bh) throws Exception {
+        long offset = own.offset;
+        own.offset = offset + RANGE >= v.fileSize ? 0 : offset + RANGE;
+        return v.fs.readFile(own.name, offset, RANGE, (buf, off, len) -> bh.consume(buf));
+    }
+}
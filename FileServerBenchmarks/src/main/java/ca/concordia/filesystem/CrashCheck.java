@@ -0,0 +1,275 @@
+package ca.concordia.filesystem;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/*
+ * Kills a server at each CrashPoint and checks what the journal replays, exits with status 1 when a
+ * recovered volume differs from what was acknowledged.
+ *
+ *   java -cp target/benchmarks.jar ca.concordia.filesystem.CrashCheck [seed]
+ *
+ * For every crash point and a few hit counts, a child JVM runs with -Dfileserver.crashPoint=<point>:<n>.
+ * Its threads create, write, append, write at offsets, delete and run atomic batches on files of their
+ * own, and log each operation before it starts and whether it returned. The point halts the child
+ * without any cleanup. The check then opens the volume, which replays the journal, and every thread's
+ * files must be what its acknowledged operations left, with the one it was running either applied
+ * whole or not at all. The next child goes on from the recovered volume, so later crashes also hit
+ * volumes that were recovered before. -Dfileserver.* properties (dedup, compress, device) are passed
+ * to the children; the journal is kept at its smallest so checkpoints happen.
+ */
+public class CrashCheck {
+
+    private static final String[] POINTS = {
+            CrashPoint.DATA_WRITTEN, CrashPoint.JOURNAL_WRITTEN, CrashPoint.JOURNAL_FORCED,
+            CrashPoint.APPLY_PARTIAL, CrashPoint.CHECKPOINT
+    };
+    private static final int[] HITS = { 1, 7, 40, 150 };
+    //a child fills the journal only a few times
+    private static final int[] CHECKPOINT_HITS = { 1, 2, 3 };
+    private static final int THREADS = 4;
+    private static final int FILES_PER_THREAD = 5;
+    private static final int OPS_PER_THREAD = 400;
+    private static final int BLOCK_SIZE = 512;
+    private static final int BLOCKS = 4096;
+    private static final int MAX_FILES = 32;
+
+    //one logged operation; a batch writes data and then appends more, as one atomic batch
+    private record Op(String kind, String name, long offset, byte[] data, byte[] more) {}
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("fileserver.log.level", "warn");
+        if (args.length > 0 && args[0].equals("child")) {
+            child(Path.of(args[1]), Long.parseLong(args[2]));
+            return;
+        }
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        Path dir = Files.createTempDirectory("crashcheck");
+        try {
+            run(dir, seed);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    private static void run(Path dir, long seed) throws Exception {
+        List<Map<String, byte[]>> state = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) state.add(new TreeMap<>());
+        int trial = 0;
+        for (String point : POINTS) {
+            for (int hit : point.equals(CrashPoint.CHECKPOINT) ? CHECKPOINT_HITS : HITS) {
+                int exit = runChild(dir, point + ":" + hit, seed + trial++);
+                String outcome = exit == 137 ? "crashed" : exit == 0 ? "finished without reaching it" : "failed with status " + exit;
+                if (exit != 137 && exit != 0) fail(point + ":" + hit + " " + outcome);
+                int files = verify(dir, state);
+                System.out.println(point + ":" + hit + " " + outcome + ", recovered " + files + " files");
+            }
+        }
+        System.out.println("every crash point recovered what was acknowledged (seed " + seed + ")");
+    }
+
+    private static int runChild(Path dir, String crashPoint, long seed) throws Exception {
+        for (int t = 0; t < THREADS; t++) Files.deleteIfExists(opsLog(dir, t));
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("fileserver.")) command.add("-D" + key + "=" + System.getProperty(key));
+        }
+        command.add("-D" + Journal.SIZE_PROPERTY + "=" + (64 << 10));
+        command.add("-D" + CrashPoint.PROPERTY + "=" + crashPoint);
+        command.add(CrashCheck.class.getName());
+        command.add("child");
+        command.add(dir.toString());
+        command.add(String.valueOf(seed));
+        return new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+
+    private static Path volume(Path dir) {
+        return dir.resolve("filesystem.dat");
+    }
+
+    private static Path opsLog(Path dir, int thread) {
+        return dir.resolve("ops-" + thread + ".log");
+    }
+
+    private static String fileName(int thread, int file) {
+        return "t" + thread + "f" + file;
+    }
+
+    //child JVM: THREADS threads run random operations until done or halted by the crash point
+    private static void child(Path dir, long seed) throws Exception {
+        FileSystemManager fs = new FileSystemManager(volume(dir).toString(), BLOCK_SIZE, BLOCKS, MAX_FILES);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            threads.add(Thread.ofPlatform().start(() -> {
+                try (FileOutputStream log = new FileOutputStream(opsLog(dir, thread).toFile())) {
+                    Random random = new Random(seed * 31 + thread);
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        Op op = randomOp(random, fileName(thread, random.nextInt(FILES_PER_THREAD)));
+                        // unbuffered, so a line is in the file before the operation starts
+                        log.write(("B\t" + encode(op) + "\n").getBytes(StandardCharsets.UTF_8));
+                        log.write((run(fs, op) ? "E\n" : "X\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (Thread t : threads) t.join();
+        fs.close();
+    }
+
+    private static Op randomOp(Random random, String name) {
+        byte[] data = new byte[random.nextInt(6 * BLOCK_SIZE)];
+        random.nextBytes(data);
+        return switch (random.nextInt(10)) {
+            case 0, 1 -> new Op("create", name, 0, null, null);
+            case 2, 3 -> new Op("write", name, 0, data, null);
+            case 4 -> new Op("append", name, 0, data, null);
+            case 5, 6 -> new Op("writeAt", name, random.nextInt(4 * BLOCK_SIZE), data, null);
+            case 7 -> new Op("delete", name, 0, null, null);
+            default -> new Op("batch", name, 0, data, Arrays.copyOf(data, random.nextInt(BLOCK_SIZE)));
+        };
+    }
+
+    //true if the operation returned successfully
+    private static boolean run(FileSystemManager fs, Op op) {
+        try {
+            switch (op.kind()) {
+                case "create" -> fs.createFile(op.name());
+                case "write" -> fs.writeFile(op.name(), op.data());
+                case "append" -> fs.appendFile(op.name(), op.data().length, ByteBuffer.wrap(op.data())::get);
+                case "writeAt" -> fs.writeFile(op.name(), op.offset(), op.data().length, ByteBuffer.wrap(op.data())::get);
+                case "delete" -> fs.deleteFile(op.name());
+                default -> {
+                    Batch batch = new Batch(true).write(op.name(), op.data()).append(op.name(), op.more());
+                    for (Batch.Result r : fs.execute(batch)) {
+                        if (!r.ok()) return false;
+                    }
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            // a missing or existing file, or a full volume
+            return false;
+        }
+    }
+
+    //the operation's effect on a thread's files, as the server applies it when it succeeds
+    private static void apply(Map<String, byte[]> files, Op op) {
+        byte[] current = files.get(op.name());
+        switch (op.kind()) {
+            case "create" -> files.putIfAbsent(op.name(), new byte[0]);
+            case "write" -> { if (current != null) files.put(op.name(), op.data()); }
+            case "append" -> { if (current != null) files.put(op.name(), concat(current, op.data())); }
+            case "writeAt" -> {
+                if (current != null && op.offset() <= current.length) {
+                    byte[] next = Arrays.copyOf(current, (int) Math.max(current.length, op.offset() + op.data().length));
+                    System.arraycopy(op.data(), 0, next, (int) op.offset(), op.data().length);
+                    files.put(op.name(), next);
+                }
+            }
+            case "delete" -> files.remove(op.name());
+            default -> { if (current != null) files.put(op.name(), concat(op.data(), op.more())); }
+        }
+    }
+
+    //opens the crashed volume and compares every thread's files with its log, then takes them as the
+    //state the next child starts from; returns how many files there are
+    private static int verify(Path dir, List<Map<String, byte[]>> state) throws Exception {
+        FileSystemManager fs = new FileSystemManager(volume(dir).toString(), BLOCK_SIZE, BLOCKS, MAX_FILES);
+        try {
+            Map<String, byte[]> all = new TreeMap<>();
+            for (String name : fs.listFiles()) all.put(name, fs.readFileBytes(name));
+            for (int t = 0; t < THREADS; t++) {
+                Map<String, byte[]> acknowledged = new TreeMap<>(state.get(t));
+                Op pending = null;
+                if (Files.exists(opsLog(dir, t))) {
+                    for (String line : Files.readAllLines(opsLog(dir, t))) {
+                        if (line.startsWith("B\t")) {
+                            pending = decode(line.substring(2));
+                        } else if (line.equals("E")) {
+                            apply(acknowledged, pending);
+                            pending = null;
+                        } else {
+                            pending = null;
+                        }
+                    }
+                }
+                Map<String, byte[]> withPending = new TreeMap<>(acknowledged);
+                if (pending != null) apply(withPending, pending);
+
+                Map<String, byte[]> recovered = new TreeMap<>();
+                for (int f = 0; f < FILES_PER_THREAD; f++) {
+                    String name = fileName(t, f);
+                    if (all.containsKey(name)) recovered.put(name, all.get(name));
+                }
+                if (!same(recovered, acknowledged) && !same(recovered, withPending)) {
+                    fail("thread " + t + " recovered " + describe(recovered) + ", acknowledged " + describe(acknowledged)
+                            + (pending == null ? "" : ", running " + pending.kind() + " " + pending.name()));
+                }
+                state.set(t, recovered);
+            }
+            return all.size();
+        } finally {
+            fs.close();
+        }
+    }
+
+    private static boolean same(Map<String, byte[]> a, Map<String, byte[]> b) {
+        if (!a.keySet().equals(b.keySet())) return false;
+        for (String name : a.keySet()) {
+            if (!Arrays.equals(a.get(name), b.get(name))) return false;
+        }
+        return true;
+    }
+
+    private static String describe(Map<String, byte[]> files) {
+        StringBuilder s = new StringBuilder("{");
+        for (var e : files.entrySet()) s.append(s.length() > 1 ? ", " : "").append(e.getKey()).append('=').append(e.getValue().length).append('B');
+        return s.append('}').toString();
+    }
+
+    private static String encode(Op op) {
+        Base64.Encoder b64 = Base64.getEncoder();
+        return op.kind() + "\t" + op.name() + "\t" + op.offset() + "\t"
+                + (op.data() == null ? "-" : b64.encodeToString(op.data())) + "\t"
+                + (op.more() == null ? "-" : b64.encodeToString(op.more()));
+    }
+
+    private static Op decode(String line) {
+        String[] f = line.split("\t", -1);
+        Base64.Decoder b64 = Base64.getDecoder();
+        return new Op(f[0], f[1], Long.parseLong(f[2]),
+                f[3].equals("-") ? null : b64.decode(f[3]), f[4].equals("-") ? null : b64.decode(f[4]));
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static void fail(String message) {
+        System.err.println("MISMATCH " + message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,160 @@
+package ca.concordia.filesystem;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * FileSystemManager operations on a formatted volume.
+ *
+ * fileSize is the size of every file read or written, files how many files the volume holds while
+ * list and lookup run. Thread counts come from the runner (BenchmarkMain -Dbench.threads or -t):
+ * reads share the volume's files, writes, creates and deletes go to a file of their own per thread.
+ * Every create, write and delete waits for its journal commit, so those numbers include an fsync.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileSystemBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Volume {
+        @Param({"128", "4096"})
+        public int blockSize;
+
+        @Param({"128", "4096", "65536"})
+        public int fileSize;
+
+        @Param({"16", "512"})
+        public int files;
+
+        TempVolume volume;
+        FileSystemManager fs;
+        byte[] payload;
+        String[] names;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            // one spare file per thread plus the ones createFile makes on the side
+            int maxFiles = files + 2 * 64;
+            volume = new TempVolume(blockSize, TempVolume.blocksFor(maxFiles, fileSize, blockSize), maxFiles);
+            fs = volume.fs();
+            payload = new byte[fileSize];
+            Arrays.fill(payload, (byte) 'x');
+            names = new String[files];
+            for (int i = 0; i < files; i++) {
+                names[i] = "f" + i;
+                fs.createFile(names[i]);
+                fs.writeFile(names[i], payload);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            volume.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        //written only by this thread
+        String own;
+
+        @Setup(Level.Trial)
+        public void setUp(Volume v, ThreadParams thread) throws Exception {
+            next = thread.getThreadIndex() % v.names.length;
+            own = "w" + thread.getThreadIndex();
+            v.fs.createFile(own);
+            v.fs.writeFile(own, v.payload);
+        }
+
+        String nextName(Volume v) {
+            String name = v.names[next];
+            if (++next == v.names.length) next = 0;
+            return name;
+        }
+    }
+
+    //a file of this thread's that createFile makes and the fixture deletes again after each call;
+    //one journal commit per invocation, so the fixture stays small next to what is measured
+    @State(Scope.Thread)
+    public static class Absent {
+        String name;
+
+        @Setup(Level.Trial)
+        public void name(ThreadParams thread) {
+            name = "c" + thread.getThreadIndex();
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete(Volume v) throws Exception {
+            v.fs.deleteFile(name);
+        }
+    }
+
+    //the other way around, created before each call for deleteFile to remove
+    @State(Scope.Thread)
+    public static class Present {
+        String name;
+
+        @Setup(Level.Trial)
+        public void name(ThreadParams thread) {
+            name = "d" + thread.getThreadIndex();
+        }
+
+        @Setup(Level.Invocation)
+        public void create(Volume v) throws Exception {
+            v.fs.createFile(name);
+        }
+    }
+
+    @Benchmark
+    public void createFile(Volume v, Absent file) throws Exception {
+        v.fs.createFile(file.name);
+    }
+
+    @Benchmark
+    public void deleteFile(Volume v, Present file) throws Exception {
+        v.fs.deleteFile(file.name);
+    }
+
+    @Benchmark
+    public void writeFile(Volume v, Cursor c) throws Exception {
+        v.fs.writeFile(c.own, v.payload);
+    }
+
+    @Benchmark
+    public byte[] readFile(Volume v, Cursor c) throws Exception {
+        return v.fs.readFileBytes(c.nextName(v));
+    }
+
+    @Benchmark
+    public String[] listFiles(Volume v) {
+        return v.fs.listFiles();
+    }
+
+    @Benchmark
+    public int findInodeIndex(Volume v, Cursor c) {
+        return v.fs.findInodeIndex(c.nextName(v));
+    }
+
+    //three readers of the shared files next to one writer rewriting them, readers should not notice
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(3)
+    public byte[] reader(Volume v, Cursor c) throws Exception {
+        return v.fs.readFileBytes(c.nextName(v));
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(1)
+    public void writer(Volume v, Cursor c) throws Exception {
+        v.fs.writeFile(c.nextName(v), v.payload);
+    }
+}
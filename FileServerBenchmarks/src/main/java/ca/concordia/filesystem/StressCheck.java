@@ -0,0 +1,297 @@
+package ca.concordia.filesystem;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.stream.Stream;
+
+/*
+ * Many threads on one FileSystemManager with no global lock, checked against a model; exits with
+ * status 1 at the first difference.
+ *
+ *   java -cp target/benchmarks.jar ca.concordia.filesystem.StressCheck [threads,...] [ops per thread]
+ *
+ * For each thread count (default 1,2,4,8) a fresh volume is shared by that many threads. Every thread
+ * creates, writes, writes at offsets, appends to, reads and deletes files of its own and checks each
+ * read and its files' entries in LIST against a model it keeps. Between its own operations it also
+ * creates, rewrites, reads and deletes a few files all threads share, whose contents carry the seed
+ * they were generated from so a read can tell a whole write from a torn one. Afterwards the volume is
+ * reopened and compared with the models, then emptied and filled to the last block, which fails if
+ * any block leaked.
+ *
+ * Operations per second are printed for each thread count with the speedup over the first count. The
+ * mixed operations above commit a journal record each, so they scale as far as group commit lets
+ * more threads share a force. Before the volume is reopened, every thread also reads back only its own
+ * files, which touches no journal: that shows how the data path scales by itself.
+ */
+public class StressCheck {
+
+    private static final int FILES_PER_THREAD = 6;
+    private static final String[] SHARED = { "s0", "s1", "s2" };
+    private static final int BLOCK_SIZE = 512;
+    private static final int MAX_SIZE = 16 * BLOCK_SIZE;
+    //reads are much cheaper than the mixed operations, this many times as many are timed
+    private static final int READS_PER_OP = 20;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("fileserver.log.level", "warn");
+        String threadCounts = args.length > 0 ? args[0] : "1,2,4,8";
+        int ops = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        // untimed, so the first count is not measured while the JIT is still compiling
+        run(Integer.parseInt(threadCounts.split(",")[0].trim()), ops);
+        double[] first = null;
+        for (String t : threadCounts.split(",")) {
+            int threads = Integer.parseInt(t.trim());
+            double[] rates = run(threads, ops);
+            if (first == null) first = rates;
+            System.out.printf("%d thread(s): mixed %.0f ops/s (x%.1f), reads only %.0f ops/s (x%.1f), model matched%n",
+                    threads, rates[0], rates[0] / first[0], rates[1], rates[1] / first[1]);
+        }
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    //runs worker on threads threads started together, returns the seconds until all are done
+    private static double timed(int threads, Worker worker) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            running.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                    worker.run(thread);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    fail("thread " + thread + " stopped: " + e);
+                }
+            }));
+        }
+        start.await();
+        long began = System.nanoTime();
+        for (Thread t : running) t.join();
+        return (System.nanoTime() - began) / 1e9;
+    }
+
+    //operations per second of the mixed run and of the read-only one
+    private static double[] run(int threads, int ops) throws Exception {
+        Path dir = Files.createTempDirectory("stresscheck");
+        String path = dir.resolve("filesystem.dat").toString();
+        int maxFiles = threads * FILES_PER_THREAD + SHARED.length;
+        // every file at its largest, twice over while it is rewritten
+        int blocks = 2 * maxFiles * (MAX_SIZE * 2 / BLOCK_SIZE) + 64;
+        try {
+            FileSystemManager fs = new FileSystemManager(path, BLOCK_SIZE, blocks, maxFiles);
+            List<Map<String, byte[]>> models = new ArrayList<>();
+            for (int t = 0; t < threads; t++) models.add(new TreeMap<>());
+            double seconds = timed(threads, thread -> worker(fs, thread, ops, models.get(thread)));
+            double readSeconds = timed(threads, thread -> reader(fs, thread, ops * READS_PER_OP, models.get(thread)));
+
+            fs.close();
+            FileSystemManager reopened = new FileSystemManager(path, BLOCK_SIZE, blocks, maxFiles);
+            Set<String> expected = new HashSet<>();
+            for (Map<String, byte[]> model : models) {
+                for (var e : model.entrySet()) {
+                    expected.add(e.getKey());
+                    if (!Arrays.equals(reopened.readFileBytes(e.getKey()), e.getValue())) fail(e.getKey() + " differs after reopening");
+                }
+            }
+            for (String name : reopened.listFiles()) {
+                if (isShared(name)) {
+                    checkShared(name, reopened.readFileBytes(name));
+                } else if (!expected.remove(name)) {
+                    fail(name + " is listed after reopening but was deleted");
+                }
+            }
+            if (!expected.isEmpty()) fail(expected + " missing after reopening");
+            fillCheck(reopened, blocks);
+            reopened.close();
+            return new double[] { threads * ops / seconds, (double) threads * ops * READS_PER_OP / readSeconds };
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    private static void worker(FileSystemManager fs, int thread, int ops, Map<String, byte[]> model) throws Exception {
+        Random random = new Random(thread * 7919L + 1);
+        for (int i = 0; i < ops; i++) {
+            if (random.nextInt(5) == 0) {
+                shared(fs, random);
+                continue;
+            }
+            String name = "t" + thread + "f" + random.nextInt(FILES_PER_THREAD);
+            byte[] current = model.get(name);
+            switch (random.nextInt(7)) {
+                case 0 -> {
+                    expect(current == null, () -> fs.createFile(name), name + " create");
+                    model.putIfAbsent(name, new byte[0]);
+                }
+                case 1 -> {
+                    byte[] data = bytes(random, random.nextInt(MAX_SIZE));
+                    expect(current != null, () -> fs.writeFile(name, data), name + " write");
+                    if (current != null) model.put(name, data);
+                }
+                case 2 -> {
+                    if (current == null) break;
+                    long offset = random.nextInt(current.length + 1);
+                    byte[] data = bytes(random, 1 + random.nextInt(3 * BLOCK_SIZE));
+                    if (offset + data.length > MAX_SIZE) break;
+                    long size = fs.writeFile(name, offset, data.length, ByteBuffer.wrap(data)::get);
+                    byte[] next = Arrays.copyOf(current, (int) Math.max(current.length, offset + data.length));
+                    System.arraycopy(data, 0, next, (int) offset, data.length);
+                    if (size != next.length) fail(name + " write at " + offset + " returned size " + size + ", expected " + next.length);
+                    model.put(name, next);
+                }
+                case 3 -> {
+                    if (current == null) break;
+                    byte[] data = bytes(random, random.nextInt(2 * BLOCK_SIZE));
+                    if (current.length + data.length > MAX_SIZE) break;
+                    fs.appendFile(name, data.length, ByteBuffer.wrap(data)::get);
+                    byte[] next = Arrays.copyOf(current, current.length + data.length);
+                    System.arraycopy(data, 0, next, current.length, data.length);
+                    model.put(name, next);
+                }
+                case 4 -> {
+                    expect(current != null, () -> fs.deleteFile(name), name + " delete");
+                    model.remove(name);
+                }
+                case 5 -> {
+                    if (current == null) break;
+                    if (!Arrays.equals(fs.readFileBytes(name), current)) fail(name + " read differs from the model");
+                    long offset = random.nextInt(current.length + 1);
+                    long length = random.nextInt(2 * BLOCK_SIZE);
+                    ByteArrayOutputStream range = new ByteArrayOutputStream();
+                    fs.readFile(name, offset, length, range::write);
+                    int end = (int) Math.min(current.length, offset + length);
+                    if (!Arrays.equals(range.toByteArray(), Arrays.copyOfRange(current, (int) offset, end)))
+                        fail(name + " ranged read at " + offset + " differs from the model");
+                }
+                default -> {
+                    // creates and deletes of other threads never hide or repeat this thread's files
+                    Set<String> seen = new HashSet<>();
+                    Set<String> mine = new HashSet<>();
+                    for (String listed : fs.listFiles()) {
+                        if (!seen.add(listed)) fail(listed + " listed twice");
+                        if (listed.startsWith("t" + thread + "f")) mine.add(listed);
+                    }
+                    if (!mine.equals(model.keySet())) fail("thread " + thread + " listed " + mine + ", model has " + model.keySet());
+                }
+            }
+        }
+    }
+
+    //reads of 2 blocks at random offsets of the thread's own files, nothing that is journaled; all of
+    //the same length, so every thread count does the same work per read
+    private static void reader(FileSystemManager fs, int thread, int reads, Map<String, byte[]> model) throws Exception {
+        int length = 2 * BLOCK_SIZE;
+        List<String> names = new ArrayList<>();
+        for (var e : model.entrySet()) {
+            if (e.getValue().length >= length) names.add(e.getKey());
+        }
+        if (names.isEmpty()) return;
+        Random random = new Random(thread * 7919L + 2);
+        for (int i = 0; i < reads; i++) {
+            String name = names.get(random.nextInt(names.size()));
+            byte[] current = model.get(name);
+            int offset = random.nextInt(current.length - length + 1);
+            ByteArrayOutputStream range = new ByteArrayOutputStream(length);
+            fs.readFile(name, offset, length, range::write);
+            if (!Arrays.equals(range.toByteArray(), 0, length, current, offset, offset + length))
+                fail(name + " ranged read at " + offset + " differs from the model");
+        }
+    }
+
+    //one operation on a file every thread uses; it may be deleted or recreated at any moment
+    private static void shared(FileSystemManager fs, Random random) {
+        String name = SHARED[random.nextInt(SHARED.length)];
+        try {
+            switch (random.nextInt(4)) {
+                case 0 -> fs.createFile(name);
+                case 1 -> fs.writeFile(name, sharedContents(random.nextLong(), random.nextInt(MAX_SIZE)));
+                case 2 -> checkShared(name, fs.readFileBytes(name));
+                default -> fs.deleteFile(name);
+            }
+        } catch (Exception e) {
+            // another thread created or deleted it first
+        }
+    }
+
+    private static boolean isShared(String name) {
+        return Arrays.asList(SHARED).contains(name);
+    }
+
+    //the seed, then bytes generated from it
+    private static byte[] sharedContents(long seed, int size) {
+        byte[] data = bytes(new Random(seed), Math.max(8, size));
+        ByteBuffer.wrap(data).putLong(seed);
+        return data;
+    }
+
+    private static void checkShared(String name, byte[] data) {
+        if (data.length == 0) return;
+        if (data.length < 8 || !Arrays.equals(data, sharedContents(ByteBuffer.wrap(data).getLong(), data.length)))
+            fail(name + " was read torn, " + data.length + " bytes");
+    }
+
+    //deletes every file and writes one as large as the volume, which needs every block back; the
+    //block createFile reserved stays the file's until the write replaces it, so that one is left out
+    private static void fillCheck(FileSystemManager fs, int blocks) throws Exception {
+        for (String name : fs.listFiles()) fs.deleteFile(name);
+        byte[] all = bytes(new Random(blocks), fillSize(blocks - 1, "all"));
+        fs.createFile("all");
+        fs.writeFile("all", all);
+        if (!Arrays.equals(fs.readFileBytes("all"), all)) fail("a file filling the volume read back differently");
+        fs.deleteFile("all");
+    }
+
+    //bytes of random contents that take exactly blocks blocks; compressed they are stored as raw frames,
+    //each with a header that may take a block more
+    private static int fillSize(int blocks, String name) {
+        FrameCodec codec = FrameCodec.configured(BLOCK_SIZE);
+        if (!codec.compresses(name)) return blocks * BLOCK_SIZE;
+        int perFrame = codec.maxBlocks(codec.frameSize());
+        int rest = blocks % perFrame;
+        return blocks / perFrame * codec.frameSize() + (rest == 0 ? 0 : rest * BLOCK_SIZE - FrameCodec.HEADER_SIZE);
+    }
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    //runs an operation that must succeed exactly when ok
+    private static void expect(boolean ok, Action action, String what) {
+        try {
+            action.run();
+        } catch (Exception e) {
+            if (ok) fail(what + " failed: " + e.getMessage());
+            return;
+        }
+        if (!ok) fail(what + " succeeded, the model says it cannot");
+    }
+
+    private static byte[] bytes(Random random, int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private static void fail(String message) {
+        System.err.println("MISMATCH " + message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,47 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+//a freshly formatted volume in a temporary directory (under -Dbench.dir if set), removed by close()
+public final class TempVolume implements AutoCloseable {
+
+    private final Path dir;
+    private final FileSystemManager fs;
+
+    public TempVolume(int blockSize, int blocks, int maxFiles) throws Exception {
+        // the server log writes to whatever System.out is, a benchmark measures the operation and not the console
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        String base = System.getProperty("bench.dir");
+        this.dir = base == null ? Files.createTempDirectory("fsbench") : Files.createTempDirectory(Path.of(base), "fsbench");
+        this.fs = new FileSystemManager(dir.resolve("filesystem.dat").toString(), blockSize, blocks, maxFiles);
+    }
+
+    //blocks for files of fileSize bytes each, with room for every one of them to be rewritten at once
+    public static int blocksFor(int files, int fileSize, int blockSize) {
+        int perFile = Math.max(1, (fileSize + blockSize - 1) / blockSize);
+        return 2 * files * perFile + 64;
+    }
+
+    public FileSystemManager fs() {
+        return fs;
+    }
+
+    @Override
+    public void close() throws Exception {
+        fs.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                try {
+                    Files.delete(p);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package ca.concordia.filesystem.device;
+
+import ca.concordia.filesystem.FileSystemManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/*
+ * Checks that the mapped, channel and raf devices behave the same, exits with status 1 on the first
+ * difference, then measures how their reads scale with the number of readers.
+ *
+ *   java -cp target/benchmarks.jar ca.concordia.filesystem.device.DeviceCheck [seed] [readers,...]
+ *
+ * The same random writes go to one device of each kind and to an array that models the volume, and
+ * every read, transferTo and view must match the model. The volume grows between rounds, the way a
+ * volume is formatted larger. Threads then write and read back stripes of their own at the same time,
+ * which a device with a shared file position would mix up. Each device is reopened and compared whole,
+ * and the three volume files must be equal byte for byte. Last, FileSystemManager runs the same
+ * operations once on each device and must read back the same files.
+ *
+ * The throughput run reopens each device and has 1, 2, 4 and 8 threads (or the given counts) read
+ * random blocks of it for a while, each read checked against the model. It prints reads per second
+ * and the speedup over one reader: the raf device serializes on its file pointer, the others should
+ * scale with the cores there are.
+ */
+public class DeviceCheck {
+
+    private static final String[] KINDS = { "mapped", "channel", "raf" };
+    private static final int[] SIZES = { 64 * 1024, 1024 * 1024 + 13, 3 * 1024 * 1024 };
+    private static final int WRITES = 2000;
+    private static final int THREADS = 8;
+    private static final int READ_SIZE = 4096;
+    private static final long THROUGHPUT_MILLIS = 1000;
+
+    private final Random random;
+    private final Path dir;
+    private final BlockDevice[] devices = new BlockDevice[KINDS.length];
+    private byte[] model = new byte[0];
+
+    private DeviceCheck(long seed, Path dir) {
+        this.random = new Random(seed);
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("fileserver.log.level", "warn");
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        String readers = args.length > 1 ? args[1] : "1,2,4,8";
+        Path dir = Files.createTempDirectory("devicecheck");
+        try {
+            DeviceCheck check = new DeviceCheck(seed, dir);
+            check.sequential();
+            check.concurrent();
+            check.reopened();
+            check.filesystem();
+            System.out.println("devices agree (seed " + seed + ")");
+            check.throughput(Arrays.stream(readers.split(",")).mapToInt(r -> Integer.parseInt(r.trim())).toArray());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static BlockDevice open(String kind, String filename) throws IOException {
+        return switch (kind) {
+            case "mapped" -> new MappedFileDevice(filename);
+            case "channel" -> new FileChannelDevice(filename);
+            default -> new RandomAccessFileDevice(filename);
+        };
+    }
+
+    private Path volume(int device) {
+        return dir.resolve(KINDS[device] + ".dat");
+    }
+
+    //random writes, each followed by reads of a random range through every path a device has
+    private void sequential() throws IOException {
+        for (int d = 0; d < KINDS.length; d++) devices[d] = open(KINDS[d], volume(d).toString());
+        for (int size : SIZES) {
+            model = Arrays.copyOf(model, size);
+            for (BlockDevice device : devices) {
+                device.setSize(size);
+                check(device.size() == size, device, "size " + device.size() + " after setSize(" + size + ")");
+            }
+            for (int i = 0; i < WRITES; i++) {
+                int len = 1 + random.nextInt(Math.min(size, 70_000));
+                int offset = random.nextInt(size - len + 1);
+                byte[] data = new byte[len];
+                random.nextBytes(data);
+                int off = random.nextInt(16);
+                byte[] src = new byte[off + len];
+                System.arraycopy(data, 0, src, off, len);
+                System.arraycopy(data, 0, model, offset, len);
+                for (BlockDevice device : devices) device.write(offset, src, off, len);
+
+                len = 1 + random.nextInt(Math.min(size, 70_000));
+                offset = random.nextInt(size - len + 1);
+                for (BlockDevice device : devices) compare(device, offset, len);
+            }
+            for (BlockDevice device : devices) {
+                device.force();
+                compare(device, 0, size);
+                // nothing is read past the end, whatever the device
+                try {
+                    device.read(size - 1, new byte[2], 0, 2);
+                    check(false, device, "read past the end of the volume");
+                } catch (IOException expected) {
+                }
+            }
+        }
+    }
+
+    //one read of len bytes at offset through read(), transferTo() and view(), all against the model
+    private void compare(BlockDevice device, int offset, int len) throws IOException {
+        byte[] got = new byte[len + 8];
+        device.read(offset, got, 4, len);
+        check(Arrays.equals(got, 4, 4 + len, model, offset, offset + len), device, "read " + offset + "+" + len);
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream(len);
+        var target = Channels.newChannel(sent);
+        long done = 0;
+        while (done < len) {
+            long n = device.transferTo(offset + done, len - done, target);
+            check(n > 0, device, "transferTo stalled at " + (offset + done));
+            done += n;
+        }
+        check(Arrays.equals(sent.toByteArray(), 0, len, model, offset, offset + len), device, "transferTo " + offset + "+" + len);
+
+        ByteBuffer view = device.view(offset, len);
+        if (view != null) {
+            byte[] viewed = new byte[view.remaining()];
+            view.get(viewed);
+            check(viewed.length <= len && Arrays.equals(viewed, 0, viewed.length, model, offset, offset + viewed.length),
+                    device, "view " + offset + "+" + len);
+        }
+    }
+
+    //every thread writes its own stripes and reads each one straight back, all devices at once
+    private void concurrent() throws Exception {
+        int size = model.length;
+        int stripe = size / (THREADS * 16);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS * devices.length);
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                byte[][] contents = new byte[16][];
+                long seed = random.nextLong();
+                for (int s = 0; s < contents.length; s++) {
+                    Random r = new Random(seed + s);
+                    contents[s] = new byte[stripe];
+                    r.nextBytes(contents[s]);
+                    System.arraycopy(contents[s], 0, model, (t * 16 + s) * stripe, stripe);
+                }
+                int thread = t;
+                for (BlockDevice device : devices) {
+                    running.add(pool.submit(() -> {
+                        Random r = new Random(seed);
+                        byte[] back = new byte[stripe];
+                        for (int i = 0; i < 400; i++) {
+                            int s = r.nextInt(16);
+                            long offset = (long) (thread * 16 + s) * stripe;
+                            device.write(offset, contents[s], 0, stripe);
+                            device.read(offset, back, 0, stripe);
+                            check(Arrays.equals(back, contents[s]), device, "stripe " + s + " of thread " + thread + " read back");
+                        }
+                        // stripes never written still have to end up with their contents
+                        for (int s = 0; s < 16; s++) device.write((long) (thread * 16 + s) * stripe, contents[s], 0, stripe);
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> f : running) f.get();
+        } finally {
+            pool.shutdown();
+        }
+        for (BlockDevice device : devices) compare(device, 0, size);
+    }
+
+    //what each device left in its file is the model, read back by a fresh instance of every kind
+    private void reopened() throws IOException {
+        for (BlockDevice device : devices) device.close();
+        for (int d = 0; d < KINDS.length; d++) {
+            check(Files.mismatch(volume(0), volume(d)) == -1, devices[d], "volume file differs from " + KINDS[0] + "'s");
+            for (String kind : KINDS) {
+                try (BlockDevice device = open(kind, volume(d).toString())) {
+                    check(device.size() == model.length, device, "size " + device.size() + " after reopening");
+                    compare(device, 0, model.length);
+                }
+            }
+        }
+    }
+
+    //the same files written through FileSystemManager on each kind of device read back the same
+    private void filesystem() throws Exception {
+        String[][] listed = new String[KINDS.length][];
+        byte[][][] contents = new byte[KINDS.length][][];
+        long seed = random.nextLong();
+        for (int d = 0; d < KINDS.length; d++) {
+            System.setProperty(BlockDevice.DEVICE_PROPERTY, KINDS[d]);
+            String path = dir.resolve("fs-" + KINDS[d] + ".dat").toString();
+            FileSystemManager fs = new FileSystemManager(path, 512, 2048, 32);
+            Random r = new Random(seed);
+            for (int i = 0; i < 500; i++) {
+                String name = "f" + r.nextInt(24);
+                byte[] data = new byte[r.nextInt(20_000)];
+                r.nextBytes(data);
+                int op = r.nextInt(4);
+                try {
+                    if (op == 0) fs.createFile(name);
+                    else if (op == 1) fs.writeFile(name, data);
+                    else if (op == 2) fs.appendFile(name, Math.min(data.length, 3000), ByteBuffer.wrap(data)::get);
+                    else fs.deleteFile(name);
+                } catch (Exception e) {
+                    // a missing or existing file fails the same way on every device
+                }
+            }
+            fs.close();
+            fs = new FileSystemManager(path, 512, 2048, 32);
+            listed[d] = fs.listFiles();
+            Arrays.sort(listed[d]);
+            contents[d] = new byte[listed[d].length][];
+            for (int i = 0; i < listed[d].length; i++) contents[d][i] = fs.readFileBytes(listed[d][i]);
+            fs.close();
+        }
+        System.clearProperty(BlockDevice.DEVICE_PROPERTY);
+        for (int d = 1; d < KINDS.length; d++) {
+            if (!Arrays.equals(listed[d], listed[0])) fail(KINDS[d] + ": files " + Arrays.toString(listed[d]) + ", " + KINDS[0] + " has " + Arrays.toString(listed[0]));
+            for (int i = 0; i < listed[d].length; i++) {
+                if (!Arrays.equals(contents[d][i], contents[0][i])) fail(KINDS[d] + ": file " + listed[d][i] + " differs from " + KINDS[0] + "'s");
+            }
+        }
+    }
+
+    //reads per second of each device for each number of readers, all reading random blocks at once
+    private void throughput(int[] readerCounts) throws Exception {
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processor(s), " + READ_SIZE + " byte reads for "
+                + THROUGHPUT_MILLIS + " ms each");
+        for (int d = 0; d < KINDS.length; d++) {
+            try (BlockDevice device = open(KINDS[d], volume(d).toString())) {
+                StringBuilder line = new StringBuilder(String.format("%-8s", KINDS[d]));
+                double single = 0;
+                for (int readers : readerCounts) {
+                    double perSecond = reads(device, readers);
+                    if (single == 0) single = perSecond / readers;
+                    line.append(String.format("  %d reader(s) %.0f reads/s (x%.1f)", readers, perSecond, perSecond / single));
+                }
+                System.out.println(line);
+            }
+        }
+    }
+
+    private double reads(BlockDevice device, int readers) throws Exception {
+        int blocks = model.length / READ_SIZE;
+        long seed = random.nextLong();
+        ExecutorService pool = Executors.newFixedThreadPool(readers);
+        try {
+            List<Future<Long>> running = new ArrayList<>();
+            long deadline = System.nanoTime() + THROUGHPUT_MILLIS * 1_000_000;
+            long start = System.nanoTime();
+            for (int t = 0; t < readers; t++) {
+                Random r = new Random(seed + t);
+                running.add(pool.submit(() -> {
+                    byte[] buf = new byte[READ_SIZE];
+                    long done = 0;
+                    while (System.nanoTime() < deadline) {
+                        long offset = (long) r.nextInt(blocks) * READ_SIZE;
+                        device.read(offset, buf, 0, READ_SIZE);
+                        check(Arrays.equals(buf, 0, READ_SIZE, model, (int) offset, (int) offset + READ_SIZE), device, "read " + offset + " while timed");
+                        done++;
+                    }
+                    return done;
+                }));
+            }
+            long total = 0;
+            for (Future<Long> f : running) total += f.get();
+            return total / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void check(boolean ok, BlockDevice device, String what) {
+        if (!ok) fail(device.getClass().getSimpleName() + ": " + what);
+    }
+
+    private static void fail(String message) {
+        System.err.println("MISMATCH " + message);
+        System.exit(1);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.TempVolume;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The request path above the filesystem: command parsing and reply formatting in ClientHandler
+ * called directly, and full round trips through a loopback socket served like the pool engine does,
+ * one ClientHandler thread per connection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientHandlerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"64", "4096"})
+        public int fileSize;
+
+        TempVolume volume;
+        ServerSocket socket;
+        String content;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            volume = new TempVolume(4096, TempVolume.blocksFor(4, fileSize, 4096), 4);
+            char[] chars = new char[fileSize];
+            Arrays.fill(chars, 'x');
+            content = new String(chars);
+            volume.fs().createFile("bench");
+            volume.fs().writeFile("bench", content);
+
+            socket = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+            Thread.ofPlatform().daemon().name("Acceptor").start(() -> {
+                try {
+                    while (true) {
+                        Socket client = socket.accept();
+                        Thread.ofPlatform().daemon().name("ClientHandler-bench").start(new ClientHandler(client, volume.fs()));
+                    }
+                } catch (IOException ignored) {
+                    // closed at tear down
+                }
+            });
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            socket.close();
+            volume.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Handler {
+        ClientHandler handler;
+        ByteArrayOutputStream reply;
+        PrintWriter writer;
+        DataOutputStream frames;
+        String writeCommand;
+        byte[] readPayload;
+        byte[] writePayload;
+        int id;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) {
+            handler = new ClientHandler(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), server.volume.fs());
+            reply = new ByteArrayOutputStream();
+            writer = new PrintWriter(reply);
+            frames = new DataOutputStream(reply);
+            writeCommand = "WRITE bench " + server.content;
+            readPayload = name("bench", new byte[0]);
+            writePayload = name("bench", server.content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        int text(String line) {
+            reply.reset();
+            handler.handleCommand(line, writer);
+            writer.flush();
+            return reply.size();
+        }
+
+        int binary(byte opcode, byte[] payload) throws IOException {
+            reply.reset();
+            handler.handleRequest(new BinaryProtocol.Request(opcode, ++id, payload), frames);
+            frames.flush();
+            return reply.size();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        Socket socket;
+        BufferedReader in;
+        PrintWriter out;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.socket.getLocalPort());
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+            in.readLine();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            roundTrip("QUIT");
+            socket.close();
+        }
+
+        String roundTrip(String line) throws IOException {
+            out.println(line);
+            out.flush();
+            return in.readLine();
+        }
+    }
+
+    private static byte[] name(String name, byte[] rest) {
+        byte[] nb = name.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + nb.length + rest.length).putShort((short) nb.length).put(nb).put(rest).array();
+    }
+
+    @Benchmark
+    public int textRead(Handler h) {
+        return h.text("READ bench");
+    }
+
+    @Benchmark
+    public int textWrite(Handler h) {
+        return h.text(h.writeCommand);
+    }
+
+    @Benchmark
+    public int textList(Handler h) {
+        return h.text("LIST");
+    }
+
+    @Benchmark
+    public int textUnknown(Handler h) {
+        return h.text("FROB bench");
+    }
+
+    @Benchmark
+    public int binaryRead(Handler h) throws IOException {
+        return h.binary(BinaryProtocol.OP_READ, h.readPayload);
+    }
+
+    @Benchmark
+    public int binaryWrite(Handler h) throws IOException {
+        return h.binary(BinaryProtocol.OP_WRITE, h.writePayload);
+    }
+
+    @Benchmark
+    public String loopbackRead(Connection c) throws IOException {
+        return c.roundTrip("READ bench");
+    }
+
+    @Benchmark
+    public String loopbackList(Connection c) throws IOException {
+        return c.roundTrip("LIST");
+    }
+}
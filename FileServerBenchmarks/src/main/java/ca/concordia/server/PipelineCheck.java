@@ -0,0 +1,220 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/*
+ * Pipelined binary requests against a running server of each engine, exits with status 1 when a
+ * reply is wrong or does not come.
+ *
+ *   java -cp target/benchmarks.jar ca.concordia.server.PipelineCheck [engine,...]
+ *
+ * Each connection sends a round of requests on its own file in one write and only then reads the
+ * replies: a READ of the whole file, an APPEND, a WRITE_AT, a READ_RANGE and another READ. Files grow
+ * past -Dfileserver.transferThreshold, so the reads are sent as FileTransfers by the engines that take
+ * them while the writes behind them change the same file. Every reply must come back in order, within
+ * a timeout, with what a model of the file says. Several connections run at once, on all engines
+ * (default pool,virtual,nio).
+ */
+public class PipelineCheck {
+
+    private static final int CONNECTIONS = 4;
+    private static final int ROUNDS = 40;
+    private static final int TIMEOUT_MILLIS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("fileserver.log.level", "warn");
+        String engines = args.length > 0 ? args[0] : "pool,virtual,nio";
+        for (String engine : engines.split(",")) check(FileServer.Engine.valueOf(engine.trim().toUpperCase()));
+        // the engines run on threads that are never shut down
+        System.exit(0);
+    }
+
+    private static void check(FileServer.Engine engine) throws Exception {
+        Path dir = Files.createTempDirectory("pipelinecheck");
+        try {
+            FileSystemManager fs = new FileSystemManager(dir.resolve("filesystem.dat").toString(), 4096, 4096, 16);
+            int port;
+            try (ServerSocket free = new ServerSocket(0)) {
+                port = free.getLocalPort();
+            }
+            Thread.ofPlatform().daemon().name("PipelineCheck-" + engine).start(() -> new FileServer(port, fs, engine).start());
+
+            List<Thread> clients = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+            for (int c = 0; c < CONNECTIONS; c++) {
+                int client = c;
+                clients.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        client(port, "p" + client, new Random(client));
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }));
+            }
+            for (Thread t : clients) t.join();
+            if (!failures.isEmpty()) {
+                Throwable e = failures.get(0);
+                fail(engine + ": " + (e instanceof SocketTimeoutException ? "no reply within " + TIMEOUT_MILLIS + " ms" : e.toString()));
+            }
+            System.out.println(engine.name().toLowerCase() + ": " + CONNECTIONS + " connections x " + ROUNDS
+                    + " pipelined rounds answered in order");
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    private static Socket connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket(InetAddress.getLoopbackAddress(), port);
+            } catch (IOException e) {
+                // the server thread may not be listening yet
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void client(int port, String name, Random random) throws Exception {
+        try (Socket socket = connect(port)) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            readLine(in);
+            out.write((BinaryProtocol.UPGRADE_COMMAND + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            readLine(in);
+
+            int id = 0;
+            byte[] model = bytes(random, 200_000);
+            send(out, BinaryProtocol.OP_CREATE, ++id, name(name));
+            send(out, BinaryProtocol.OP_WRITE, ++id, concat(name(name), model));
+            out.flush();
+            expect(in, id - 1, BinaryProtocol.EMPTY);
+            expect(in, id, BinaryProtocol.EMPTY);
+
+            for (int round = 0; round < ROUNDS; round++) {
+                int first = id + 1;
+                List<byte[]> expected = new ArrayList<>();
+
+                send(out, BinaryProtocol.OP_READ, ++id, name(name));
+                expected.add(model);
+
+                byte[] tail = bytes(random, random.nextInt(20_000));
+                send(out, BinaryProtocol.OP_APPEND, ++id, concat(name(name), tail));
+                model = concat(model, tail);
+                expected.add(ByteBuffer.allocate(8).putLong(model.length).array());
+
+                byte[] patch = bytes(random, 1 + random.nextInt(30_000));
+                int offset = random.nextInt(model.length + 1);
+                send(out, BinaryProtocol.OP_WRITE_AT, ++id, concat(name(name), ByteBuffer.allocate(8).putLong(offset).array(), patch));
+                byte[] next = Arrays.copyOf(model, Math.max(model.length, offset + patch.length));
+                System.arraycopy(patch, 0, next, offset, patch.length);
+                model = next;
+                expected.add(ByteBuffer.allocate(8).putLong(model.length).array());
+
+                int from = random.nextInt(model.length);
+                int length = random.nextInt(300_000);
+                send(out, BinaryProtocol.OP_READ_RANGE, ++id,
+                        concat(name(name), ByteBuffer.allocate(12).putLong(from).putInt(length).array()));
+                expected.add(Arrays.copyOfRange(model, from, Math.min(model.length, from + length)));
+
+                send(out, BinaryProtocol.OP_READ, ++id, name(name));
+                expected.add(model);
+                out.flush();
+
+                for (int i = 0; i < expected.size(); i++) expect(in, first + i, expected.get(i));
+                // keep the file around the transfer threshold and a few frames of it
+                if (model.length > 600_000) {
+                    model = Arrays.copyOf(model, random.nextInt(300_000));
+                    send(out, BinaryProtocol.OP_WRITE, ++id, concat(name(name), model));
+                    out.flush();
+                    expect(in, id, BinaryProtocol.EMPTY);
+                }
+            }
+            send(out, BinaryProtocol.OP_QUIT, ++id, BinaryProtocol.EMPTY);
+            out.flush();
+            expect(in, id, BinaryProtocol.EMPTY);
+        }
+    }
+
+    private static void send(DataOutputStream out, byte opcode, int id, byte[] payload) throws IOException {
+        out.writeByte(opcode);
+        out.writeInt(id);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    //the payload of the next reply, which must be an OK for request id
+    private static byte[] reply(DataInputStream in, int id) throws IOException {
+        byte status = in.readByte();
+        int replyId = in.readInt();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        if (replyId != id) throw new IOException("reply to " + replyId + " where " + id + " was next");
+        if (status != BinaryProtocol.STATUS_OK) throw new IOException("request " + id + " failed: " + new String(payload, StandardCharsets.UTF_8));
+        return payload;
+    }
+
+    private static void expect(DataInputStream in, int id, byte[] expected) throws IOException {
+        byte[] got = reply(in, id);
+        if (!Arrays.equals(got, expected)) throw new IOException("request " + id + " answered " + got.length + " bytes that differ from the " + expected.length + " expected");
+    }
+
+    private static byte[] name(String name) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + utf8.length).putShort((short) utf8.length).put(utf8).array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (byte[] p : parts) all.writeBytes(p);
+        return all.toByteArray();
+    }
+
+    private static byte[] bytes(Random random, int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        return b;
+    }
+
+    //skips the greeting or the BINARY acknowledgement
+    private static void readLine(DataInputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new EOFException();
+        }
+    }
+
+    private static void fail(String message) {
+        System.err.println("FAILED " + message);
+        System.exit(1);
+    }
+}
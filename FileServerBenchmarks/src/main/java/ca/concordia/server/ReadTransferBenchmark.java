@@ -0,0 +1,169 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.TempVolume;
+import ca.concordia.filesystem.device.BlockDevice;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Whole-file reads through a loopback socket, one ClientHandler thread per connection like the pool engine.
+ *
+ * path=copy serves plain sockets, so binary READ copies the file through the block cache into the
+ * reply stream; path=transfer serves sockets that have a channel, so reads of at least
+ * -Dfileserver.transferThreshold bytes go out as a FileTransfer (transferTo, or a gathering write of
+ * views of a mapped volume). textRead is the string-based text READ on the same server, for reference.
+ * The smallest fileSize where transfer wins is where the threshold belongs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadTransferBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"16384", "65536", "1048576"})
+        public int fileSize;
+
+        @Param({"mapped", "channel"})
+        public String device;
+
+        @Param({"copy", "transfer"})
+        public String path;
+
+        TempVolume volume;
+        ServerSocket socket;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            System.setProperty(BlockDevice.DEVICE_PROPERTY, device);
+            volume = new TempVolume(4096, TempVolume.blocksFor(4, fileSize, 4096), 4);
+            byte[] content = new byte[fileSize];
+            Arrays.fill(content, (byte) 'x');
+            volume.fs().createFile("bench");
+            volume.fs().writeFile("bench", content);
+
+            if (path.equals("transfer")) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+                socket = channel.socket();
+            } else {
+                socket = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+            }
+            Thread.ofPlatform().daemon().name("Acceptor").start(() -> {
+                try {
+                    while (true) {
+                        Socket client = socket.accept();
+                        client.setTcpNoDelay(true);
+                        Thread.ofPlatform().daemon().name("ClientHandler-bench").start(new ClientHandler(client, volume.fs()));
+                    }
+                } catch (IOException ignored) {
+                    // closed at tear down
+                }
+            });
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            socket.close();
+            volume.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class BinaryConnection {
+        Socket socket;
+        DataInputStream in;
+        DataOutputStream out;
+        byte[] request;
+        byte[] reply;
+        int id;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.socket.getLocalPort());
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            readLine(in);
+            out.write("BINARY\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            readLine(in);
+            byte[] name = "bench".getBytes(StandardCharsets.UTF_8);
+            request = new byte[2 + name.length];
+            request[1] = (byte) name.length;
+            System.arraycopy(name, 0, request, 2, name.length);
+            reply = new byte[server.fileSize];
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+
+        int read() throws IOException {
+            out.writeByte(BinaryProtocol.OP_READ);
+            out.writeInt(++id);
+            out.writeInt(request.length);
+            out.write(request);
+            out.flush();
+            byte status = in.readByte();
+            in.readInt();
+            int length = in.readInt();
+            if (status != BinaryProtocol.STATUS_OK || length != reply.length) throw new IOException("Unexpected reply");
+            in.readFully(reply);
+            return length;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TextConnection {
+        Socket socket;
+        BufferedReader in;
+        PrintWriter out;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.socket.getLocalPort());
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()), 64 * 1024);
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+            in.readLine();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+    }
+
+    //skips the greeting or the BINARY acknowledgement
+    private static void readLine(DataInputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new EOFException();
+        }
+    }
+
+    @Benchmark
+    public int binaryRead(BinaryConnection c) throws IOException {
+        return c.read();
+    }
+
+    @Benchmark
+    public String textRead(TextConnection c) throws IOException {
+        c.out.println("READ bench");
+        c.out.flush();
+        return c.in.readLine();
+    }
+}